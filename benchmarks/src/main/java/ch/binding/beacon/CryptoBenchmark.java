@@ -0,0 +1,63 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.binding.beacon.bench.BenchmarkSupport;
+
+/***
+ * derivation of rolling proximity IDs from a temporary exposure key, as done by the matcher per key and interval.
+ * 
+ * @author carl
+ *
+ */
+@BenchmarkMode( Mode.Throughput)
+@OutputTimeUnit( TimeUnit.SECONDS)
+@Warmup( iterations = 3, time = 2)
+@Measurement( iterations = 5, time = 2)
+@Fork( 1)
+@State( Scope.Benchmark)
+public class CryptoBenchmark {
+	
+	private byte tek[];
+	private long enin;
+	
+	@Setup
+	public void setup() {
+		final Random rnd = new Random( 4711);
+		this.tek = BenchmarkSupport.randomBytes( rnd, 32);
+		this.enin = Crypto.getENIntervalNumber( System.currentTimeMillis() / 1000);
+	}
+	
+	@Benchmark
+	public byte[] getRollingProximityID() throws Exception {
+		return Crypto.getRollingProximityID( this.tek, this.enin);
+	}
+
+}
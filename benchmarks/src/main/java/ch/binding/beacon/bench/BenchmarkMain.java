@@ -0,0 +1,50 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/***
+ * entry point of benchmarks.jar. takes the usual JMH command line options and adds the gc profiler
+ * unless profilers are given explicitly, so that every run reports the allocation rate next to ops/s.
+ * 
+ * @author carl
+ *
+ */
+public class BenchmarkMain {
+
+	public static void main( String[] args) throws Exception {
+		final CommandLineOptions cmdOptions = new CommandLineOptions( args);
+		
+		if ( cmdOptions.shouldHelp() || cmdOptions.shouldList() || cmdOptions.shouldListProfilers() 
+				|| cmdOptions.shouldListResultFormats() || cmdOptions.shouldListWithParams()) {
+			org.openjdk.jmh.Main.main( args);
+			return;
+		}
+		
+		ChainedOptionsBuilder builder = new OptionsBuilder().parent( cmdOptions);
+		if ( cmdOptions.getProfilers().isEmpty()) {
+			builder = builder.addProfiler( GCProfiler.class);
+		}
+		
+		new Runner( builder.build()).run();
+	}
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+/***
+ * locating the checked-in traces and databases and setting up throw-away copies of the databases.
+ * 
+ * @author carl
+ *
+ */
+public class BenchmarkSupport {
+	
+	private BenchmarkSupport() {
+	}
+	
+	/***
+	 * 
+	 * @return the beacon project directory: -Dbeacon.home or the current directory or its parent, whichever
+	 * contains scripts/hcidump.trace
+	 */
+	public static File getBeaconHome() {
+		final String home = System.getProperty( "beacon.home");
+		if ( home != null) {
+			return new File( home);
+		}
+		File dir = new File( System.getProperty( "user.dir")).getAbsoluteFile();
+		for ( int i = 0; i < 3 && dir != null; i++) {
+			if ( new File( dir, "scripts" + File.separator + "hcidump.trace").exists()) {
+				return dir;
+			}
+			dir = dir.getParentFile();
+		}
+		throw new IllegalStateException( "cannot locate beacon project directory, use -Dbeacon.home=...");
+	}
+	
+	public static File getTraceFile( String fn) {
+		return new File( new File( getBeaconHome(), "scripts"), fn);
+	}
+	
+	/***
+	 * copies one of the checked-in SQLite databases into a temporary file which is deleted on exit.
+	 * 
+	 * @param dbFn e.g. proximity_id_store.db
+	 * @return the copy
+	 * @throws IOException
+	 */
+	public static File copyDatabase( String dbFn) throws IOException {
+		final File src = new File( new File( getBeaconHome(), "sqlite"), dbFn);
+		final File dst = File.createTempFile( "bench_", "_" + dbFn);
+		dst.deleteOnExit();
+		Files.copy( src.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return dst;
+	}
+	
+	/***
+	 * points the DP-3T stores to a temporary copy of the DP-3T database. must be called before any of the
+	 * dp3t classes is initialized.
+	 * 
+	 * @throws IOException
+	 */
+	public static synchronized void useTemporaryDP3TDatabase() throws IOException {
+		if ( System.getProperty( "beacon.dp3t.db") != null) {
+			return;
+		}
+		System.setProperty( "beacon.dp3t.db", copyDatabase( "dp3t.db").getAbsolutePath());
+	}
+	
+	/***
+	 * 
+	 * @param rnd
+	 * @param len
+	 * @return len random bytes
+	 */
+	public static byte[] randomBytes( Random rnd, int len) {
+		final byte b[] = new byte[len];
+		rnd.nextBytes( b);
+		return b;
+	}
+	
+	/***
+	 * 
+	 * @param b
+	 * @return lower-case hex-dec digits, 2 per byte
+	 */
+	public static String toHex( byte b[]) {
+		final StringBuilder sb = new StringBuilder( 2 * b.length);
+		for ( int i = 0; i < b.length; i++) {
+			sb.append( String.format( "%02x", b[i] & 0xFF));
+		}
+		return sb.toString();
+	}
+
+}
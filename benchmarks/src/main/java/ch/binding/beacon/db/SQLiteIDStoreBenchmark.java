@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon.db;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.binding.beacon.ProximityIDStore.ProximityID;
+import ch.binding.beacon.bench.BenchmarkSupport;
+
+/***
+ * storing encounters into an empty copy of the proximity ID store: one report at a time and in batches
+ * of a scan window.
+ * 
+ * @author carl
+ *
+ */
+@BenchmarkMode( Mode.Throughput)
+@OutputTimeUnit( TimeUnit.SECONDS)
+@Warmup( iterations = 3, time = 2)
+@Measurement( iterations = 5, time = 2)
+@Fork( 1)
+@State( Scope.Benchmark)
+public class SQLiteIDStoreBenchmark {
+	
+	private static final int NBR_SERVICE_DATA = 1000;
+	private static final int BATCH_SIZE = 100;
+	
+	private SQLiteIDStore store;
+	private String serviceData[];
+	private ArrayList<ProximityID> batch;
+	private int idx = 0;
+	
+	@Setup
+	public void setup() throws Exception {
+		final File db = BenchmarkSupport.copyDatabase( "proximity_id_store.db");
+		try ( Connection conn = DriverManager.getConnection( "jdbc:sqlite:" + db.getAbsolutePath());
+			  Statement stmt = conn.createStatement()) {
+			stmt.executeUpdate( "delete from Encounters");
+		}
+		this.store = new SQLiteIDStore( db.getAbsolutePath());
+		
+		final Random rnd = new Random( 4711);
+		this.serviceData = new String[NBR_SERVICE_DATA];
+		for ( int i = 0; i < NBR_SERVICE_DATA; i++) {
+			this.serviceData[i] = BenchmarkSupport.toHex( BenchmarkSupport.randomBytes( rnd, 20));
+		}
+		
+		final long now = System.currentTimeMillis();
+		this.batch = new ArrayList<ProximityID>();
+		for ( int i = 0; i < BATCH_SIZE; i++) {
+			final String sd = this.serviceData[i];
+			this.batch.add( new ProximityID( sd.substring( 0, 32), sd.substring( 32), now - 20000, now - 10000, -60));
+		}
+	}
+	
+	/***
+	 * one op stores one report: a new proximity ID or an update of a known one.
+	 */
+	@Benchmark
+	public boolean store() {
+		final String sd = this.serviceData[this.idx];
+		this.idx = (this.idx + 1) % NBR_SERVICE_DATA;
+		return this.store.store( sd, -60, new Date( System.currentTimeMillis() - 1000));
+	}
+	
+	/***
+	 * one op is one encounter of a batch stored in one transaction.
+	 */
+	@Benchmark
+	@OperationsPerInvocation( BATCH_SIZE)
+	public boolean storeBatch() {
+		return this.store.store( this.batch);
+	}
+
+}
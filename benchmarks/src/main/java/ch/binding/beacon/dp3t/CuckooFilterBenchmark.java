@@ -0,0 +1,117 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon.dp3t;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.binding.beacon.bench.BenchmarkSupport;
+
+/***
+ * insertion into and lookups in a CuckooFilter of 16 byte EphIDs, for several fingerprint sizes.
+ * 
+ * @author carl
+ *
+ */
+@BenchmarkMode( Mode.Throughput)
+@OutputTimeUnit( TimeUnit.SECONDS)
+@Warmup( iterations = 3, time = 2)
+@Measurement( iterations = 5, time = 2)
+@Fork( 1)
+@State( Scope.Benchmark)
+public class CuckooFilterBenchmark {
+	
+	private static final int BUCKET_SIZE = 4;
+	
+	/***
+	 * nbr of items in the filter, at a load of at most 50%
+	 */
+	@Param( { "1000", "10000"})
+	public int nbrItems;
+	
+	@Param( { "8", "16", "32"})
+	public int fpBits;
+	
+	private CuckooFilter filter;
+	
+	private byte items[][];
+	private byte absent[][];
+	private int idx = 0;
+	
+	@Setup
+	public void setup() throws Exception {
+		final Random rnd = new Random( 4711);
+		
+		this.items = new byte[this.nbrItems][];
+		this.absent = new byte[this.nbrItems][];
+		for ( int i = 0; i < this.nbrItems; i++) {
+			this.items[i] = BenchmarkSupport.randomBytes( rnd, Crypto2.EPHID_LENGTH);
+			this.absent[i] = BenchmarkSupport.randomBytes( rnd, Crypto2.EPHID_LENGTH);
+		}
+		
+		this.filter = this.newFilter();
+		for ( int i = 0; i < this.nbrItems; i++) {
+			this.filter.insert( this.items[i]);
+		}
+	}
+	
+	private CuckooFilter newFilter() throws Exception {
+		return new CuckooFilter( (2 * this.nbrItems) / BUCKET_SIZE, BUCKET_SIZE, this.fpBits, null);
+	}
+	
+	private int next() {
+		final int i = this.idx;
+		this.idx = (i + 1 == this.nbrItems) ? 0 : i + 1;
+		return i;
+	}
+	
+	@Benchmark
+	public boolean lookupPresent() throws Exception {
+		return this.filter.lookup( this.items[this.next()]);
+	}
+	
+	@Benchmark
+	public boolean lookupAbsent() throws Exception {
+		return this.filter.lookup( this.absent[this.next()]);
+	}
+	
+	/***
+	 * one op is one insertion. includes the allocation of an empty filter per invocation.
+	 */
+	@Benchmark
+	@OperationsPerInvocation( 1000)
+	public CuckooFilter insert() throws Exception {
+		final CuckooFilter f = new CuckooFilter( 2 * 1000 / BUCKET_SIZE, BUCKET_SIZE, this.fpBits, null);
+		for ( int i = 0; i < 1000; i++) {
+			f.insert( this.items[i % this.nbrItems]);
+		}
+		return f;
+	}
+
+}
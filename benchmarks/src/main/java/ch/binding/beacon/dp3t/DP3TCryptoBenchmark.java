@@ -0,0 +1,104 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon.dp3t;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.binding.beacon.bench.BenchmarkSupport;
+
+/***
+ * DP-3T derivations: the EphIDs of a day from its secret key and the hash of an (EphID, epoch) pair.
+ * 
+ * @author carl
+ *
+ */
+@BenchmarkMode( Mode.Throughput)
+@OutputTimeUnit( TimeUnit.SECONDS)
+@Warmup( iterations = 3, time = 2)
+@Measurement( iterations = 5, time = 2)
+@Fork( 1)
+@State( Scope.Benchmark)
+public class DP3TCryptoBenchmark {
+	
+	private byte secretKey[];
+	private EphId ephId;
+	private EphId ephIds[];
+	private byte hashes[];
+	private byte ephIdsOfDay[];
+	
+	@Setup
+	public void setup() throws Exception {
+		// the static initializer of Crypto accesses the DP-3T database
+		BenchmarkSupport.useTemporaryDP3TDatabase();
+		
+		final Random rnd = new Random( 4711);
+		this.secretKey = BenchmarkSupport.randomBytes( rnd, 32);
+		this.ephId = new EphId( BenchmarkSupport.randomBytes( rnd, Crypto2.EPHID_LENGTH), Crypto2.getEpoch( System.currentTimeMillis()));
+		
+		// a day of EphIDs
+		this.ephIds = new EphId[ 96];
+		for ( int i = 0; i < this.ephIds.length; i++) {
+			this.ephIds[i] = new EphId( BenchmarkSupport.randomBytes( rnd, Crypto2.EPHID_LENGTH), this.ephId.getEpoch() + i);
+		}
+		this.hashes = new byte[ this.ephIds.length * SHA256Hasher.HASH_LENGTH];
+		this.ephIdsOfDay = new byte[ Crypto.EPHIDS_OF_DAY_LENGTH];
+	}
+	
+	/***
+	 * one op creates the NUMBER_OF_EPOCHS_PER_DAY EphIDs of a day.
+	 */
+	@Benchmark
+	public List<EphId> createEphIds() {
+		return Crypto.createEphIds( this.secretKey, false);
+	}
+	
+	/***
+	 * the same into a reused buffer, as the matcher does.
+	 */
+	@Benchmark
+	public byte[] createEphIdsInto() {
+		Crypto.createEphIds( this.secretKey, this.ephIdsOfDay, 0);
+		return this.ephIdsOfDay;
+	}
+	
+	@Benchmark
+	public byte[] getHash() throws Exception {
+		return Crypto2.getHash( this.ephId);
+	}
+	
+	/***
+	 * one op hashes the EphIDs of a day into a reused buffer.
+	 */
+	@Benchmark
+	public byte[] getHashes() {
+		SHA256Hasher.hashEphIds( this.ephIds, this.hashes, 0);
+		return this.hashes;
+	}
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon.dp3t;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.binding.beacon.bench.BenchmarkSupport;
+import ch.binding.beacon.utils.Clock;
+
+/***
+ * DP-3T matching of the scenario of Crypto.main(): 1000 published keys of 3 days ago, two encountered EphIDs 
+ * of each. one op matches all keys.
+ * 
+ * @author carl
+ *
+ */
+@BenchmarkMode( Mode.AverageTime)
+@OutputTimeUnit( TimeUnit.MILLISECONDS)
+@Warmup( iterations = 1, time = 2)
+@Measurement( iterations = 3, time = 2)
+@Fork( 1)
+@State( Scope.Benchmark)
+public class DP3TMatcherBenchmark {
+	
+	private static final int NBR_KEYS = 1000;
+	
+	/***
+	 * of the ForkJoinPool matching the days and key shards
+	 */
+	@Param( { "1", "4"})
+	public int parallelism;
+	
+	private ForkJoinPool pool;
+	private SQLiteEphIDMatcher matcher;
+	private List<SecretKey> keys;
+	
+	@Setup
+	public void setup() throws Exception {
+		BenchmarkSupport.useTemporaryDP3TDatabase();
+		
+		final Random rnd = new Random( 4711);
+		final int day = Crypto.getDayNumber( Clock.now()) - 3;
+		final KeyStore keyStore = new SQLKeyStore();
+		
+		this.keys = new ArrayList<SecretKey>( NBR_KEYS);
+		final ArrayList<KeyStore.ForeignEphId> encounters = new ArrayList<KeyStore.ForeignEphId>();
+		final byte ephIds[] = new byte[ Crypto.EPHIDS_OF_DAY_LENGTH];
+		for ( int i = 0; i < NBR_KEYS; i++) {
+			final SecretKey sk = new SecretKey( day, BenchmarkSupport.randomBytes( rnd, 32));
+			this.keys.add( sk);
+			
+			// two encounters with consecutive EphIDs of the key
+			Crypto.createEphIds( sk.getKey(), ephIds, 0);
+			final int epochOfDay = rnd.nextInt( Crypto.NUMBER_OF_EPOCHS_PER_DAY - 1);
+			final long ts = day * Crypto.ONE_DAY_MS + epochOfDay * Crypto.MILLISECONDS_PER_EPOCH;
+			for ( int e = 0; e < 2; e++) {
+				final int off = Crypto.ephIdOffset( epochOfDay + e);
+				final byte ephId[] = Arrays.copyOfRange( ephIds, off, off + Crypto.EPHID_LENGTH);
+				encounters.add( new KeyStore.ForeignEphId( new EphId( ephId), -50, ts + e * Crypto.MILLISECONDS_PER_EPOCH));
+			}
+		}
+		if ( !keyStore.storeForeignEphIds( encounters)) {
+			throw new IllegalStateException( "storing encounters failed");
+		}
+		
+		this.pool = new ForkJoinPool( this.parallelism);
+		this.matcher = new SQLiteEphIDMatcher( this.pool);
+		
+		final int n = this.matcher.matches( this.keys).size();
+		if ( n < 2 * NBR_KEYS) {
+			throw new IllegalStateException( "expected " + (2 * NBR_KEYS) + " matches, got " + n);
+		}
+	}
+	
+	@TearDown
+	public void tearDown() {
+		this.pool.shutdown();
+	}
+	
+	@Benchmark
+	public List<SQLiteEphIDMatcher.Match> matches() {
+		return this.matcher.matches( this.keys);
+	}
+
+}
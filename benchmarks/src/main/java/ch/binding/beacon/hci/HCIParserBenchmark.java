@@ -0,0 +1,110 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon.hci;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ch.binding.beacon.bench.BenchmarkSupport;
+import ch.binding.beacon.hci.LE_AdvertisingReport.ADV_NONCONN_IND_Report;
+import ch.binding.beacon.hci.LE_AdvertisingReport.AdvertisingReport;
+
+/***
+ * parsing of the checked-in hcidump traces and narrowing of the advertising reports found in them.
+ * 
+ * @author carl
+ *
+ */
+@BenchmarkMode( Mode.Throughput)
+@OutputTimeUnit( TimeUnit.SECONDS)
+@Warmup( iterations = 3, time = 2)
+@Measurement( iterations = 5, time = 2)
+@Fork( 1)
+@State( Scope.Benchmark)
+public class HCIParserBenchmark {
+	
+	@Param( { "hcidump.trace", "hcidump.trace.00", "hcidump.trace.01", "hcidump.trace.02", "hcidump.trace.04", "hcidump.trace.05"})
+	public String trace;
+	
+	private static final byte PDU_TYPES[] = { HCIParser.HCI_EVENT, HCIParser.HCI_COMMAND };
+	
+	private String fileName;
+	
+	/***
+	 * the advertising reports of the trace.
+	 */
+	private final ArrayList<LE_AdvertisingReport> reports = new ArrayList<LE_AdvertisingReport>();
+	
+	@Setup
+	public void setup() throws Exception {
+		this.fileName = BenchmarkSupport.getTraceFile( this.trace).getAbsolutePath();
+		
+		HCIParser.parseHCI( this.fileName, PDU_TYPES, new HCI_PDU_Handler() {
+			@Override
+			public boolean onPDU( HCI_PDU pdu) {
+				if ( pdu instanceof LE_AdvertisingReport) {
+					reports.add( (LE_AdvertisingReport) pdu);
+				}
+				return true;
+			}
+		});
+	}
+	
+	/***
+	 * one op is the parsing of the whole trace file.
+	 */
+	@Benchmark
+	public void parseHCI( final Blackhole bh) throws Exception {
+		HCIParser.parseHCI( this.fileName, PDU_TYPES, new HCI_PDU_Handler() {
+			@Override
+			public boolean onPDU( HCI_PDU pdu) {
+				bh.consume( pdu);
+				return true;
+			}
+		});
+	}
+	
+	/***
+	 * one op is the narrowing of all advertising reports of the trace, as done by Beacon.handle_LE_AdvertisingReport.
+	 */
+	@Benchmark
+	public void narrowAdvertisingReports( Blackhole bh) throws Exception {
+		for ( LE_AdvertisingReport advRep: this.reports) {
+			final int nbrReports = advRep.getNumberReports();
+			for ( int i = 0; i < nbrReports; i++) {
+				AdvertisingReport ar = advRep.getAdvertisingReport( i).parse();
+				if ( ar instanceof ADV_NONCONN_IND_Report) {
+					ar = ((ADV_NONCONN_IND_Report) ar).parse();
+				}
+				bh.consume( ar);
+			}
+		}
+	}
+
+}
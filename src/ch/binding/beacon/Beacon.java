@@ -19,15 +19,24 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Date;
+import java.util.function.Supplier;
 import java.util.Properties;
 import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -56,7 +65,16 @@ import ch.binding.beacon.hci.LE_AdvertisingReport.AdvertisingReport;
 import ch.binding.beacon.hci.LE_AdvertisingReport.ContactDetectionServiceReport;
 import ch.binding.beacon.hci.LE_AdvertisingReport.DP3TServiceReport;
 import ch.binding.beacon.hci.LE_AdvertisingReport.SCAN_RSP_Report;
+import ch.binding.beacon.jfr.PhaseTransitionEvent;
+import ch.binding.beacon.metrics.Counter;
+import ch.binding.beacon.metrics.Gauge;
+import ch.binding.beacon.metrics.Histogram;
+import ch.binding.beacon.metrics.MetricsRegistry;
+import ch.binding.beacon.utils.AsyncLogHandler;
+import ch.binding.beacon.utils.Clock;
+import ch.binding.beacon.utils.RateLimitedLog;
 
+import java.util.logging.ConsoleHandler;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -78,16 +96,30 @@ public class Beacon implements HCI_PDU_Handler, HCI_EventHandler {
 	 */
 	static final String PROPERTIES_FILE_NAME = "beacon.properties";
 	
-	static final String DB_FN = "/home/carl/workspace/beacon/sqlite/proximity_id_store.db";
+	/***
+	 * the proximity ID and key database. can be overridden with -Dbeacon.db=[file name], e.g. for simulations.
+	 */
+	static final String DB_FN = System.getProperty( "beacon.db", "/home/carl/workspace/beacon/sqlite/proximity_id_store.db");
 	
 	static String getDBFN() {
 		return DB_FN;
 	}
 	
 	/***
-	 * we save output of hcidump into a file when scanning for other beacons
+	 * we save output of hcidump into a file when scanning for other beacons. 
+	 * each scan window gets its own file: prefix.<window>.suffix
 	 */
-	static final String HCI_DUMP_FILE_NAME = "/tmp/hcidump_beacon.trace";
+	static final String HCI_DUMP_FILE_PREFIX = "/tmp/hcidump_beacon";
+	static final String HCI_DUMP_FILE_SUFFIX = ".trace";
+	
+	/***
+	 * 
+	 * @param window index of scan window
+	 * @return name of the hcidump trace file of the given scan window
+	 */
+	static String getHCIDumpFileName( long window) {
+		return HCI_DUMP_FILE_PREFIX + "." + Long.toString( window) + HCI_DUMP_FILE_SUFFIX;
+	}
 	
 	static final int UUID_HEX_LEN = "93 48 59 7e 81 a2 11 ea 97 22 90 61 ae c6 7c 30".length();
 	
@@ -177,8 +209,9 @@ public class Beacon implements HCI_PDU_Handler, HCI_EventHandler {
 	
 	/***
 	 * beacon can be advertising, scanning, or idling.
+	 * set on the phase thread, read from anywhere.
 	 */
-	private State state;
+	private volatile State state;
 	
 	public State getState() {
 		return this.state;
@@ -593,6 +626,12 @@ public class Beacon implements HCI_PDU_Handler, HCI_EventHandler {
 	}
 	
 	private static Logger logger = Logger.getLogger(Beacon.class.getName());
+	
+	private static final Histogram scriptLatency = MetricsRegistry.histogram( "beacon.script.latency.ms");
+	private static final Gauge scanDurationGauge = MetricsRegistry.gauge( "beacon.dutyCycle.scan.ms");
+	private static final Gauge periodGauge = MetricsRegistry.gauge( "beacon.dutyCycle.period.ms");
+	private static final Histogram purgeDuration = MetricsRegistry.histogram( "beacon.purge.duration.ms");
+	private static final Counter phaseFailures = MetricsRegistry.counter( "beacon.phase.failures");
 
 	// properties for the application
 	private static Properties appProps;
@@ -605,15 +644,24 @@ public class Beacon implements HCI_PDU_Handler, HCI_EventHandler {
 		return logger;
 	}
 	
+	/***
+	 * nbr of log records which can be buffered before records get dropped.
+	 */
+	private static final int LOG_BUFFER_CAPACITY = 8192;
+	
 	static {
 		
 		try {
 			
 			FileHandler fh = new FileHandler( Beacon.LOG_FILE_NAME);
-			logger.addHandler( fh);
 			SimpleFormatter formatter = new SimpleFormatter();  
 	        fh.setFormatter(formatter);  
 	        
+	        // formatting and writing of records is done by a background thread, 
+	        // also for the console which we otherwise get via the root logger.
+	        logger.addHandler( new AsyncLogHandler( LOG_BUFFER_CAPACITY, fh, new ConsoleHandler()));
+	        logger.setUseParentHandlers( false);
+	        
 		} catch (SecurityException | IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -622,20 +670,31 @@ public class Beacon implements HCI_PDU_Handler, HCI_EventHandler {
 		logger.setLevel( Level.ALL);
 	}
 	
+	/***
+	 * one log per contact detection report. at most so many per second.
+	 */
+	private static final RateLimitedLog cdsrLog = new RateLimitedLog( logger, 20);
+	
+	/***
+	 * output of the scripts we run. at most so many lines per second.
+	 */
+	private static final RateLimitedLog scriptOutputLog = new RateLimitedLog( logger, 200);
+	
 	/***
 	 * we have seen during scanning or during advertising an incoming LE_AdvertisingReport event which
 	 * we take apart further as it may contain multiple AdvertisingReports.
 	 * 
 	 * @param advRep LE_AdvertisingReport	  
-	 * @param timeOfCapture
+	 * @param timeOfCapture time-stamp, milli-secs
+	 * @param aggregator if not null, encounters are aggregated instead of being stored right away.
 	 * 
 	 * @return success/failure
 	 */
-	private boolean handle_LE_AdvertisingReport( LE_AdvertisingReport advRep, Date timeOfCapture) {
+	boolean handle_LE_AdvertisingReport( LE_AdvertisingReport advRep, long timeOfCapture, EncounterAggregator aggregator) {
 		
 		if ( this.getAppType() == Beacon.AppType.I_BEACON)
 			return true;
-		if ( this.idStore == null) {
+		if ( aggregator == null && this.idStore == null) {
 			logger.warning( "no ID store when handling LE_AdvertisingReport");
 			return false;
 		}
@@ -661,14 +720,25 @@ public class Beacon implements HCI_PDU_Handler, HCI_EventHandler {
 						// finally we got a contact detection event...
 						final ContactDetectionServiceReport cdsr = (ContactDetectionServiceReport) advNonConnIndRep;
 						
-						String cdsrPayload = cdsr.getContactDetectionService().toHex( true);
+						final ContactDetectionService cds = cdsr.getContactDetectionService();
 						int rssi = cdsr.getRSSI();
 													
-						String serviceData = cdsr.getContactDetectionService().serviceDataToHex();
+						String serviceData = cds.serviceDataToHex();
 						
-						logger.info( String.format( "cdsr: %s %s %d", timeOfCapture.toString(), cdsrPayload, rssi));
+						// formatted in the background, if at all
+						cdsrLog.info( "cdsr: {0} {1} {2}", RateLimitedLog.plain( new Date( timeOfCapture)), 
+								RateLimitedLog.lazy( new Supplier<String>() {
+									@Override
+									public String get() {
+										return cds.toHex( true);
+									}
+								}), RateLimitedLog.plain( rssi));
 						
-						this.idStore.store( serviceData, rssi, timeOfCapture);
+						if ( aggregator != null) {
+							aggregator.add( serviceData, rssi, timeOfCapture);
+						} else {
+							this.idStore.store( serviceData, rssi, new Date( timeOfCapture));
+						}
 						
 					} else if ( advNonConnIndRep instanceof DP3TServiceReport) {
 						// DP3T protocol
@@ -699,9 +769,7 @@ public class Beacon implements HCI_PDU_Handler, HCI_EventHandler {
 		
 		if ( pdu instanceof LE_AdvertisingReport) {
 			
-			Date timeOfCapture = new Date( pdu.getTimeOfCapture());
-			
-			return this.handle_LE_AdvertisingReport( (LE_AdvertisingReport) pdu, timeOfCapture);
+			return this.handle_LE_AdvertisingReport( (LE_AdvertisingReport) pdu, pdu.getTimeOfCapture(), null);
 		
 		}
 		
@@ -721,8 +789,8 @@ public class Beacon implements HCI_PDU_Handler, HCI_EventHandler {
 		} else if ( evt instanceof HCI_ConnectionComplete) {
 		} else if ( evt instanceof LE_AdvertisingReport) {
 			final LE_AdvertisingReport le_ar = (LE_AdvertisingReport) evt;
-			Date timeOfCapture = new Date(); // current time
-			return this.handle_LE_AdvertisingReport( le_ar, timeOfCapture);
+			final long timeOfCapture = Clock.now(); // current time
+			return this.handle_LE_AdvertisingReport( le_ar, timeOfCapture, null);
 		} else {
 			logger.warning( "unhandled event: " + evt.toString());
 		}
@@ -783,82 +851,207 @@ public class Beacon implements HCI_PDU_Handler, HCI_EventHandler {
 		
 	}
 	
+	/***
+	 * max. time we give a script to terminate before we kill it. milli-secs
+	 */
+	private static final long SCRIPT_TIMEOUT = 15*1000; // msecs
+	
+	/***
+	 * once the script has terminated, how long do we wait for its stdout/stderr to be drained? milli-secs
+	 * children of the script which were launched into the background (hcidump, hcitool) may hold on to the pipes.
+	 */
+	private static final long SCRIPT_DRAIN_TIMEOUT = 1000; // msecs
+	
+	/***
+	 * small pool of daemon threads which consume stdout & stderr of the script sub-processes while they are running.
+	 * we need at most two threads per running script.
+	 */
+	private static final ExecutorService scriptIOExecutor = Executors.newCachedThreadPool( new ThreadFactory() {
+		
+		private final AtomicInteger count = new AtomicInteger();
+		
+		@Override
+		public Thread newThread( Runnable r) {
+			Thread t = new Thread( r, "beacon-script-io-" + count.incrementAndGet());
+			t.setDaemon( true);
+			return t;
+		}
+	});
+	
+	/***
+	 * consumes the stdout of a script as it arrives. "> HCI Event" responses are handed to handleHCIEvent()
+	 * and the event handler, all other lines to the line handler.
+	 */
+	private static class ScriptStdOutConsumer implements Runnable {
+		
+		private final BufferedReader in;
+		private final HCI_EventHandler eventHandler;
+		private final ScriptLineHandler lineHandler;
+		
+		ScriptStdOutConsumer( InputStream in, HCI_EventHandler eventHandler, ScriptLineHandler lineHandler) {
+			super();
+			this.in = new BufferedReader( new InputStreamReader( in));
+			this.eventHandler = eventHandler;
+			this.lineHandler = lineHandler;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				String s = null;
+				StringBuffer sb = null;
+				
+				while ((s = this.in.readLine()) != null) {
+					
+					scriptOutputLog.fine( "stdout: {0}", s);
+	
+					// responses from hcitool start with an "> HCI Event:" string, followed by some length indication 
+					// HCI Events are split across two lines... it seems
+					// otherwise we can detect the end of an HCI Event by using some length value which comes along on the first line
+					if (s.startsWith("> HCI Event:")) {
+						sb = new StringBuffer(s);
+					} else {
+						if (sb != null) {
+							sb.append(s);		
+							HCI_Event evt = handleHCIEvent( sb.toString());
+							// callback for the event
+							if ( evt != null && this.eventHandler != null) {
+								this.eventHandler.onEvent( evt);
+							}
+							sb = null;							
+						} else {
+							if ( this.lineHandler != null) {
+								this.lineHandler.onStdOutLine( s);
+							}
+						}
+					}
+				}
+			} catch ( IOException e) {
+				logger.severe( "runScript: stdout: " + e.getMessage());
+			} finally {
+				try {
+					this.in.close();
+				} catch ( IOException e) {}
+			}
+		}
+	}
+	
+	/***
+	 * consumes the stderr of a script as it arrives.
+	 */
+	private static class ScriptStdErrConsumer implements Runnable {
+		
+		private final BufferedReader in;
+		private final ScriptLineHandler lineHandler;
+		
+		ScriptStdErrConsumer( InputStream in, ScriptLineHandler lineHandler) {
+			super();
+			this.in = new BufferedReader( new InputStreamReader( in));
+			this.lineHandler = lineHandler;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				String s = null;
+				
+				while ((s = this.in.readLine()) != null) {
+					
+					scriptOutputLog.fine( "stderr: {0}", s);
+					
+					if ( s.contains( "Connection timed out") ||
+						 s.contains( "Network is down")) {
+						logger.severe( "BLE hardware hung-up? " + s);
+						System.exit( -1);
+					}
+					
+					if ( this.lineHandler != null)
+						this.lineHandler.onStdErrLine( s);
+				}
+			} catch ( IOException e) {
+				logger.severe( "runScript: stderr: " + e.getMessage());
+			} finally {
+				try {
+					this.in.close();
+				} catch ( IOException e) {}
+			}
+		}
+	}
+	
+	/***
+	 * stands in for the scripts, e.g. in a simulation. null to run the scripts as sub-processes.
+	 */
+	private static ScriptRunner scriptRunner = null;
+	
+	static void setScriptRunner( ScriptRunner runner) {
+		Beacon.scriptRunner = runner;
+	}
+	
 	/***
 	 * to run a shell script passing it the name of the script and a bunch of environment variables.
 	 * we expect the shell script to contain hcitool commands which return a bunch of command-complete events.
 	 * evidently this is all pretty clumsy and gross. but that's the way I could tame bluez on Linux for now.
 	 * 
+	 * stdout and stderr of the script are consumed asynchronously while the script runs, so a chatty
+	 * script cannot fill up the pipes and events are handled as they arrive. scripts which do not
+	 * terminate within SCRIPT_TIMEOUT are killed.
+	 * 
 	 * @param script
 	 * @param envVars array of strings passed to the script as environment variables, format is "ENV_VAR_NAME=value"
-	 * @param eventHandler up-call for specialized event handling.
-	 * @param lineHandler to handle all lines which are not part of an "> HCI Event" response string from HCI.
+	 * @param eventHandler up-call for specialized event handling. called on a script I/O thread.
+	 * @param lineHandler to handle all lines which are not part of an "> HCI Event" response string from HCI. called on a script I/O thread.
 	 * 
 	 * @return success/failure
 	 */
 	private static boolean runScript( String script, String [] envVars, 
 			HCI_EventHandler eventHandler, ScriptLineHandler lineHandler) {
 		
+		if ( scriptRunner != null) {
+			return scriptRunner.runScript( script, envVars, eventHandler, lineHandler);
+		}
+		
+		final long startTime = System.nanoTime();
+		
 		try {
 			Process process = Runtime.getRuntime().exec(script, envVars);
 			
-			int exitStatus = process.waitFor();
-			if ( exitStatus < 0) {
-				logger.severe( "runCommands: process exit status: " + String.valueOf( exitStatus));
-			}
+			Future<?> stdOut = scriptIOExecutor.submit( new ScriptStdOutConsumer( process.getInputStream(), eventHandler, lineHandler));
+			Future<?> stdErr = scriptIOExecutor.submit( new ScriptStdErrConsumer( process.getErrorStream(), lineHandler));
 			
-			BufferedReader stdInput = new BufferedReader(new InputStreamReader(process.getInputStream()));
-			BufferedReader stdError = new BufferedReader(new InputStreamReader(process.getErrorStream()));
+			boolean status = true;
 			
-			String s = null;
-			StringBuffer sb = null;				
-			
-			while ((s = stdInput.readLine()) != null) {
-				
-				System.err.println( "stdout: " + s);
-
-				// responses from hcitool start with an "> HCI Event:" string, followed by some length indication 
-				// HCI Events are split across two lines... it seems
-				// otherwise we can detect the end of an HCI Event by using some length value which comes along on the first line
-				if (s.startsWith("> HCI Event:")) {
-					sb = new StringBuffer(s);
-				} else {
-					if (sb != null) {
-						sb.append(s);		
-						HCI_Event evt = handleHCIEvent( sb.toString());
-						// callback for the event
-						if ( evt != null && eventHandler != null) {
-							eventHandler.onEvent( evt);
-						}
-						sb = null;							
-					} else {
-						if ( lineHandler != null) {
-							lineHandler.onStdOutLine( s);
-						}
-					}
+			if ( !process.waitFor( SCRIPT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				logger.severe( String.format( "runScript: %s did not terminate within %d ms, killing it", script, SCRIPT_TIMEOUT));
+				process.destroyForcibly();
+				process.waitFor( SCRIPT_DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
+				status = false;
+			} else {
+				final int exitStatus = process.exitValue();
+				if ( exitStatus != 0) {
+					logger.warning( "runScript: process exit status: " + String.valueOf( exitStatus));
 				}
 			}
 			
-			while ((s = stdError.readLine()) != null) {
-				
-               System.err.println( "stderr: " + s);
-               
-               if ( s.contains( "Connection timed out") ||
-            		s.contains( "Network is down")) {
-            	   logger.severe( "BLE hardware hung-up? " + s);
-            	   System.exit( -1);
-               }
-               
-               if ( lineHandler != null)
-            	   lineHandler.onStdErrLine( s);
-			}	
+			// the output has been handled once the consumers see EOF.
+			try {
+				stdOut.get( SCRIPT_DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
+				stdErr.get( SCRIPT_DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
+			} catch ( TimeoutException e) {
+				// some background child still holds on to the pipes. the consumers keep draining them.
+				logger.info( "runScript: output of " + script + " still open after script termination");
+			}
+			
+			final long latency = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - startTime);
+			scriptLatency.record( latency);
+			logger.info( String.format( "runScript: %s took %d ms", script, latency));
+			
+			return status;
 	
 		} catch (Exception e) {
 			logger.severe( "runCommands: " + e.getMessage());
 			e.printStackTrace();
 			return false;
 		}
-		
-		return true;
 	}
 	
 	
@@ -958,8 +1151,7 @@ public class Beacon implements HCI_PDU_Handler, HCI_EventHandler {
 		return sb.toString();
 	}	
 
-	static class BeaconOn extends TimerTask 
-	implements HCI_EventHandler {
+	static class BeaconOn implements Runnable, HCI_EventHandler {
 	
 		private Beacon beacon = null;
 		
@@ -1156,7 +1348,7 @@ public class Beacon implements HCI_PDU_Handler, HCI_EventHandler {
 			if ( Crypto.VERSION == 1) {			
 								
 				try {
-					final long dayNbr = Crypto.getDayNumber( System.currentTimeMillis());
+					final long dayNbr = Crypto.getDayNumber( Clock.now());
 					final char timeInterval = Crypto.getTimeIntervalNumber( dayNbr);
 					
 					logger.info( "BeaconOn: dayNbr: " + String.valueOf( dayNbr) + ", timeInterval: " + String.valueOf( (int) timeInterval));
@@ -1181,21 +1373,21 @@ public class Beacon implements HCI_PDU_Handler, HCI_EventHandler {
 				}
 			}
 			
-			this.beacon.setStartTime( System.currentTimeMillis());
+			this.beacon.setStartTime( Clock.now());
 			
 			this.turnBeaconOn( rollingProxyID);		
 			this.beacon.setState( State.ADVERTISING);
 			
 			
-			// schedule the task to turn beacon off			
-			BeaconOff beaconOffTask = new BeaconOff( this.beacon);	
-			this.beacon.beaconTimer.schedule( beaconOffTask, Beacon.getBeaconAdvertisingDuration());
+			// schedule the task to turn beacon off, relative to the scheduled start of the cycle
+			final long beaconOffTS = this.beacon.getCycleStart() + this.beacon.getCycleDutyCycle().advertising;
+			this.beacon.schedulePhase( new BeaconOff( this.beacon), beaconOffTS, State.ADVERTISING);
 			
 		}
 		
 	}
 	
-	static class BeaconIdle extends TimerTask {
+	static class BeaconIdle implements Runnable {
 		
 		Beacon beacon;
 		
@@ -1225,22 +1417,9 @@ public class Beacon implements HCI_PDU_Handler, HCI_EventHandler {
 			final String cmd = "./scripts/kill_hcidump";
 			
 			boolean status = runScript( cmd, envVars, null, null);
-					
-			// try to parse the dump file...
-			try {
-				
-				String fn = HCI_DUMP_FILE_NAME;
-				byte pduTypes[] = { HCIParser.HCI_EVENT /*, HCIParser.HCI_COMMAND */ };
-				
-				logger.info( String.format( "parsing hcidump trace: %s", fn));
-				
-				// callback is Beacon.onPDU()
-				status = HCIParser.parseHCI( fn, pduTypes, beacon);	
-				
-			} catch ( Exception e) {
-				logger.severe( "failure in parsing dump trace: " + e.getMessage());
-				e.printStackTrace();
-			}
+			
+			this.beacon.setHCIDumpPID( null);
+			this.beacon.setHCIToolPID( null);
 			
 		}
 		
@@ -1254,6 +1433,10 @@ public class Beacon implements HCI_PDU_Handler, HCI_EventHandler {
 			this.turnScanningOff();
 			this.beacon.setState( State.IDLE);
 			
+			// parsing the trace, storing the encounters and purging the stores is done by the scan pipeline
+			// while the radio goes on with the next cycle.
+			this.beacon.processScanWindow();
+			
 			// we only set a flag to change address since this can only be done when Bluetooth is idle....
 			// and now can test the flag and do it...
 			if ( this.beacon.getChangeAddressFlag()) {
@@ -1276,31 +1459,14 @@ public class Beacon implements HCI_PDU_Handler, HCI_EventHandler {
 						
 			}
 			
-			// when we go idle we attempt to purge the stores.
-			this.beacon.purge();
-			
-			// schedule the beaconOnTask to start advertising again.
-			
-			// how long where we busy?
-			long busyDuration = System.currentTimeMillis() - this.beacon.getStartTime();
-			assert( busyDuration > 0);
-			long idleDuration = Beacon.getBeaconPeriod() - busyDuration;
-			
-			if ( idleDuration <= 0) {			
-				logger.info( "no time to idle: idleDuration <= 0: " + Long.toString( idleDuration));
-				idleDuration = 0;
-			}
-		
-			BeaconOn beaconOnTask = new BeaconOn( this.beacon);	
-			this.beacon.beaconTimer.schedule( beaconOnTask, idleDuration);
-			
+			// schedule the beaconOnTask to start advertising again, at the next slot of the fixed-rate schedule.
+			this.beacon.scheduleNextCycle();
 			
 		}
 		
 	}
 	
-	static class BeaconOff extends TimerTask
-	implements ScriptLineHandler {
+	static class BeaconOff implements Runnable, ScriptLineHandler {
 		
 		private Beacon beacon;
 		
@@ -1337,10 +1503,10 @@ public class Beacon implements HCI_PDU_Handler, HCI_EventHandler {
 		 * Evidently a better interface to BLE would help, but do I want to figure out the BlueZ sources to extract the useful
 		 * C code and possibly make it callable from Java???
 		 */
-		private void turnScanningOn() {
+		private void turnScanningOn( String traceFileName) {
 			
 			final String envVars[] = { 
-					"HCI_DUMP_TRACE_FN=" + HCI_DUMP_FILE_NAME
+					"HCI_DUMP_TRACE_FN=" + traceFileName
 			};
 			
 			final String cmd = "./scripts/launch_hcidump";
@@ -1403,13 +1569,22 @@ public class Beacon implements HCI_PDU_Handler, HCI_EventHandler {
 			logger.info( "BeaconOff");	
 			
 			
-			turnBeaconOff();				
-			turnScanningOn();
-			this.beacon.setState( State.SCANNING);
+			turnBeaconOff();
+			
+			// each scan window is traced into a file of its own. if the scan pipeline is full, we do not scan.
+			final String traceFileName = this.beacon.startScanWindow();
+			
+			if ( traceFileName != null) {
+				turnScanningOn( traceFileName);
+				this.beacon.setState( State.SCANNING);
+			} else {
+				this.beacon.setState( State.IDLE);
+			}
 						
 			// schedule the idling task.
-			BeaconIdle beaconIdleTask = new BeaconIdle( this.beacon);
-			this.beacon.beaconTimer.schedule( beaconIdleTask, Beacon.getBeaconScanningDuration());
+			final DutyCycleController.DutyCycle dutyCycle = this.beacon.getCycleDutyCycle();
+			final long beaconIdleTS = this.beacon.getCycleStart() + dutyCycle.advertising + dutyCycle.scanning;
+			this.beacon.schedulePhase( new BeaconIdle( this.beacon), beaconIdleTS, State.SCANNING);
 
 		}		
 	}
@@ -1419,7 +1594,7 @@ public class Beacon implements HCI_PDU_Handler, HCI_EventHandler {
 	 * which are to generate a new proximity identifier and to generate a new random address.
 	 *
 	 */
-	private static class RollingProximityGenerationIndicator extends TimerTask {
+	private static class RollingProximityGenerationIndicator implements Runnable {
 		
 		private Beacon beacon = null;
 		
@@ -1439,42 +1614,300 @@ public class Beacon implements HCI_PDU_Handler, HCI_EventHandler {
 		
 	}
 	
-	// after RTFM regd. timers: we have to timers i.e. threads which schedule multiple tasks
+	/***
+	 * names the threads of the beacon executors so they can be told apart in thread dumps.
+	 */
+	private static class BeaconThreadFactory implements ThreadFactory {
+		
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+		
+		BeaconThreadFactory( String prefix) {
+			super();
+			this.prefix = prefix;
+		}
+		
+		@Override
+		public Thread newThread( Runnable r) {
+			return new Thread( r, this.prefix + "-" + count.incrementAndGet());
+		}
+	}
+	
+	/***
+	 * max. nbr of scan windows which have been scanned but not yet parsed and stored.
+	 */
+	private static final int MAX_PENDING_SCAN_WINDOWS = 4;
 	
 	/***
-	 * timer thread scheduling periodic tasks to trigger generation of new proximity IDs
-	 * and BT random addresses
-	**/
-	private Timer rollingProximityGenerationTimer = null;
+	 * how often we write a snapshot of the metrics, milli-secs
+	 */
+	private static final long METRICS_SNAPSHOT_INTERVAL = 60 * 1000;
 	
 	/**
-	 * the main timer thread which schedules the advertising, scanning and idling tasks in
-	 * a round-robin fashion.
+	 * the phase thread which runs the advertising, scanning and idling transitions in
+	 * a round-robin fashion. it also schedules the periodic task to trigger generation of new 
+	 * proximity IDs and BT random addresses. it only ever controls the radio and must not block
+	 * on parsing or storage.
 	 */
-	private Timer beaconTimer = null;
+	private ScheduledExecutorService phaseExecutor = null;
+	
+	/***
+	 * parses the hcidump traces, stores encounters and purges the stores in the background.
+	 */
+	private ScanPipeline scanPipeline = null;
+	
+	/***
+	 * index of the current scan window
+	 */
+	private long scanWindow = 0;
+	
+	/***
+	 * hcidump trace file of the current scan window or null if the window is not scanned.
+	 */
+	private String scanWindowTraceFileName = null;
+	
+	/***
+	 * adapts scan window and period to the observed encounter density.
+	 */
+	private DutyCycleController dutyCycleController = null;
+	
+	/***
+	 * scheduled (not actual) start time-stamp of the current beacon cycle. milli-secs
+	 */
+	private long cycleStart = 0;
+	
+	/***
+	 * durations of the current beacon cycle. fixed for the duration of the cycle.
+	 */
+	private DutyCycleController.DutyCycle cycleDutyCycle = null;
+	
+	long getCycleStart() {
+		return this.cycleStart;
+	}
+	
+	DutyCycleController.DutyCycle getCycleDutyCycle() {
+		return this.cycleDutyCycle;
+	}
+	
+	/***
+	 * per phase count of transitions which came late because the phase took longer than its slot.
+	 * indexed by State.ordinal()
+	 */
+	private final AtomicLongArray phaseOverruns = new AtomicLongArray( State.values().length);
+	
+	/***
+	 * 
+	 * @param s a phase of the beacon cycle
+	 * @return how often the given phase has overrun its slot
+	 */
+	public long getPhaseOverruns( State s) {
+		return this.phaseOverruns.get( s.ordinal());
+	}
+	
+	/***
+	 * runs a phase transition and records it as a JFR event. the event is only filled in when it is 
+	 * going to be committed, i.e. when a recording is active and the event is enabled.
+	 */
+	private static class RecordedTransition implements Runnable {
+		
+		private final Beacon beacon;
+		private final Runnable transition;
+		private final long dueTS;
+		
+		RecordedTransition( Beacon beacon, Runnable transition, long dueTS) {
+			super();
+			this.beacon = beacon;
+			this.transition = transition;
+			this.dueTS = dueTS;
+		}
+		
+		@Override
+		public void run() {
+			final PhaseTransitionEvent evt = new PhaseTransitionEvent();
+			if ( !evt.isEnabled()) {
+				this.runTransition();
+				return;
+			}
+			
+			final long cycleStart = this.beacon.getCycleStart();
+			final long startTS = Clock.now();
+			evt.begin();
+			try {
+				this.runTransition();
+			} finally {
+				evt.end();
+				if ( evt.shouldCommit()) {
+					evt.transition = this.transition.getClass().getSimpleName();
+					evt.state = this.beacon.getState().name();
+					evt.cycleStart = cycleStart;
+					evt.lateness = Math.max( 0, startTS - this.dueTS);
+					evt.commit();
+				}
+			}
+		}
+		
+		/***
+		 * the phases schedule their successor last. if a phase throws, the executor would keep the exception
+		 * in a future nobody reads and the cycle would stop: we log it, end a scan window left open and go on 
+		 * with the next cycle.
+		 */
+		private void runTransition() {
+			try {
+				this.transition.run();
+			} catch ( RuntimeException e) {
+				phaseFailures.inc();
+				logger.log( Level.SEVERE, "phase transition " + this.transition.getClass().getSimpleName() + " failed", e);
+				try {
+					this.beacon.endScanWindow();
+				} catch ( RuntimeException e2) {
+					logger.log( Level.SEVERE, "failure to end the scan window", e2);
+				}
+				if ( !this.beacon.phaseExecutor.isShutdown()) {
+					this.beacon.scheduleNextCycle();
+				}
+			}
+		}
+	}
+	
+	/***
+	 * to schedule a phase transition at an absolute time-stamp on the phase thread. if we are already past 
+	 * the time-stamp, the preceding phase has overrun its slot: we count the overrun and transition right away.
+	 * 
+	 * @param transition task to run
+	 * @param dueTS time-stamp at which the transition is due, milli-secs
+	 * @param phase the phase which ends with this transition
+	 */
+	void schedulePhase( Runnable transition, long dueTS, State phase) {
+		long delay = dueTS - Clock.now();
+		if ( delay < 0) {
+			final long overruns = this.phaseOverruns.incrementAndGet( phase.ordinal());
+			MetricsRegistry.counter( "beacon.phase.overruns." + phase.name()).inc();
+			logger.warning( String.format( "phase %s overran by %d ms, %d overruns", phase, -delay, overruns));
+			delay = 0;
+		}
+		this.phaseExecutor.schedule( new RecordedTransition( this, transition, dueTS), Clock.getClock().toWallDelay( delay), TimeUnit.MILLISECONDS);
+	}
+	
+	/***
+	 * to schedule the start of the next beacon cycle. a cycle starts at the scheduled start of the previous
+	 * one plus its period, so that the period does not drift. the next cycle uses whatever duty cycle the
+	 * controller currently proposes. if the idle phase has overrun into the next cycle, we skip whole periods.
+	 */
+	void scheduleNextCycle() {
+		final long now = Clock.now();
+		long next = this.cycleStart + this.cycleDutyCycle.period;
+		
+		this.cycleDutyCycle = this.dutyCycleController.getDutyCycle();
+		final long period = this.cycleDutyCycle.period;
+		scanDurationGauge.set( this.cycleDutyCycle.scanning);
+		periodGauge.set( period);
+		
+		if ( next < now) {
+			final long skipped = (now - next + period - 1) / period;
+			next += skipped * period;
+			final long overruns = this.phaseOverruns.incrementAndGet( State.IDLE.ordinal());
+			MetricsRegistry.counter( "beacon.phase.overruns." + State.IDLE.name()).inc();
+			logger.warning( String.format( "phase %s overran, skipping %d cycle(s), %d overruns", State.IDLE, skipped, overruns));
+		}
+		
+		this.cycleStart = next;
+		this.phaseExecutor.schedule( new RecordedTransition( this, new BeaconOn( this), next), Clock.getClock().toWallDelay( next - now), TimeUnit.MILLISECONDS);
+	}
+	
+	/***
+	 * to start a new scan window. called on the phase thread.
+	 * 
+	 * @return name of the file to trace the window into or null if the scan pipeline is full and the window
+	 * is not to be scanned.
+	 */
+	String startScanWindow() {
+		this.scanWindow++;
+		if ( !this.scanPipeline.tryReserve()) {
+			this.dutyCycleController.onScanWindowSkipped();
+			this.scanWindowTraceFileName = null;
+		} else {
+			this.scanWindowTraceFileName = getHCIDumpFileName( this.scanWindow);
+		}
+		return this.scanWindowTraceFileName;
+	}
+	
+	/***
+	 * hands the trace of the scan window which just ended to the scan pipeline. called on the phase thread.
+	 */
+	void processScanWindow() {
+		if ( this.scanWindowTraceFileName == null) {
+			return;
+		}
+		this.scanPipeline.submit( new ScanPipeline.TraceSegment( this.scanWindow, this.scanWindowTraceFileName, this.cycleDutyCycle.scanning));
+		this.scanWindowTraceFileName = null;
+	}
+	
+	/***
+	 * ends a scan window left open by a failed phase: scanning is turned off and the trace written so far is 
+	 * handed to the scan pipeline. if there is no trace, the window's reservation is given back. called on the 
+	 * phase thread.
+	 */
+	void endScanWindow() {
+		new BeaconIdle( this).turnScanningOff();
+		this.setState( State.IDLE);
+		if ( this.scanWindowTraceFileName == null) {
+			return;
+		}
+		if ( new File( this.scanWindowTraceFileName).exists()) {
+			this.processScanWindow();
+		} else {
+			this.scanPipeline.release();
+			this.scanWindowTraceFileName = null;
+		}
+	}
+	
+	/***
+	 * stores the encounters of a scan window. called on the scan pipeline thread.
+	 * @param aggregator the aggregated encounters
+	 * @return success/failure
+	 */
+	boolean storeEncounters( EncounterAggregator aggregator) {
+		if ( this.idStore == null) {
+			return true;
+		}
+		if ( !this.idStore.store( aggregator.getEncounters())) {
+			logger.warning( "failure to store encounters");
+			return false;
+		}
+		return true;
+	}
 	
 		
-	private void loop() {
+	void loop() {
 		
 		// the very first thing we do is to change BT address if needed
 		if ( this.useRandomAddr()) {
 			this.changeBTAddress();
 		}
 	
+		this.phaseExecutor = Executors.newSingleThreadScheduledExecutor( new BeaconThreadFactory( "beacon-phase"));
+		
+		this.dutyCycleController = new DutyCycleController( Beacon.getBeaconAdvertisingDuration(), Beacon.getBeaconScanningDuration(), 
+				Beacon.getBeaconPeriod(), Beacon.getProps());
+		
+		this.scanPipeline = new ScanPipeline( this, MAX_PENDING_SCAN_WINDOWS, this.dutyCycleController);
+		this.scanPipeline.start();
+		
+		MetricsRegistry.startSnapshots( MetricsRegistry.SNAPSHOT_FILE_NAME, METRICS_SNAPSHOT_INTERVAL);
 		
 		// schedule the BeaconOnTask which will then start the beacon cycle.
-		this.beaconTimer = new Timer();
-		BeaconOn beaconOnTask = new BeaconOn( this);		
-		this.beaconTimer.schedule( beaconOnTask, 0);
+		this.cycleStart = Clock.now();
+		this.cycleDutyCycle = this.dutyCycleController.getDutyCycle();
+		this.phaseExecutor.schedule( new RecordedTransition( this, new BeaconOn( this), this.cycleStart), 0, TimeUnit.MILLISECONDS);
 				
 		// a periodic task to indicate change of BT address and renewal of proximity ID.
 		// the interval is 10 minutes which if scheduling were real-time should cause distinct
 		// ENINs to be used in proximity ID generation.
-		this.rollingProximityGenerationTimer = new Timer();	
-		TimerTask indicatorTask = new RollingProximityGenerationIndicator( this);	
+		Runnable indicatorTask = new RollingProximityGenerationIndicator( this);	
 		
-		// (task, delay in milli-seconds, period in milli-seconds). note that we are not scheduling on ENIN boundaries...		
-		this.rollingProximityGenerationTimer.scheduleAtFixedRate( indicatorTask, ROLLING_PROXIMITY_INTERVAL, ROLLING_PROXIMITY_INTERVAL);
+		// (task, delay, period). note that we are not scheduling on ENIN boundaries...		
+		final long indicatorPeriod = Clock.getClock().toWallDelay( ROLLING_PROXIMITY_INTERVAL);
+		this.phaseExecutor.scheduleAtFixedRate( indicatorTask, indicatorPeriod, indicatorPeriod, TimeUnit.MILLISECONDS);
 	
 	}
 	
@@ -1628,7 +2061,8 @@ public class Beacon implements HCI_PDU_Handler, HCI_EventHandler {
 	 */
 	void purge() {
 				
-		long now = System.currentTimeMillis();
+		final long startTS = System.currentTimeMillis();
+		long now = Clock.now();
 		
 		// when sending out I_BEACON we do change the UUID based on temp exposure keys
 		// and thus need to purge these occasionally....
@@ -1637,23 +2071,24 @@ public class Beacon implements HCI_PDU_Handler, HCI_EventHandler {
 		}
 		
 		// when in I_BEACON MODE, we don't store any IDs...
-		if ( this.getAppType() == Beacon.AppType.I_BEACON) {
-			return;
-		}
+		if ( this.getAppType() != Beacon.AppType.I_BEACON) {
 		
-		if ( now - getPurgedEphemeralIDsTS() > getPurgeEphemeralIDsInterval()) {
-			purgeEphemeralIDs( now);			
+			if ( now - getPurgedEphemeralIDsTS() > getPurgeEphemeralIDsInterval()) {
+				purgeEphemeralIDs( now);			
+			}
+			
+			if ( now - getPurgedObsoleteExposureIDsTS() > getPurgeExpIDsInterval()) {
+				purgeObsoleteExposureIDs( now);
+			}
 		}
 		
-		if ( now - getPurgedObsoleteExposureIDsTS() > getPurgeExpIDsInterval()) {
-			purgeObsoleteExposureIDs( now);
-		}
+		purgeDuration.record( System.currentTimeMillis() - startTS);
 	}
 
 	/***
 	 * time-stamp of Becaon cycle start
 	 */
-	private long startTime = System.currentTimeMillis();
+	private long startTime = Clock.now();
 	
 	/***
 	 * to set the time-stamp of Beacon cycle start
@@ -1700,6 +2135,30 @@ public class Beacon implements HCI_PDU_Handler, HCI_EventHandler {
 		return this.hciDumpPID;
 	}
 		
+	/***
+	 * to load the application properties from the given directory and hand them to Crypto.
+	 * 
+	 * @param dir directory containing PROPERTIES_FILE_NAME
+	 * @return success/failure
+	 */
+	static boolean loadProperties( String dir) {
+		
+		Beacon.appProps = new Properties();
+		
+		try {
+			final String pfn = dir + File.separator + PROPERTIES_FILE_NAME;			
+			Beacon.appProps.load(new FileInputStream( pfn));
+			
+			Crypto.setProperties(appProps, pfn);
+			
+		} catch (IOException e) {
+			logger.severe( "exception with properties: " + e.getMessage());
+			e.printStackTrace();
+			return false;
+		}
+		return true;
+	}
+	
 	public static void main(String[] args) {
 		
 		
@@ -1733,17 +2192,7 @@ public class Beacon implements HCI_PDU_Handler, HCI_EventHandler {
 		logger.info( "current working directory: " + cwd);	
 		
 				
-		Beacon.appProps = new Properties();
-		
-		try {
-			final String pfn = cwd + File.separator + PROPERTIES_FILE_NAME;			
-			Beacon.appProps.load(new FileInputStream( pfn));
-			
-			Crypto.setProperties(appProps, pfn);
-			
-		} catch (IOException e) {
-			logger.severe( "exception with properties: " + e.getMessage());
-			e.printStackTrace();
+		if ( !Beacon.loadProperties( cwd)) {
 			System.exit(-1);
 		}
 		
@@ -1776,10 +2225,14 @@ public class Beacon implements HCI_PDU_Handler, HCI_EventHandler {
 		}
 		
 		try {
-			String fn = Beacon.HCI_DUMP_FILE_NAME;
-			File f = new File( fn);
-			if ( f.exists() && !f.delete()) {
-				logger.severe( "failure to delete " + fn);
+			// clean out trace files of scan windows which were never processed
+			final File prefix = new File( Beacon.HCI_DUMP_FILE_PREFIX);
+			final File traces[] = prefix.getParentFile().listFiles();
+			for ( int i = 0; traces != null && i < traces.length; i++) {
+				final File f = traces[i];
+				if ( f.getName().startsWith( prefix.getName()) && f.getName().endsWith( HCI_DUMP_FILE_SUFFIX) && !f.delete()) {
+					logger.severe( "failure to delete " + f.getPath());
+				}
 			}
 		} catch ( Exception e) {}
 		
@@ -1791,7 +2244,7 @@ public class Beacon implements HCI_PDU_Handler, HCI_EventHandler {
 			if ( TEST_PARSER) {
 				try {
 					String fn = cwd + File.separator + "scripts" + File.separator + "hcidump.trace";
-					// String fn = Beacon.HCI_DUMP_FILE_NAME;
+					// String fn = Beacon.getHCIDumpFileName( 1);
 					byte pduTypes[] = { HCIParser.HCI_EVENT, HCIParser.HCI_COMMAND };
 					
 					boolean status = HCIParser.parseHCI( fn, pduTypes, beacon);
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.SortedMap;
+
+import ch.binding.beacon.metrics.Counter;
+import ch.binding.beacon.metrics.MetricsRegistry;
+
+/***
+ * a read-through cache of decrypted temporary exposure keys in front of another key store. 
+ * 
+ * the keys are decrypted once when read from the underlying store and served from memory afterwards. 
+ * addKey() and purge() invalidate the affected entries, invalidate() drops all of them, e.g. if the 
+ * underlying store was modified behind our back.
+ * 
+ * @author carl
+ *
+ */
+public class CachingKeyStore implements KeyStore {
+	
+	private static final Counter hits = MetricsRegistry.counter( "keystore.cache.hits");
+	private static final Counter misses = MetricsRegistry.counter( "keystore.cache.misses");
+	
+	private final KeyStore store;
+	
+	/***
+	 * decrypted keys, Base64 encoded, by key generation interval number
+	 */
+	private final HashMap<Long, String> cache = new HashMap<Long, String>();
+
+	public CachingKeyStore( KeyStore store) {
+		super();
+		if ( store == null) {
+			throw new IllegalArgumentException();
+		}
+		this.store = store;
+	}
+
+	@Override
+	public synchronized String getKey( long keyGenIntvlNbr) {
+		String key = this.cache.get( keyGenIntvlNbr);
+		if ( key != null) {
+			hits.inc();
+			return key;
+		}
+		misses.inc();
+		key = this.store.getKey( keyGenIntvlNbr);
+		if ( key != null) {
+			this.cache.put( keyGenIntvlNbr, key);
+		}
+		return key;
+	}
+
+	/***
+	 * always goes to the underlying store as we cannot tell from the cache whether keys are missing in the range. 
+	 * the keys returned are cached.
+	 */
+	@Override
+	public synchronized SortedMap<Long, String> getKeys( long fromIntvlNbr, long toIntvlNbr) {
+		final SortedMap<Long, String> keys = this.store.getKeys( fromIntvlNbr, toIntvlNbr);
+		if ( keys != null) {
+			misses.inc();
+			this.cache.putAll( keys);
+		}
+		return keys;
+	}
+
+	@Override
+	public synchronized boolean addKey( long keyGenIntvlNbr, String key) {
+		this.cache.remove( keyGenIntvlNbr);
+		return this.store.addKey( keyGenIntvlNbr, key);
+	}
+
+	@Override
+	public synchronized boolean purge( long beforeIntvlNbr) {
+		final boolean success = this.store.purge( beforeIntvlNbr);
+		if ( !success) {
+			// we don't know what is left in the store
+			this.cache.clear();
+			return false;
+		}
+		// the file store purges the key at beforeIntvlNbr too, the SQLite store doesn't. drop it to be safe.
+		final Iterator<Long> it = this.cache.keySet().iterator();
+		while ( it.hasNext()) {
+			if ( it.next() <= beforeIntvlNbr) {
+				it.remove();
+			}
+		}
+		return true;
+	}
+	
+	/***
+	 * drops all cached keys
+	 */
+	public synchronized void invalidate() {
+		this.cache.clear();
+	}
+
+}
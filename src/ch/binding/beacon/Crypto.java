@@ -24,11 +24,16 @@ import java.net.InetAddress;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
+import java.util.SortedMap;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
 import javax.crypto.BadPaddingException;
@@ -41,10 +46,11 @@ import javax.crypto.spec.SecretKeySpec;
 
 import at.favre.lib.crypto.HKDF;
 import ch.binding.beacon.db.SQLiteKeyStore;
+import ch.binding.beacon.utils.Clock;
 
 public class Crypto {
 	
-	static private final String KEY_STORE_FN = "keystore.bin";
+	static private final String KEY_STORE_FN = "keystore.log";
 	
 	static Logger logger = Beacon.getLogger();
 		
@@ -59,14 +65,14 @@ public class Crypto {
 			return;
 		
 		if ( USE_DB) {
-			keyStore = new SQLiteKeyStore( Beacon.getPWD(), Beacon.getDBFN());
+			keyStore = new CachingKeyStore( new SQLiteKeyStore( Beacon.getPWD(), Beacon.getDBFN()));
 		} else {
 			// file based
 			String cwd = System. getProperty("user.dir");
 			String keyStoreFileName = cwd + File.separator + KEY_STORE_FN;
 		
 			try {
-				keyStore = new FileKeyStore( keyStoreFileName);
+				keyStore = new CachingKeyStore( new FileKeyStore( keyStoreFileName));
 			} catch ( Exception e) {
 				e.printStackTrace();
 				logger.severe( e.getMessage());
@@ -194,7 +200,7 @@ public class Crypto {
 	 * @return the index of the 10 minutes interval on the given day
 	 */
 	 public static char getTimeIntervalNumber( long dayNumber) {
-		long now = System.currentTimeMillis();
+		long now = Clock.now();
 		long startOfDay = dayNumber * 60 * 60 * 24; // seconds
 		long secondsOfDay = (now/1000) - startOfDay;
 		long nbr = secondsOfDay / ( 60 * 10);
@@ -304,14 +310,12 @@ public class Crypto {
 	 * @throws FileNotFoundException
 	 * @throws IOException
 	 */
-	private static synchronized byte [] getTemporaryExposureKey( long enin) throws FileNotFoundException, IOException {
+	private static byte [] getTemporaryExposureKey( long enin) throws FileNotFoundException, IOException {
 		
 		assert( Crypto.VERSION == 2);
 				
-		Crypto.init();
-		
 		if ( enin <= 0) {
-			enin = getENIntervalNumber( System.currentTimeMillis()/1000);
+			enin = getENIntervalNumber( Clock.now()/1000);
 		}
 		
 		// current interval nbr of 10 minutes intervals since EPOCH
@@ -326,18 +330,27 @@ public class Crypto {
 		String key = Crypto.keyStore.getKey( currentKeyGenIntervalNbr);		
 		
 		if ( key == null) {
-			// no key found, generate one
-			
-			logger.info( String.format( "generating a new temporary exposure key: %d", currentKeyGenIntervalNbr));
-			byte temporaryExposureKey[] = genRandomKey();
-			
-			String keyStr = Base64.getEncoder().encodeToString(temporaryExposureKey);
-			
-			Crypto.keyStore.addKey(currentKeyGenIntervalNbr, keyStr);
-			
-			logger.info( String.format( "added new temporary exposure key to store: %d %s", currentKeyGenIntervalNbr, keyStr));
-			
-			return temporaryExposureKey;
+			// get-or-create must not race: only one key per rolling period
+			synchronized ( Crypto.tekLock) {
+				key = Crypto.keyStore.getKey( currentKeyGenIntervalNbr);
+				if ( key == null) {
+					// no key found, generate one
+					
+					logger.info( String.format( "generating a new temporary exposure key: %d", currentKeyGenIntervalNbr));
+					byte temporaryExposureKey[] = genRandomKey();
+					
+					String keyStr = Base64.getEncoder().encodeToString(temporaryExposureKey);
+					
+					if ( !Crypto.keyStore.addKey(currentKeyGenIntervalNbr, keyStr)) {
+						// a key which is not stored would be replaced by a new one at the next look-up
+						throw new IOException( String.format( "failure to store temporary exposure key: %d", currentKeyGenIntervalNbr));
+					}
+					
+					logger.info( String.format( "added new temporary exposure key to store: %d %s", currentKeyGenIntervalNbr, keyStr));
+					
+					return temporaryExposureKey;
+				}
+			}
 		} 
 		
 		logger.info( String.format( "retrieved temporary exposure key from store: %d", currentKeyGenIntervalNbr));
@@ -356,7 +369,7 @@ public class Crypto {
 	 * @throws IOException 
 	 * @throws FileNotFoundException 
 	 */
-	static synchronized byte [] getRollingProximityIdentifierKey( byte [] tek, long enin)
+	static byte [] getRollingProximityIdentifierKey( byte [] tek, long enin)
 			throws FileNotFoundException, IOException {
 		byte en_rpik_bytes[] = "EN-RPIK".getBytes( "UTF-8");
 				
@@ -376,14 +389,72 @@ public class Crypto {
 	}
 	
 	/***
-	 * rolling proximity ID, 16 byte key. changes whenever the MAC BT_ADDR would change.
+	 * the beacon's current keys. immutable, the whole state is replaced when the rolling proximity ID changes.
 	 */
-	private static byte rollingProximityID[] = null;
+	public static final class KeyState {
+		
+		/***
+		 * ENIN of currently active proximity ID
+		 */
+		private final long enin;
+		private final byte tek[];
+		private final byte rpik[];
+		private final byte aemk[];
+		/***
+		 * rolling proximity ID, 16 byte key. changes whenever the MAC BT_ADDR would change.
+		 */
+		private final byte rpi[];
+		
+		KeyState( long enin, byte tek[], byte rpik[], byte aemk[], byte rpi[]) {
+			super();
+			this.enin = enin;
+			this.tek = tek;
+			this.rpik = rpik;
+			this.aemk = aemk;
+			this.rpi = rpi;
+		}
+		
+		public long getENIN() {
+			return this.enin;
+		}
+		
+		public byte[] getTemporaryExposureKey() {
+			return this.tek.clone();
+		}
+		
+		public byte[] getRollingProximityIdentifierKey() {
+			return this.rpik.clone();
+		}
+		
+		public byte[] getAssociatedEncryptedMetadataKey() {
+			return this.aemk.clone();
+		}
+		
+		public byte[] getRollingProximityID() {
+			return this.rpi.clone();
+		}
+	}
+	
+	private static final AtomicReference<KeyState> keyState = new AtomicReference<KeyState>( null);
+	
+	/***
+	 * serializes the generation of temporary exposure keys. 
+	 */
+	private static final Object tekLock = new Object();
 	
 	/***
-	 * ENIN of currently active proximity ID
+	 * 
+	 * @return the current key state, generated if there is none yet.
 	 */
-	private static long eninOfProximityIDGeneration = 0;
+	static KeyState getKeyState() 
+			throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, 
+			IllegalBlockSizeException, BadPaddingException, FileNotFoundException, IOException {
+		KeyState state = Crypto.keyState.get();
+		if ( state == null) {
+			state = Crypto.generateRollingProximityID();
+		}
+		return state;
+	}
 	
 	/***
 	 * 
@@ -399,19 +470,13 @@ public class Crypto {
 	 * @throws IOException 
 	 * @throws FileNotFoundException 
 	 */
-	static synchronized byte [] getRollingProximityID() 
+	static byte [] getRollingProximityID() 
 			throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, 
 			IllegalBlockSizeException, BadPaddingException, FileNotFoundException, IOException {
 		
 		assert( VERSION == 2);
 		
-		Crypto.init();
-		
-		if ( Crypto.rollingProximityID == null) {
-			Crypto.generateRollingProximityID( );
-		}
-		
-		return Crypto.rollingProximityID;
+		return Crypto.getKeyState().getRollingProximityID();
 	}
 	
 	
@@ -434,7 +499,7 @@ public class Crypto {
 	 * @throws IllegalBlockSizeException
 	 * @throws BadPaddingException
 	 */
-	public static synchronized byte [] getRollingProximityID( final byte [] tek, long enin) 
+	public static byte [] getRollingProximityID( final byte [] tek, long enin) 
 			throws FileNotFoundException, IOException, NoSuchAlgorithmException, NoSuchPaddingException, 
 			InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
 		
@@ -448,7 +513,37 @@ public class Crypto {
 		
 		assert( VERSION == 2);
 		
-		Crypto.init();
+		// from the interval nbr enin, we derive the key-generation-enin...
+		final byte [] rpik = getRollingProximityIdentifierKey( tek, enin);
+		
+		return deriveRollingProximityID( rpik, enin);
+	}
+	
+	/***
+	 * AES/ECB ciphers per thread for the derivation of rolling proximity IDs.
+	 */
+	private static final ThreadLocal<Cipher> rpiCipher = new ThreadLocal<Cipher>() {
+		@Override
+		protected Cipher initialValue() {
+			try {
+				// https://docs.oracle.com/javase/9/docs/api/javax/crypto/Cipher.html
+				// "AES/ECB/NoPadding"
+				return Cipher.getInstance("AES/ECB/NoPadding");
+			} catch ( NoSuchAlgorithmException | NoSuchPaddingException e) {
+				throw new IllegalStateException( e);
+			}
+		}
+	};
+	
+	/***
+	 * pure function.
+	 * 
+	 * @param rpik rolling proximity identifier key
+	 * @param enin time interval
+	 * @return rolling proximity ID, 16 bytes
+	 */
+	static byte [] deriveRollingProximityID( final byte [] rpik, long enin) 
+			throws UnsupportedEncodingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
 		
 		byte padding[] = new byte[16];
 		
@@ -462,13 +557,9 @@ public class Crypto {
 		
 		// Advanced Encryption Standard as specified by NIST in FIPS 197. 
 		// Also known as the Rijndael algorithm by Joan Daemen and Vincent Rijmen, AES is a 128-bit block cipher supporting keys of 128, 192, and 256 bits.
-		// from the interval nbr enin, we derive the key-generation-enin...
-		final byte [] rpik = getRollingProximityIdentifierKey( tek, enin);
 		SecretKeySpec aesKey = new SecretKeySpec( rpik, 0, ROLLING_PROXIMITY_IDENTIFIER_KEY_LEN, "AES");
 		
-		// https://docs.oracle.com/javase/9/docs/api/javax/crypto/Cipher.html
-		// "AES/ECB/NoPadding"
-		Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+		Cipher cipher = Crypto.rpiCipher.get();
         cipher.init( Cipher.ENCRYPT_MODE, aesKey);
         
         byte rollingProximityID[] = cipher.doFinal( padding);
@@ -491,17 +582,28 @@ public class Crypto {
 	 * @throws IOException 
 	 * @throws FileNotFoundException 
 	 */
-	static synchronized void generateRollingProximityID( ) 
+	static KeyState generateRollingProximityID( ) 
 			throws NoSuchAlgorithmException, 
 			NoSuchPaddingException, InvalidKeyException, 
 			IllegalBlockSizeException, BadPaddingException, FileNotFoundException, IOException {
 		
-		final long enin = getENIntervalNumber( System.currentTimeMillis()/1000);
+		final long enin = getENIntervalNumber( Clock.now()/1000);
 		
-		// set the current values
-		Crypto.rollingProximityID = getRollingProximityID( null, enin);
-		Crypto.eninOfProximityIDGeneration = enin;
+		final byte tek[] = getTemporaryExposureKey( enin);
+		final byte rpik[] = getRollingProximityIdentifierKey( tek, enin);
+		final KeyState newState = new KeyState( enin, tek, rpik, getAssociatedEncryptedMetadataKey( tek, enin), 
+				deriveRollingProximityID( rpik, enin));
 		
+		// publish the new state unless another thread got ahead with a newer one
+		while ( true) {
+			final KeyState oldState = Crypto.keyState.get();
+			if ( oldState != null && oldState.enin > enin) {
+				return oldState;
+			}
+			if ( Crypto.keyState.compareAndSet( oldState, newState)) {
+				return newState;
+			}
+		}
 	}
 	
 	
@@ -516,14 +618,14 @@ public class Crypto {
 	 * @throws IOException 
 	 * @throws FileNotFoundException 
 	 */
-	static synchronized byte [] getAssociatedEncryptedMetadataKey ( byte [] tek, long enin) 
+	static byte [] getAssociatedEncryptedMetadataKey ( byte [] tek, long enin) 
 			throws FileNotFoundException, IOException {
 		
 		if ( tek == null) {
-			if ( enin <= 0) {
-				enin = Crypto.eninOfProximityIDGeneration;
+			final KeyState state = Crypto.keyState.get();
+			if ( enin <= 0 && state != null) {
+				return state.getAssociatedEncryptedMetadataKey();
 			}
-			assert( enin >= 0);
 			tek = Crypto.getTemporaryExposureKey( enin);
 		}
 		
@@ -558,29 +660,24 @@ public class Crypto {
 		
 		Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
 		
-		if ( tek == null && enin < 0) {
-			// we want to use the currently valid ENIN and key...		
-			assert( Crypto.eninOfProximityIDGeneration >= 0);
-			enin = Crypto.eninOfProximityIDGeneration;
-		}
-	
-		// generate the AES secret key using the associated encrypted metadata key.
-		final byte [] encryptionKey = getAssociatedEncryptedMetadataKey( tek, enin);
-				
-		assert( encryptionKey.length == ASSOC_ENCRYPTED_META_DATA_KEY_LEN);
-				
-		SecretKeySpec aesKey = new SecretKeySpec( encryptionKey, "AES");
-					
-		
+		final byte [] encryptionKey;
 		// AES CTR takes an initialization vector, IV for which they use the rolling-proximity-ID so they can decrypt when necessary
-		byte rpi[] = null;
+		final byte rpi[];
 		
 		if ( tek == null) {
-			// we want to use the currently valid ENIN and key...					
-			rpi = getRollingProximityID();			
+			// we want to use the currently valid ENIN and key, both from the same state
+			final KeyState state = Crypto.getKeyState();
+			encryptionKey = state.getAssociatedEncryptedMetadataKey();
+			rpi = state.getRollingProximityID();
 		} else {
+			// generate the AES secret key using the associated encrypted metadata key.
+			encryptionKey = getAssociatedEncryptedMetadataKey( tek, enin);
 			rpi = getRollingProximityID( tek, enin);
 		}
+				
+		assert( encryptionKey.length == ASSOC_ENCRYPTED_META_DATA_KEY_LEN);
+				
+		SecretKeySpec aesKey = new SecretKeySpec( encryptionKey, "AES");
 		
 		
 		assert( rpi.length == ROLLING_PROXIMITY_IDENTIFIER_LEN);
@@ -597,6 +694,33 @@ public class Crypto {
 		
 	}
 
+	/***
+	 * to obtain our own temporary exposure keys of the past days, e.g. for upload once we are diagnosed. 
+	 * the keys are read from the key store in one go.
+	 * 
+	 * @param nbrDays nbr of days to go back, including today. typically 14.
+	 * @return the keys, oldest first. null on failure.
+	 */
+	public static List<ProximityIDMatcher.TempExpKey> getTemporaryExposureKeys( int nbrDays) {
+		if ( nbrDays <= 0) {
+			throw new IllegalArgumentException();
+		}
+		
+		final long toIntvlNbr = getENPeriodStart( getENIntervalNumber( Clock.now()/1000));
+		final long fromIntvlNbr = toIntvlNbr - (nbrDays - 1) * EK_ROLLING_PERIOD;
+		
+		final SortedMap<Long, String> keys = Crypto.keyStore.getKeys( fromIntvlNbr, toIntvlNbr);
+		if ( keys == null) {
+			return null;
+		}
+		
+		final List<ProximityIDMatcher.TempExpKey> teks = new ArrayList<ProximityIDMatcher.TempExpKey>( keys.size());
+		for ( Map.Entry<Long, String> e: keys.entrySet()) {
+			teks.add( new ProximityIDMatcher.TempExpKey( e.getKey(), e.getValue()));
+		}
+		return teks;
+	}
+
 	/***
 	 * 
 	 * @param before time-stamp, milli-secs
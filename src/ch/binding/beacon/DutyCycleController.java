@@ -0,0 +1,278 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon;
+
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/***
+ * adapts the scan window and the period of the beacon cycle to the observed encounter density.
+ *
+ * In an empty room we shorten the scan window and lengthen the period: nothing to see, no need to
+ * trace. In a crowded place --duplicates scanning produces far more reports than needed to see every
+ * rolling proximity ID, so we shorten the scan window. If parsing and storing cannot keep up with the
+ * cycle, we back off. Otherwise we return towards the configured maximum scan window and minimum period.
+ *
+ * Whatever we decide, we stay within the configured bounds and scan at least a minimum amount of time per
+ * exposure notification interval (10 minutes), so that every rolling proximity ID of a device in range
+ * gets a chance to be seen.
+ *
+ * Stats are fed in by the scan pipeline thread, the duty cycle is read by the phase thread at the start of
+ * each cycle.
+ *
+ * @author carl
+ *
+ */
+class DutyCycleController {
+
+	private static Logger logger = Beacon.getLogger();
+
+	/***
+	 * exposure notification interval, milli-secs
+	 */
+	static final long EN_INTERVAL = 10 * 60 * 1000;
+
+	/***
+	 * minimal idle time in a cycle, milli-secs
+	 */
+	private static final long MIN_IDLE_DURATION = 1000;
+
+	/***
+	 * nbr of consecutive windows without any proximity ID before we consider the room to be empty.
+	 */
+	private static final int EMPTY_WINDOWS_THRESHOLD = 3;
+
+	/***
+	 * durations of one beacon cycle, milli-secs. immutable.
+	 */
+	static final class DutyCycle {
+
+		final long advertising;
+		final long scanning;
+		final long period;
+
+		DutyCycle( long advertising, long scanning, long period) {
+			super();
+			this.advertising = advertising;
+			this.scanning = scanning;
+			this.period = period;
+		}
+
+		long getIdle() {
+			return this.period - this.advertising - this.scanning;
+		}
+
+		@Override
+		public String toString() {
+			return String.format( "adv %d ms, scan %d ms, period %d ms", this.advertising, this.scanning, this.period);
+		}
+	}
+
+	/***
+	 * what the scan pipeline observed in one scan window.
+	 */
+	static final class WindowStats {
+
+		final long scanDuration;			// msecs
+		final long nbrReports;				// contact detection service reports
+		final int nbrProximityIDs;			// distinct rolling proximity IDs
+		final long processingDuration;		// parse and store, msecs
+
+		WindowStats( long scanDuration, long nbrReports, int nbrProximityIDs, long processingDuration) {
+			super();
+			this.scanDuration = scanDuration;
+			this.nbrReports = nbrReports;
+			this.nbrProximityIDs = nbrProximityIDs;
+			this.processingDuration = processingDuration;
+		}
+
+		double getReportsPerSec() {
+			if ( this.scanDuration <= 0)
+				return 0;
+			return (this.nbrReports * 1000.0) / this.scanDuration;
+		}
+	}
+
+	private final boolean adaptive;
+
+	private final long advertising;
+	private final long minScan;
+	private final long maxScan;
+	private final long minPeriod;
+	private final long maxPeriod;
+
+	/***
+	 * min. scanning time per EN interval, milli-secs
+	 */
+	private final long minCoverage;
+
+	/***
+	 * reports per second above which we consider the place to be crowded.
+	 */
+	private final double crowdedReportRate;
+
+	/***
+	 * factor by which we shrink or grow the scan window and the period in one step.
+	 */
+	private static final double STEP = 1.5;
+
+	private volatile DutyCycle dutyCycle;
+
+	private int nbrEmptyWindows = 0;
+
+	/***
+	 *
+	 * @param advertising duration of advertising phase, msecs
+	 * @param scanning initial and max. duration of scanning phase, msecs
+	 * @param period initial and min. duration of beacon cycle, msecs
+	 * @param props application properties with the optional bounds
+	 */
+	DutyCycleController( long advertising, long scanning, long period, Properties props) {
+		super();
+
+		this.adaptive = Boolean.parseBoolean( getProperty( props, "beacon.dutyCycle.adaptive", "false"));
+
+		this.advertising = advertising;
+		this.maxScan = getLongProperty( props, "beacon.dutyCycle.maxScan", scanning);
+		this.minScan = Math.min( this.maxScan, getLongProperty( props, "beacon.dutyCycle.minScan", 2 * 1000));
+		this.minPeriod = Math.max( advertising + this.maxScan + MIN_IDLE_DURATION, getLongProperty( props, "beacon.dutyCycle.minPeriod", period));
+		this.maxPeriod = Math.min( EN_INTERVAL, Math.max( this.minPeriod, getLongProperty( props, "beacon.dutyCycle.maxPeriod", 4 * period)));
+		this.crowdedReportRate = Double.parseDouble( getProperty( props, "beacon.dutyCycle.crowdedReportRate", "50"));
+
+		long minCoverage = getLongProperty( props, "beacon.dutyCycle.minScanPerInterval", 60 * 1000);
+		final long maxCoverage = this.maxScan * (EN_INTERVAL / this.minPeriod);
+		if ( minCoverage > maxCoverage) {
+			logger.warning( String.format( "duty cycle: min. coverage of %d ms per EN interval not achievable, using %d ms", minCoverage, maxCoverage));
+			minCoverage = maxCoverage;
+		}
+		this.minCoverage = minCoverage;
+
+		this.dutyCycle = new DutyCycle( advertising, this.maxScan, this.minPeriod);
+
+		logger.info( String.format( "duty cycle: %s, adaptive %b, scan %d..%d ms, period %d..%d ms, min. coverage %d ms per EN interval",
+				this.dutyCycle, this.adaptive, this.minScan, this.maxScan, this.minPeriod, this.maxPeriod, this.minCoverage));
+	}
+
+	private static String getProperty( Properties props, String name, String defaultValue) {
+		if ( props == null)
+			return defaultValue;
+		return props.getProperty( name, defaultValue).trim();
+	}
+
+	private static long getLongProperty( Properties props, String name, long defaultValue) {
+		final String s = getProperty( props, name, null);
+		if ( s == null)
+			return defaultValue;
+		try {
+			return Long.parseLong( s);
+		} catch ( NumberFormatException e) {
+			logger.warning( String.format( "duty cycle: bad value for %s: %s", name, s));
+			return defaultValue;
+		}
+	}
+
+	/***
+	 *
+	 * @return the duty cycle to use for the next beacon cycle
+	 */
+	DutyCycle getDutyCycle() {
+		return this.dutyCycle;
+	}
+
+	/***
+	 * a scan window has been parsed and stored.
+	 * @param stats
+	 */
+	synchronized void onScanWindow( WindowStats stats) {
+		if ( !this.adaptive)
+			return;
+
+		final DutyCycle current = this.dutyCycle;
+		long scan = current.scanning;
+		long period = current.period;
+		final String reason;
+
+		if ( stats.nbrProximityIDs == 0) {
+			this.nbrEmptyWindows++;
+		} else {
+			this.nbrEmptyWindows = 0;
+		}
+
+		if ( stats.processingDuration > current.period - current.scanning) {
+			// parsing and storing takes longer than the time until the next window is closed...
+			scan = (long) (scan / STEP);
+			period = (long) (period * STEP);
+			reason = String.format( "processing took %d ms", stats.processingDuration);
+		} else if ( this.nbrEmptyWindows >= EMPTY_WINDOWS_THRESHOLD) {
+			scan = (long) (scan / STEP);
+			period = (long) (period * STEP);
+			reason = String.format( "%d empty windows", this.nbrEmptyWindows);
+		} else if ( stats.getReportsPerSec() > this.crowdedReportRate) {
+			// with that many duplicates a shorter window still sees every proximity ID
+			scan = (long) (scan / STEP);
+			reason = String.format( "%.1f reports/sec, %d proximity IDs", stats.getReportsPerSec(), stats.nbrProximityIDs);
+		} else if ( stats.nbrProximityIDs > 0) {
+			scan = (long) (scan * STEP);
+			period = (long) (period / STEP);
+			reason = String.format( "%.1f reports/sec, %d proximity IDs", stats.getReportsPerSec(), stats.nbrProximityIDs);
+		} else {
+			return;
+		}
+
+		this.update( scan, period, reason);
+	}
+
+	/***
+	 * a scan window has been skipped because the scan pipeline is full.
+	 */
+	synchronized void onScanWindowSkipped() {
+		if ( !this.adaptive)
+			return;
+
+		final DutyCycle current = this.dutyCycle;
+		this.update( (long) (current.scanning / STEP), (long) (current.period * STEP), "scan pipeline full");
+	}
+
+	/***
+	 * to clamp the proposed durations into the bounds, to enforce the min. coverage and to log changes.
+	 */
+	private void update( long scan, long period, String reason) {
+
+		scan = Math.max( this.minScan, Math.min( this.maxScan, scan));
+		period = Math.max( this.minPeriod, Math.min( this.maxPeriod, period));
+
+		// min. coverage per EN interval: first scan longer, then cycle faster
+		while ( scan * (EN_INTERVAL / period) < this.minCoverage) {
+			if ( scan < this.maxScan) {
+				scan = Math.min( this.maxScan, scan + 1000);
+			} else if ( period > this.minPeriod) {
+				period = Math.max( this.minPeriod, period - 1000);
+			} else {
+				break;
+			}
+		}
+
+		final DutyCycle current = this.dutyCycle;
+		if ( scan == current.scanning && period == current.period) {
+			return;
+		}
+
+		final DutyCycle next = new DutyCycle( this.advertising, scan, period);
+		logger.info( String.format( "duty cycle: %s -> %s: %s", current, next, reason));
+		this.dutyCycle = next;
+	}
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon;
+
+import java.util.Collection;
+import java.util.HashMap;
+
+import ch.binding.beacon.ProximityIDStore.ProximityID;
+import ch.binding.beacon.hci.LE_AdvertisingReport;
+import ch.binding.beacon.hci.LE_AdvertisingReport.ADV_NONCONN_IND_Report;
+import ch.binding.beacon.hci.LE_AdvertisingReport.AdvertisingReport;
+import ch.binding.beacon.hci.LE_AdvertisingReport.ContactDetectionServiceReport;
+
+/***
+ * aggregates the contact detection service reports of a scan window per rolling proximity identifier:
+ * first and last time of capture and the strongest RSSI. With --duplicates scanning we see the same
+ * proximity identifier many times per window, but only need to store it once.
+ * 
+ * not thread-safe.
+ * 
+ * @author carl
+ *
+ */
+public class EncounterAggregator {
+	
+	/***
+	 * nbr of hex-dec digits of service data: rolling proximity ID plus associated encrypted meta-data
+	 */
+	private static final int SERVICE_DATA_LEN = 2 * (Beacon.ROLLING_PROXY_ID_LENGTH + Beacon.ASSOCIATED_META_DATA_LENGTH);
+	
+	private final HashMap<ByteArray, ProximityID> encounters = new HashMap<ByteArray, ProximityID>();
+	
+	/***
+	 * nbr of reports which went into the aggregate.
+	 */
+	private long nbrReports = 0;
+	
+	public EncounterAggregator() {
+		super();
+	}
+	
+	/***
+	 * 
+	 * @param serviceData the service data as a hexadecimal string, 2 digits per byte, no spaces. 
+	 * 16 bytes rolling proximity identifier plus 4 bytes associated encrypted metadata.
+	 * @param rssi
+	 * @param timeOfCapture time-stamp, milli-secs
+	 */
+	public void add( String serviceData, int rssi, long timeOfCapture) {
+		if ( serviceData == null || serviceData.length() != SERVICE_DATA_LEN) {
+			throw new IllegalArgumentException( "advertising payload must be 40 hex-digits");
+		}
+		
+		final String proximityID = serviceData.substring( 0, Beacon.ROLLING_PROXY_ID_LENGTH * 2);
+		final String assocEncMetaData = serviceData.substring( Beacon.ROLLING_PROXY_ID_LENGTH * 2);
+		
+		this.add( new ProximityID( proximityID, assocEncMetaData, timeOfCapture, timeOfCapture, rssi));
+		this.nbrReports++;
+	}
+	
+	/***
+	 * adds the contact detection service reports nested in an LE_AdvertisingReport. all other reports are ignored.
+	 * 
+	 * @param advRep
+	 * @param timeOfCapture time-stamp, milli-secs
+	 * @return nbr of contact detection service reports added
+	 * @throws Exception if a nested report cannot be parsed
+	 */
+	public int add( LE_AdvertisingReport advRep, long timeOfCapture) throws Exception {
+		int n = 0;
+		for ( int i = 0; i < advRep.getNumberReports(); i++) {
+			final AdvertisingReport ar = advRep.getAdvertisingReport( i);
+			if ( ar instanceof ADV_NONCONN_IND_Report) {
+				final ADV_NONCONN_IND_Report advNonConnIndRep = ((ADV_NONCONN_IND_Report) ar).parse();
+				if ( advNonConnIndRep instanceof ContactDetectionServiceReport) {
+					final ContactDetectionServiceReport cdsr = (ContactDetectionServiceReport) advNonConnIndRep;
+					this.add( cdsr.getContactDetectionService().serviceDataToHex(), cdsr.getRSSI(), timeOfCapture);
+					n++;
+				}
+			}
+		}
+		return n;
+	}
+	
+	/***
+	 * merges an encounter into the aggregate
+	 * @param pid
+	 */
+	private void add( ProximityID pid) {
+		final ByteArray key = new ByteArray( pid.proximityID);
+		final ProximityID e = this.encounters.get( key);
+		if ( e == null) {
+			this.encounters.put( key, pid);
+			return;
+		}
+		if ( pid.first_toc < e.first_toc) {
+			e.first_toc = pid.first_toc;
+		}
+		if ( pid.last_toc > e.last_toc) {
+			e.last_toc = pid.last_toc;
+		}
+		// we keep track of the strongest RSSI...
+		if ( pid.rssi > e.rssi) {
+			e.rssi = pid.rssi;
+		}
+	}
+	
+	/***
+	 * merges another aggregate into this one.
+	 * @param other
+	 */
+	public void merge( EncounterAggregator other) {
+		for ( ProximityID pid: other.encounters.values()) {
+			this.add( pid);
+		}
+		this.nbrReports += other.nbrReports;
+	}
+	
+	/***
+	 * 
+	 * @return one aggregated encounter per rolling proximity identifier
+	 */
+	public Collection<ProximityID> getEncounters() {
+		return this.encounters.values();
+	}
+	
+	/***
+	 * 
+	 * @return nbr of distinct rolling proximity identifiers
+	 */
+	public int size() {
+		return this.encounters.size();
+	}
+	
+	/***
+	 * 
+	 * @return nbr of reports which went into the aggregate
+	 */
+	public long getNbrReports() {
+		return this.nbrReports;
+	}
+
+}
@@ -16,148 +16,385 @@
 package ch.binding.beacon;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
 /***
  * a simple, *non secure* key-store for temporary exposure keys.
- * file-based, using java.io.Serializable to save/restore data.
+ * 
+ * file-based, an append-only log of fixed-size binary records. the file is memory-mapped at start-up to build 
+ * an in-memory index of the keys. changes are appended to the log and fsync'ed right away, keys only change
+ * once a day. purge appends a purge record and compacts the log once it holds more dead than live records.
+ * 
+ * file layout, big-endian:
+ * 
+ * header: int magic "BKL1", short version, short record size
+ * 
+ * record, 48 bytes:
+ * 	long key generation interval nbr (the interval before which keys are purged for PURGE records)
+ * 	byte op, ADD or PURGE
+ * 	byte key length, <= 32
+ * 	short reserved
+ * 	byte[32] key, zero padded
+ * 	int CRC32 of the preceding 44 bytes
+ * 
+ * a torn record at the end of the file, e.g. after a crash, is dropped when the log is opened. a version 1 log, 
+ * with 32 bytes records and keys of at most 16 bytes, is read and re-written in the current format.
  * 
  * @author carl
  *
  */
-public class FileKeyStore implements KeyStore, java.io.Serializable {
+public class FileKeyStore implements KeyStore {
 	
 	static Logger logger = Beacon.getLogger();
 	
-	/**
-	 * 
+	private static final int MAGIC = 0x424B4C31; // "BKL1"
+	private static final short VERSION = 2;
+	private static final int HEADER_SIZE = 8;
+	
+	private static final int RECORD_SIZE = 48;
+	private static final int MAX_KEY_LEN = 32;
+	private static final int CRC_OFFSET = 44;
+	
+	private static final short VERSION_1 = 1;
+	private static final int RECORD_SIZE_1 = 32;
+	private static final int MAX_KEY_LEN_1 = 16;
+	private static final int CRC_OFFSET_1 = 28;
+	
+	private static final byte OP_ADD = 1;
+	private static final byte OP_PURGE = 2;
+	
+	/***
+	 * min. nbr of dead records in the log before it is compacted.
 	 */
-	private static final long serialVersionUID = -1174992067971603461L;
-
-	private static class Key implements java.io.Serializable {
-		/**
-		 * 
-		 */
-		private static final long serialVersionUID = -1053250910887041813L;
-		
-		private long keyGenIntvlNbr;
-		private String key;
-		
-		Key( long keyGenIntvlNbr, String key) {
-			super();
-			this.keyGenIntvlNbr = keyGenIntvlNbr;
+	private static final int COMPACT_MIN = 64;
+	
+	private final Path path;
+	
+	private FileChannel channel = null;
+	
+	/***
+	 * the current keys, Base64 encoded, by key generation interval nbr
+	 */
+	private final TreeMap<Long, String> keys = new TreeMap<Long, String>();
+	
+	/***
+	 * nbr of records in the log
+	 */
+	private long nbrRecords = 0;
+	
+	FileKeyStore( final String fn) throws Exception {
+		super();
+		this.path = new File( fn).toPath();
+		if ( !this.open()) {
+			throw new Exception( "failure to open key-store: " + fn);
 		}
+		
+		Runtime.getRuntime().addShutdownHook( new Thread( new Runnable() {
+			@Override
+			public void run() {
+				close();
+			}
+		}));
 	}
-
 	
-	private boolean save() {
+	/***
+	 * opens the log and builds the index. creates an empty log if there is none.
+	 * 
+	 * @return success/failure
+	 */
+	private boolean open() {
 		try {
-			FileOutputStream fileOut = new FileOutputStream( this.fileName);
-			ObjectOutputStream out = new ObjectOutputStream(fileOut);
-			out.writeObject( this);
-			out.close();
-			fileOut.close();
+			this.channel = FileChannel.open( this.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
 			
-			logger.info( String.format( "key-store saved: %s", this.fileName));
+			final long size = this.channel.size();
+			if ( size == 0) {
+				this.writeHeader( this.channel);
+				this.channel.force( true);
+				logger.info( String.format( "key-store created: %s", this.path));
+				return true;
+			}
+			
+			if ( size < HEADER_SIZE) {
+				logger.severe( String.format( "key-store corrupt, no header: %s", this.path));
+				return false;
+			}
+			
+			final MappedByteBuffer buf = this.channel.map( FileChannel.MapMode.READ_ONLY, 0, size);
+			
+			final int magic = buf.getInt();
+			final short version = buf.getShort();
+			final short recordSize = buf.getShort();
+			final boolean version1 = version == VERSION_1 && recordSize == RECORD_SIZE_1;
+			if ( magic != MAGIC || !( version1 || ( version == VERSION && recordSize == RECORD_SIZE))) {
+				logger.severe( String.format( "key-store has wrong format: %s", this.path));
+				return false;
+			}
+			
+			final byte rec[] = new byte[ recordSize];
+			long validEnd = HEADER_SIZE;
+			while ( buf.remaining() >= recordSize) {
+				buf.get( rec);
+				if ( !this.apply( ByteBuffer.wrap( rec), version1 ? CRC_OFFSET_1 : CRC_OFFSET, version1 ? MAX_KEY_LEN_1 : MAX_KEY_LEN)) {
+					break;
+				}
+				validEnd += recordSize;
+				this.nbrRecords++;
+			}
+			
+			if ( version1) {
+				logger.info( String.format( "key-store: converting version %d log: %s", VERSION_1, this.path));
+				this.channel.position( size);
+				return this.compact();
+			}
 			
+			if ( validEnd < size) {
+				logger.warning( String.format( "key-store: dropping %d trailing bytes: %s", size - validEnd, this.path));
+				this.channel.truncate( validEnd);
+				this.channel.force( true);
+			}
+			this.channel.position( validEnd);
+			
+			logger.info( String.format( "key-store restored: %s, %d keys, %d records", this.path, this.keys.size(), this.nbrRecords));
 			return true;
-		} catch (IOException i) {
-			i.printStackTrace();
+			
+		} catch ( IOException e) {
+			logger.severe( e.getMessage());
 			return false;
 		}
 	}
 	
-	private boolean restore() {
+	private void writeHeader( FileChannel ch) throws IOException {
+		final ByteBuffer hdr = ByteBuffer.allocate( HEADER_SIZE);
+		hdr.putInt( MAGIC);
+		hdr.putShort( VERSION);
+		hdr.putShort( (short) RECORD_SIZE);
+		hdr.flip();
+		while ( hdr.hasRemaining()) {
+			ch.write( hdr);
+		}
+	}
+	
+	/***
+	 * applies a record read from the log to the index.
+	 * 
+	 * @param rec
+	 * @param crcOffset the record size less 4 bytes, depends on the version of the log
+	 * @param maxKeyLen
+	 * @return false if the record is invalid, i.e. torn or corrupt.
+	 */
+	private boolean apply( ByteBuffer rec, int crcOffset, int maxKeyLen) {
+		final CRC32 crc = new CRC32();
+		crc.update( rec.array(), 0, crcOffset);
+		if ( (int) crc.getValue() != rec.getInt( crcOffset)) {
+			return false;
+		}
+		
+		final long intvlNbr = rec.getLong( 0);
+		final byte op = rec.get( 8);
+		final int len = rec.get( 9);
 		
-		File f = new File(this.fileName);
-		if ( ! f.exists()) {
-			this.keys = new ArrayList<Key>();
+		switch ( op) {
+		case OP_ADD:
+			if ( len <= 0 || len > maxKeyLen) {
+				return false;
+			}
+			final byte key[] = new byte[ len];
+			rec.position( 12);
+			rec.get( key);
+			this.keys.put( intvlNbr, Base64.getEncoder().encodeToString( key));
+			return true;
+		case OP_PURGE:
+			this.keys.headMap( intvlNbr, true).clear();
 			return true;
+		default:
+			return false;
 		}
-		
-		FileKeyStore e = null;
-	      try {
-	         FileInputStream fileIn = new FileInputStream( f);
-	         ObjectInputStream in = new ObjectInputStream(fileIn);
-	         e = (FileKeyStore) in.readObject();
-	         
-	         this.keys = e.keys;
-	         
-	         in.close();
-	         fileIn.close();
-	         
-	         logger.info( String.format( "key-store restored: %s", this.fileName));
-	         
-	         return true;
-	         
-	      } catch (IOException i) {
-	         i.printStackTrace();
-	         return false;
-	      } catch (ClassNotFoundException c) {
-	         System.err.println("FileKeyStore class not found");
-	         c.printStackTrace();
-	         return false;
-	      }		
 	}
 	
-	private String fileName = null;
+	private static ByteBuffer toRecord( byte op, long intvlNbr, byte key[]) {
+		final ByteBuffer rec = ByteBuffer.allocate( RECORD_SIZE);
+		rec.putLong( intvlNbr);
+		rec.put( op);
+		rec.put( (byte) (key == null ? 0 : key.length));
+		rec.putShort( (short) 0);
+		if ( key != null) {
+			rec.put( key);
+		}
+		final CRC32 crc = new CRC32();
+		crc.update( rec.array(), 0, CRC_OFFSET);
+		rec.putInt( CRC_OFFSET, (int) crc.getValue());
+		rec.position( 0);
+		return rec;
+	}
+	
+	/***
+	 * appends a record at the end of the log and forces it to disk. a PURGE record lost after a power loss 
+	 * would bring the purged keys back.
+	 * 
+	 * @param rec
+	 * @throws IOException
+	 */
+	private void append( ByteBuffer rec) throws IOException {
+		final long start = this.channel.position();
+		try {
+			while ( rec.hasRemaining()) {
+				this.channel.write( rec);
+			}
+		} catch ( IOException e) {
+			// don't leave a partial record behind which would hide later ones
+			this.channel.truncate( start);
+			this.channel.position( start);
+			throw e;
+		}
+		this.nbrRecords++;
+		this.channel.force( false);
+	}
 	
-	private ArrayList<Key> keys = new ArrayList<Key>();
+	/***
+	 * closes the log. 
+	 */
+	public synchronized void close() {
+		if ( this.channel == null) {
+			return;
+		}
+		try {
+			this.channel.close();
+		} catch ( IOException e) {
+			logger.severe( e.getMessage());
+		}
+		this.channel = null;
+	}
 	
-	FileKeyStore( final String fn) throws Exception {
-		super();
-		this.fileName = fn;
-		if ( !this.restore()) {
-			throw new Exception( "failure to restore key-store: " + fn);
+	/***
+	 * re-writes the log with the live keys only. the new log is written to a temporary file which then replaces 
+	 * the old one.
+	 * 
+	 * @return success/failure
+	 */
+	private boolean compact() {
+		final Path tmp = this.path.resolveSibling( this.path.getFileName() + ".tmp");
+		try {
+			try ( FileChannel ch = FileChannel.open( tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				this.writeHeader( ch);
+				for ( Map.Entry<Long, String> e: this.keys.entrySet()) {
+					final ByteBuffer rec = toRecord( OP_ADD, e.getKey(), Base64.getDecoder().decode( e.getValue()));
+					while ( rec.hasRemaining()) {
+						ch.write( rec);
+					}
+				}
+				ch.force( true);
+			}
+			
+			this.channel.close();
+			Files.move( tmp, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			
+			this.channel = FileChannel.open( this.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.channel.position( this.channel.size());
+			
+			logger.info( String.format( "key-store compacted: %s, %d -> %d records", this.path, this.nbrRecords, this.keys.size()));
+			
+			this.nbrRecords = this.keys.size();
+			return true;
+		} catch ( IOException e) {
+			logger.severe( e.getMessage());
+			if ( this.channel == null || !this.channel.isOpen()) {
+				// must keep going with the old log
+				return this.reopen();
+			}
+			return false;
+		}
+	}
+	
+	private boolean reopen() {
+		try {
+			this.channel = FileChannel.open( this.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.channel.position( this.channel.size());
+			return true;
+		} catch ( IOException e) {
+			logger.severe( e.getMessage());
+			this.channel = null;
+			return false;
 		}
 	}
 	
 	@Override
-	public String getKey(long keyGenIntvlNbr) {
-		for ( Key k: this.keys) {
-			if ( k.keyGenIntvlNbr == keyGenIntvlNbr)
-				return k.key;
+	public synchronized String getKey(long keyGenIntvlNbr) {
+		return this.keys.get( keyGenIntvlNbr);
+	}
+
+	@Override
+	public synchronized SortedMap<Long, String> getKeys( long fromIntvlNbr, long toIntvlNbr) {
+		if ( fromIntvlNbr > toIntvlNbr) {
+			return new TreeMap<Long, String>();
 		}
-		return null;
+		return new TreeMap<Long, String>( this.keys.subMap( fromIntvlNbr, true, toIntvlNbr, true));
 	}
 
 	@Override
-	public boolean addKey(long keyGenIntvlNbr, String key) {
-		
-		boolean duplicate = false;
-		for ( Key k: this.keys) {
-			if ( k.keyGenIntvlNbr == keyGenIntvlNbr) {
-				k.key = key;
-				duplicate = true;
-			}
+	public synchronized boolean addKey(long keyGenIntvlNbr, String key) {
+		if ( this.channel == null) {
+			return false;
 		}
 		
-		if ( !duplicate) {
-			keys.add( new Key( keyGenIntvlNbr, key));
+		final byte k[];
+		try {
+			k = Base64.getDecoder().decode( key);
+		} catch ( IllegalArgumentException e) {
+			logger.severe( String.format( "key-store: key not Base64 encoded: %d", keyGenIntvlNbr));
+			return false;
+		}
+		if ( k.length == 0 || k.length > MAX_KEY_LEN) {
+			logger.severe( String.format( "key-store: invalid key length %d: %d", k.length, keyGenIntvlNbr));
+			return false;
 		}
 		
-		return this.save();
+		try {
+			this.append( toRecord( OP_ADD, keyGenIntvlNbr, k));
+		} catch ( IOException e) {
+			logger.severe( e.getMessage());
+			return false;
+		}
+		this.keys.put( keyGenIntvlNbr, key);
+		return true;
 	}
 
+	/***
+	 * removes the keys with a key generation interval nbr less or equal to beforeIntvlNbr.
+	 */
 	@Override
-	public boolean purge(long beforeIntvlNbr) {
-		ArrayList<Key> keys = new ArrayList<Key>();
-
-		for ( Key k: this.keys) {
-			if ( k.keyGenIntvlNbr > beforeIntvlNbr) {
-				logger.info( String.format( "keeping temporary exposure key: %d", k.keyGenIntvlNbr));
-				keys.add( k);
-			}
+	public synchronized boolean purge(long beforeIntvlNbr) {
+		if ( this.channel == null) {
+			return false;
 		}
 		
-		this.keys = keys;
-		return this.save();
+		try {
+			this.append( toRecord( OP_PURGE, beforeIntvlNbr, null));
+		} catch ( IOException e) {
+			logger.severe( e.getMessage());
+			return false;
+		}
+		this.keys.headMap( beforeIntvlNbr, true).clear();
+		
+		logger.info( String.format( "keeping %d temporary exposure keys", this.keys.size()));
+		
+		final long dead = this.nbrRecords - this.keys.size();
+		if ( dead >= COMPACT_MIN && dead > this.keys.size()) {
+			return this.compact();
+		}
+		return true;
 	}
 
 }
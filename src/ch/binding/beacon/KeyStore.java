@@ -15,6 +15,8 @@
  */
 package ch.binding.beacon;
 
+import java.util.SortedMap;
+
 /**
  * Interface to a key-store for temporary exposure keys.
  * 
@@ -33,6 +35,17 @@ public interface KeyStore {
 	 */
 	String getKey( long keyGenIntvlNbr) ;
 	
+	/***
+	 * to get a range of keys in one go, e.g. the keys of the past 14 days.
+	 * 
+	 * @param fromIntvlNbr lowest key generation interval number, inclusive
+	 * @param toIntvlNbr highest key generation interval number, inclusive
+	 * 
+	 * @return the keys in the range by key generation interval number, ascending. Base64 encoded strings. 
+	 * empty if there are none, null on failure.
+	 */
+	SortedMap<Long, String> getKeys( long fromIntvlNbr, long toIntvlNbr);
+	
 	/***
 	 * 
 	 * @param keyGenIntvlNbr interval number of key generation, corresponding to the start of some rolling-period.
@@ -15,6 +15,7 @@
  */
 package ch.binding.beacon;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 
@@ -41,6 +42,16 @@ public interface ProximityIDStore {
 	 */
 	public boolean store( String serviceData, int rssi, Date timeOfCapture);
 	
+	/***
+	 * squirrel away a batch of aggregated encounters in one go. encounters which are already stored are merged:
+	 * we keep the earliest first time of capture, the latest last time of capture and the strongest RSSI.
+	 * 
+	 * @param encounters aggregated encounters, at most one per rolling proximity identifier.
+	 * 
+	 * @return success/failure
+	 */
+	public boolean store( Collection<ProximityID> encounters);
+	
 	/***
 	 * discard all encounters before the given date.
 	 * 
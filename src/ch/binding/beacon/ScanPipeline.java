@@ -0,0 +1,230 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon;
+
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import ch.binding.beacon.hci.HCIParser;
+import ch.binding.beacon.hci.HCI_PDU;
+import ch.binding.beacon.hci.HCI_PDU_Handler;
+import ch.binding.beacon.hci.LE_AdvertisingReport;
+import ch.binding.beacon.metrics.Counter;
+import ch.binding.beacon.metrics.Histogram;
+import ch.binding.beacon.metrics.MetricsRegistry;
+import ch.binding.beacon.utils.Clock;
+
+/***
+ * background pipeline which parses the hcidump trace of a closed scan window, aggregates the encounters,
+ * stores them and purges the stores - while the radio already advertises for the next window.
+ * 
+ * Each scan window writes its own trace segment. The hand-off of closed segments is bounded: before 
+ * scanning, the phase thread reserves a slot. If there is none, storage is falling behind and the
+ * window is not scanned, so the radio duty cycle never waits on storage.
+ * 
+ * @author carl
+ *
+ */
+class ScanPipeline implements Runnable {
+	
+	private static Logger logger = Beacon.getLogger();
+	
+	private static final Histogram reportsPerWindow = MetricsRegistry.histogram( "scan.window.reports");
+	private static final Histogram proximityIDsPerWindow = MetricsRegistry.histogram( "scan.window.proximityIDs");
+	private static final Histogram processingDuration = MetricsRegistry.histogram( "scan.window.processing.ms");
+	private static final Counter windowsSkipped = MetricsRegistry.counter( "scan.windows.skipped");
+	
+	/***
+	 * a closed hcidump trace of one scan window.
+	 */
+	static class TraceSegment {
+		
+		final long window;
+		final String fileName;
+		final long scanDuration;	// msecs
+		
+		TraceSegment( long window, String fileName, long scanDuration) {
+			super();
+			this.window = window;
+			this.fileName = fileName;
+			this.scanDuration = scanDuration;
+		}
+	}
+	
+	private final Beacon beacon;
+	
+	private final DutyCycleController dutyCycleController;
+	
+	private final BlockingQueue<TraceSegment> segments;
+	
+	/***
+	 * one permit per segment which may be scanned but is not yet processed.
+	 */
+	private final Semaphore slots;
+	
+	private final AtomicLong processedWindows = new AtomicLong();
+	private final AtomicLong skippedWindows = new AtomicLong();
+	
+	private Thread thread = null;
+	
+	/***
+	 * 
+	 * @param beacon
+	 * @param capacity max. nbr of scan windows which have been scanned but not yet stored.
+	 * @param dutyCycleController gets the stats of each processed window
+	 */
+	ScanPipeline( Beacon beacon, int capacity, DutyCycleController dutyCycleController) {
+		super();
+		if ( capacity <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.beacon = beacon;
+		this.dutyCycleController = dutyCycleController;
+		this.segments = new ArrayBlockingQueue<TraceSegment>( capacity);
+		this.slots = new Semaphore( capacity);
+	}
+	
+	void start() {
+		this.thread = new Thread( this, "beacon-scan-pipeline");
+		this.thread.start();
+	}
+	
+	/***
+	 * to reserve room for the trace of a scan window which is about to start. never blocks.
+	 * 
+	 * @return false if storage is falling behind and the window should not be scanned.
+	 */
+	boolean tryReserve() {
+		if ( this.slots.tryAcquire()) {
+			return true;
+		}
+		final long skipped = this.skippedWindows.incrementAndGet();
+		windowsSkipped.inc();
+		logger.warning( String.format( "scan pipeline full, skipping scan window. %d windows skipped", skipped));
+		return false;
+	}
+	
+	/***
+	 * to give back a reservation for which no trace segment has been produced.
+	 */
+	void release() {
+		this.slots.release();
+	}
+	
+	/***
+	 * hands a closed trace segment to the pipeline. the caller must hold a reservation.
+	 * @param segment
+	 */
+	void submit( TraceSegment segment) {
+		if ( !this.segments.offer( segment)) {
+			// cannot happen as long as the caller reserved a slot...
+			logger.severe( "scan pipeline: no room for " + segment.fileName);
+			this.discard( segment);
+			this.slots.release();
+		}
+	}
+	
+	long getProcessedWindows() {
+		return this.processedWindows.get();
+	}
+	
+	long getSkippedWindows() {
+		return this.skippedWindows.get();
+	}
+	
+	private void discard( TraceSegment segment) {
+		final File f = new File( segment.fileName);
+		if ( f.exists() && !f.delete()) {
+			logger.warning( "failure to delete " + segment.fileName);
+		}
+	}
+	
+	/***
+	 * parse, aggregate and store one trace segment.
+	 * @param segment
+	 */
+	private void process( TraceSegment segment) {
+		
+		final long startTS = System.currentTimeMillis();
+		final EncounterAggregator aggregator = new EncounterAggregator();
+		
+		try {
+			
+			byte pduTypes[] = { HCIParser.HCI_EVENT /*, HCIParser.HCI_COMMAND */ };
+			
+			logger.info( String.format( "parsing hcidump trace: %s", segment.fileName));
+			
+			HCIParser.parseHCI( segment.fileName, pduTypes, new HCI_PDU_Handler() {
+				
+				@Override
+				public boolean onPDU( HCI_PDU pdu) {
+					if ( pdu instanceof LE_AdvertisingReport) {
+						return beacon.handle_LE_AdvertisingReport( (LE_AdvertisingReport) pdu, pdu.getTimeOfCapture(), aggregator);
+					}
+					return true;
+				}
+			});
+			
+		} catch ( Exception e) {
+			logger.severe( "failure in parsing dump trace: " + e.getMessage());
+			e.printStackTrace();
+		}
+		
+		this.beacon.storeEncounters( aggregator);
+		
+		final long duration = System.currentTimeMillis() - startTS;
+		
+		logger.info( String.format( "scan window %d: %d reports, %d proximity IDs, %d ms", 
+				segment.window, aggregator.getNbrReports(), aggregator.size(), duration));
+		
+		reportsPerWindow.record( aggregator.getNbrReports());
+		proximityIDsPerWindow.record( aggregator.size());
+		processingDuration.record( duration);
+		
+		this.dutyCycleController.onScanWindow( new DutyCycleController.WindowStats( 
+				segment.scanDuration, aggregator.getNbrReports(), aggregator.size(), Clock.getClock().toClockDuration( duration)));
+		
+		// when a window is done we attempt to purge the stores.
+		this.beacon.purge();
+	}
+	
+	@Override
+	public void run() {
+		while ( true) {
+			TraceSegment segment = null;
+			try {
+				segment = this.segments.take();
+			} catch ( InterruptedException e) {
+				return;
+			}
+			try {
+				this.process( segment);
+				this.processedWindows.incrementAndGet();
+			} catch ( Exception e) {
+				logger.severe( "scan pipeline: " + e.getMessage());
+				e.printStackTrace();
+			} finally {
+				this.discard( segment);
+				this.slots.release();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,25 @@
+package ch.binding.beacon;
+
+import ch.binding.beacon.hci.HCI_EventHandler;
+
+/***
+ * runs the scripts which control the Bluetooth controller: advertising, scanning and tracing with hcitool
+ * and hcidump. by default Beacon runs them as sub-processes. a simulation sets a runner of its own which
+ * stands in for the controller.
+ * 
+ * @author carl
+ *
+ */
+interface ScriptRunner {
+
+	/***
+	 * 
+	 * @param script e.g. ./scripts/launch_hcidump
+	 * @param envVars "ENV_VAR_NAME=value" strings passed to the script
+	 * @param eventHandler up-call for HCI events in the output of the script, can be null
+	 * @param lineHandler up-call for all other output lines, can be null
+	 * @return success/failure
+	 */
+	public boolean runScript( String script, String [] envVars, HCI_EventHandler eventHandler, ScriptLineHandler lineHandler);
+	
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import ch.binding.beacon.ProximityIDMatcher.Match;
+import ch.binding.beacon.ProximityIDMatcher.TempExpKey;
+import ch.binding.beacon.db.SQLiteProxIDMatcher;
+import ch.binding.beacon.hci.HCI_EventHandler;
+import ch.binding.beacon.hci.TraceGenerator;
+import ch.binding.beacon.metrics.MetricsRegistry;
+import ch.binding.beacon.utils.AcceleratedClock;
+import ch.binding.beacon.utils.Clock;
+
+/***
+ * runs the whole beacon - advertising, scanning, parsing, storing, key rollover and purging - against a
+ * simulated Bluetooth controller on an accelerated clock. at 1000x a 30 day deployment takes about 45 minutes.
+ *
+ * The scripts which drive hcitool and hcidump are not run. instead the simulated controller writes, at the
+ * end of each scan window, a synthetic trace of the devices in range during the window. see TraceGenerator.
+ *
+ * Every report interval (of simulated time) we write a line with the size of the database, the nbr of
+ * encounters and keys stored, the cost of purging and of a matcher run against a set of random infected keys.
+ *
+ * The simulation works on a copy of the proximity ID database and in the current working directory, which
+ * must contain beacon.properties.
+ *
+ * @author carl
+ *
+ */
+public class Simulation {
+
+	// by name: Beacon's static initializer must not run before the database has been set up.
+	private static Logger logger = Logger.getLogger( Beacon.class.getName());
+
+	private static final long ONE_DAY_MSECS = 24 * 60 * 60 * 1000;
+
+	/***
+	 * how often we look at the wall clock to see whether a report is due, milli-secs
+	 */
+	private static final long POLL_INTERVAL = 100;
+
+	public static final String REPORT_FILE_NAME = "/tmp/beacon_simulation.txt";
+
+	/***
+	 * stands in for hcitool and hcidump. scanning is traced into synthetic traces, everything else succeeds.
+	 */
+	static class SimulatedHCI implements ScriptRunner {
+
+		private final TraceGenerator generator;
+
+		private String traceFileName = null;
+		private long scanStart = 0;
+
+		private final Map<String, Long> scriptCounts = new TreeMap<String, Long>();
+
+		SimulatedHCI( TraceGenerator generator) {
+			super();
+			this.generator = generator;
+		}
+
+		private static String getEnvVar( String envVars[], String name) {
+			for ( int i = 0; envVars != null && i < envVars.length; i++) {
+				if ( envVars[i].startsWith( name + "=")) {
+					return envVars[i].substring( name.length() + 1);
+				}
+			}
+			return null;
+		}
+
+		synchronized Map<String, Long> getScriptCounts() {
+			return new TreeMap<String, Long>( this.scriptCounts);
+		}
+
+		@Override
+		public synchronized boolean runScript( String script, String[] envVars, HCI_EventHandler eventHandler, ScriptLineHandler lineHandler) {
+
+			final String name = new File( script).getName();
+			final Long n = this.scriptCounts.get( name);
+			this.scriptCounts.put( name, n == null ? 1 : n + 1);
+
+			if ( name.equals( "launch_hcidump")) {
+				this.traceFileName = getEnvVar( envVars, "HCI_DUMP_TRACE_FN");
+				this.scanStart = Clock.now();
+				if ( lineHandler != null) {
+					// as the script does, so that the scan can be stopped
+					lineHandler.onStdOutLine( "pids: 0 0");
+				}
+			} else if ( name.equals( "kill_hcidump")) {
+				if ( this.traceFileName == null) {
+					return false;
+				}
+				try {
+					this.generator.generate( this.traceFileName, this.scanStart, Clock.now());
+				} catch ( IOException e) {
+					logger.severe( "simulation: failure to write trace " + this.traceFileName + ": " + e.getMessage());
+					return false;
+				} finally {
+					this.traceFileName = null;
+				}
+			}
+			return true;
+		}
+	}
+
+	private final TraceGenerator.Config config;
+	private final double speedup;
+	private final long reportInterval;
+	private final int nbrInfectedKeys;
+	private final String dbFn;
+	private final SimulatedHCI hci;
+	private final Random random;
+
+	private PrintWriter report = null;
+
+	/***
+	 *
+	 * @param config devices, seed, start and duration of the simulation
+	 * @param speedup factor by which simulated time runs faster than real time
+	 * @param reportInterval simulated milli-secs between two reports
+	 * @param nbrInfectedKeys nbr of infected keys to match against in each report
+	 * @param dbFn the proximity ID database the beacon uses
+	 */
+	Simulation( TraceGenerator.Config config, double speedup, long reportInterval, int nbrInfectedKeys, String dbFn) {
+		super();
+		this.config = config;
+		this.speedup = speedup;
+		this.reportInterval = reportInterval;
+		this.nbrInfectedKeys = nbrInfectedKeys;
+		this.dbFn = dbFn;
+		this.hci = new SimulatedHCI( new TraceGenerator( config));
+		this.random = new Random( config.seed);
+	}
+
+	private long count( Statement stmt, String table) throws SQLException {
+		try ( ResultSet rs = stmt.executeQuery( "select count(*) from " + table)) {
+			return rs.next() ? rs.getLong( 1) : -1;
+		}
+	}
+
+	/***
+	 *
+	 * @return random temporary exposure keys of the past days, as if published by the health authority.
+	 */
+	private List<TempExpKey> getInfectedKeys() {
+		final List<TempExpKey> keys = new ArrayList<TempExpKey>( this.nbrInfectedKeys);
+		final long curPeriod = Crypto.getENPeriodStart( Crypto.getENIntervalNumber( Clock.now() / 1000));
+		for ( int i = 0; i < this.nbrInfectedKeys; i++) {
+			final byte key[] = new byte[16];
+			this.random.nextBytes( key);
+			final long period = curPeriod - Crypto.EK_ROLLING_PERIOD * (1 + this.random.nextInt( 14));
+			keys.add( new TempExpKey( period, key));
+		}
+		return keys;
+	}
+
+	private void writeReport( long wallStart) {
+		final long now = Clock.now();
+
+		long encounters = -1, tempExpKeys = -1;
+		final String url = "jdbc:sqlite:" + this.dbFn;
+		try ( Connection conn = DriverManager.getConnection( url); Statement stmt = conn.createStatement()) {
+			encounters = this.count( stmt, "Encounters");
+			tempExpKeys = this.count( stmt, "TempExpKeys");
+		} catch ( SQLException e) {
+			logger.warning( "simulation: failure to count rows: " + e.getMessage());
+		}
+
+		long matcherDuration = -1;
+		int nbrMatches = 0;
+		if ( this.nbrInfectedKeys > 0) {
+			try {
+				final SQLiteProxIDMatcher matcher = new SQLiteProxIDMatcher( this.dbFn);
+				final long startTS = System.currentTimeMillis();
+				final List<Match> matches = matcher.matches( this.getInfectedKeys(), 1);
+				matcherDuration = System.currentTimeMillis() - startTS;
+				nbrMatches = matches == null ? 0 : matches.size();
+			} catch ( Exception e) {
+				logger.warning( "simulation: matcher failed: " + e.getMessage());
+			}
+		}
+
+		final String line = String.format( "%s day %.2f wall %d s: db %d bytes, %d encounters, %d TEKs, purge %s, matcher %d keys %d ms %d matches, scripts %s",
+				new Date( now).toString(), (now - this.config.startTime) / (double) ONE_DAY_MSECS,
+				(System.currentTimeMillis() - wallStart) / 1000, new File( this.dbFn).length(), encounters, tempExpKeys,
+				MetricsRegistry.histogram( "beacon.purge.duration.ms").toString(),
+				this.nbrInfectedKeys, matcherDuration, nbrMatches, this.hci.getScriptCounts().toString());
+
+		logger.info( "simulation: " + line);
+		this.report.println( line);
+		this.report.flush();
+	}
+
+	/***
+	 * runs the simulation until the simulated duration has passed.
+	 *
+	 * @param pwd password of the beacon
+	 * @param reportFn file to write the reports to
+	 * @throws Exception
+	 */
+	void run( String pwd, String reportFn) throws Exception {
+
+		final AcceleratedClock clock = new AcceleratedClock( this.config.startTime, this.speedup);
+		Clock.setClock( clock);
+		Beacon.setScriptRunner( this.hci);
+
+		logger.info( String.format( "simulation: %s, %d devices, seed %d, %d days, db %s", clock.toString(),
+				this.config.nbrDevices, this.config.seed, this.config.duration / ONE_DAY_MSECS, this.dbFn));
+
+		this.report = new PrintWriter( new OutputStreamWriter( new FileOutputStream( reportFn), StandardCharsets.UTF_8));
+
+		final long wallStart = System.currentTimeMillis();
+		final Beacon beacon = new Beacon( pwd);
+		beacon.loop();
+
+		final long end = this.config.startTime + this.config.duration;
+		long nextReport = this.config.startTime;
+		do {
+			nextReport = Math.min( end, nextReport + this.reportInterval);
+			while ( Clock.now() < nextReport) {
+				Thread.sleep( POLL_INTERVAL);
+			}
+			this.writeReport( wallStart);
+		} while ( nextReport < end);
+		this.report.close();
+
+		MetricsRegistry.writeSnapshot( MetricsRegistry.SNAPSHOT_FILE_NAME);
+	}
+
+	private static long parseDuration( String s) {
+		// 90s, 15m, 2h, 3d or plain milli-secs
+		final char unit = s.charAt( s.length() - 1);
+		final String nbr = s.substring( 0, s.length() - 1);
+		switch ( unit) {
+		case 's':
+			return Long.parseLong( nbr) * 1000;
+		case 'm':
+			return Long.parseLong( nbr) * 60 * 1000;
+		case 'h':
+			return Long.parseLong( nbr) * 60 * 60 * 1000;
+		case 'd':
+			return Long.parseLong( nbr) * ONE_DAY_MSECS;
+		default:
+			return Long.parseLong( s);
+		}
+	}
+
+	public static void main( String[] args) {
+
+		final Options options = new Options();
+		options.addOption( "p", "pwd", true, "beacon password, default: simulation");
+		options.addOption( "x", "speedup", true, "how much faster than real time, default 1000");
+		options.addOption( "d", "duration", true, "simulated time, e.g. 12h, 30d, default 30d");
+		options.addOption( "n", "devices", true, "nbr of simulated devices, default 20");
+		options.addOption( "s", "seed", true, "seed of the random generators, default 0");
+		options.addOption( "r", "report", true, "simulated time between reports, default 1d");
+		options.addOption( "k", "keys", true, "nbr of infected keys to match per report, default 100");
+		options.addOption( "o", "out", true, "report file, default " + REPORT_FILE_NAME);
+		options.addOption( "h", "help", false, "this help");
+
+		final TraceGenerator.Config config = new TraceGenerator.Config();
+		String pwd = "simulation";
+		String reportFn = REPORT_FILE_NAME;
+		double speedup = 1000;
+		long reportInterval = ONE_DAY_MSECS;
+		int nbrInfectedKeys = 100;
+
+		final CommandLineParser parser = new DefaultParser();
+		try {
+			final CommandLine cmd = parser.parse( options, args);
+			if ( cmd.hasOption( 'h')) {
+				new HelpFormatter().printHelp( "Simulation", options);
+				return;
+			}
+			pwd = cmd.getOptionValue( "p", pwd);
+			reportFn = cmd.getOptionValue( "o", reportFn);
+			speedup = Double.parseDouble( cmd.getOptionValue( "x", "1000"));
+			config.duration = parseDuration( cmd.getOptionValue( "d", "30d"));
+			config.nbrDevices = Integer.parseInt( cmd.getOptionValue( "n", "20"));
+			config.seed = Long.parseLong( cmd.getOptionValue( "s", "0"));
+			reportInterval = parseDuration( cmd.getOptionValue( "r", "1d"));
+			nbrInfectedKeys = Integer.parseInt( cmd.getOptionValue( "k", "100"));
+		} catch ( ParseException | NumberFormatException e) {
+			System.err.println( "failure to parse command line options: " + e.getMessage());
+			new HelpFormatter().printHelp( "Simulation", options);
+			System.exit( -1);
+		}
+
+		final String cwd = System.getProperty( "user.dir");
+
+		// the beacon works on a copy of the checked-in database unless told otherwise
+		String dbFn = System.getProperty( "beacon.db");
+		try {
+			if ( dbFn == null) {
+				final File db = File.createTempFile( "simulation_", "_proximity_id_store.db");
+				Files.copy( new File( new File( cwd, "sqlite"), "proximity_id_store.db").toPath(), db.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				dbFn = db.getPath();
+				System.setProperty( "beacon.db", dbFn);
+			}
+		} catch ( IOException e) {
+			System.err.println( "failure to copy the database: " + e.getMessage());
+			System.exit( -1);
+		}
+
+		if ( !Beacon.loadProperties( cwd)) {
+			System.exit( -1);
+		}
+
+		config.startTime = System.currentTimeMillis();
+
+		try {
+			new Simulation( config, speedup, reportInterval, nbrInfectedKeys, dbFn).run( pwd, reportFn);
+		} catch ( Exception e) {
+			logger.severe( "simulation failed: " + e.getMessage());
+			e.printStackTrace();
+			System.exit( -1);
+		}
+
+		// the beacon's threads do not terminate by themselves
+		System.exit( 0);
+	}
+
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import ch.binding.beacon.db.SQLiteIDStore;
+import ch.binding.beacon.hci.HCIParser;
+import ch.binding.beacon.hci.HCI_PDU;
+import ch.binding.beacon.hci.HCI_PDU_Handler;
+import ch.binding.beacon.hci.LE_AdvertisingReport;
+
+/***
+ * rebuilds the encounters of a directory of archived btsnoop traces, e.g. one file per scan window over a month.
+ *
+ * The traces are parsed in parallel on a bounded pool of threads, each into an EncounterAggregator of its own.
+ * The aggregates are merged per rolling proximity ID (first and last time of capture, strongest RSSI) across files
+ * and loaded into the ProximityIDStore in large transactions.
+ *
+ * The names of the files whose encounters have been stored are appended to a manifest in the directory. when
+ * run again, e.g. after an interruption, files in the manifest are skipped. storing merges with the encounters
+ * already stored, so a file which was stored but did not make it into the manifest does no harm if ingested again.
+ *
+ * @author carl
+ *
+ */
+public class TraceIngestion {
+
+	private static Logger logger = Beacon.getLogger();
+
+	public static final String MANIFEST_FILE_NAME = ".ingested";
+
+	/***
+	 * default nbr of distinct proximity IDs after which the merged aggregate is stored
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 100000;
+
+	/***
+	 * the aggregate of one trace file
+	 */
+	private static class FileResult {
+		final File file;
+		final EncounterAggregator aggregator;
+		final long nbrErrors;
+
+		FileResult( File file, EncounterAggregator aggregator, long nbrErrors) {
+			this.file = file;
+			this.aggregator = aggregator;
+			this.nbrErrors = nbrErrors;
+		}
+	}
+
+	/***
+	 * parses one trace file into an aggregate. runs on a pool thread.
+	 */
+	private static class ParseTask implements Callable<FileResult> {
+
+		private final File file;
+
+		ParseTask( File file) {
+			super();
+			this.file = file;
+		}
+
+		@Override
+		public FileResult call() throws Exception {
+			final EncounterAggregator aggregator = new EncounterAggregator();
+			final long errors[] = { 0 };
+			final byte pduTypes[] = { HCIParser.HCI_EVENT };
+
+			HCIParser.parseHCI( this.file.getPath(), pduTypes, new HCI_PDU_Handler() {
+				@Override
+				public boolean onPDU( HCI_PDU pdu) {
+					if ( pdu instanceof LE_AdvertisingReport) {
+						try {
+							aggregator.add( (LE_AdvertisingReport) pdu, pdu.getTimeOfCapture());
+						} catch ( Exception e) {
+							errors[0]++;
+						}
+					}
+					return true;
+				}
+			});
+
+			return new FileResult( this.file, aggregator, errors[0]);
+		}
+	}
+
+	private final ProximityIDStore idStore;
+	private final int nbrThreads;
+	private final int batchSize;
+	private final File manifest;
+
+	// totals
+	private long nbrFiles = 0;
+	private long nbrBytes = 0;
+	private long nbrReports = 0;
+	private long nbrEncounters = 0;
+	private long nbrErrors = 0;
+	private long nbrFailedFiles = 0;
+	private long startTS = 0;
+
+	/***
+	 *
+	 * @param idStore where the encounters go
+	 * @param nbrThreads nbr of files parsed in parallel
+	 * @param batchSize nbr of distinct proximity IDs after which the merged aggregate is stored
+	 * @param manifest file listing the trace files already ingested
+	 */
+	public TraceIngestion( ProximityIDStore idStore, int nbrThreads, int batchSize, File manifest) {
+		super();
+		if ( idStore == null || nbrThreads <= 0 || batchSize <= 0 || manifest == null) {
+			throw new IllegalArgumentException();
+		}
+		this.idStore = idStore;
+		this.nbrThreads = nbrThreads;
+		this.batchSize = batchSize;
+		this.manifest = manifest;
+	}
+
+	private Set<String> readManifest() throws IOException {
+		final Set<String> names = new HashSet<String>();
+		if ( !this.manifest.exists()) {
+			return names;
+		}
+		try ( BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( this.manifest), StandardCharsets.UTF_8))) {
+			String line;
+			while ( (line = in.readLine()) != null) {
+				if ( !line.isEmpty()) {
+					names.add( line);
+				}
+			}
+		}
+		return names;
+	}
+
+	/***
+	 * appends the names of the files to the manifest and syncs it to disk.
+	 */
+	private void appendToManifest( List<File> files) throws IOException {
+		try ( FileOutputStream fos = new FileOutputStream( this.manifest, true);
+				Writer out = new OutputStreamWriter( fos, StandardCharsets.UTF_8)) {
+			for ( File f: files) {
+				out.write( f.getName());
+				out.write( '\n');
+			}
+			out.flush();
+			fos.getFD().sync();
+		}
+	}
+
+	private String getThroughput() {
+		final double secs = Math.max( 1, System.currentTimeMillis() - this.startTS) / 1000.0;
+		return String.format( "%d files, %.1f MB, %d reports, %d encounters stored, %d report errors, %d failed files in %.1f s: " +
+				"%.1f files/s, %.1f MB/s, %.0f reports/s",
+				this.nbrFiles, this.nbrBytes / 1E6, this.nbrReports, this.nbrEncounters, this.nbrErrors, this.nbrFailedFiles, secs,
+				this.nbrFiles / secs, this.nbrBytes / 1E6 / secs, this.nbrReports / secs);
+	}
+
+	/***
+	 * stores the merged aggregate in one transaction and records its files in the manifest.
+	 * @return success/failure
+	 */
+	private boolean flush( EncounterAggregator merged, List<File> files) throws IOException {
+		if ( files.isEmpty()) {
+			return true;
+		}
+		if ( !this.idStore.store( merged.getEncounters())) {
+			logger.severe( "trace ingestion: failure to store encounters");
+			return false;
+		}
+		this.appendToManifest( files);
+		this.nbrEncounters += merged.size();
+		logger.info( "trace ingestion: " + this.getThroughput());
+		return true;
+	}
+
+	/***
+	 * ingests all trace files in the directory which are not yet in the manifest.
+	 *
+	 * @param dir
+	 * @param suffix only files with this suffix are ingested, e.g. ".trace"
+	 * @return success/failure
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public boolean ingest( File dir, final String suffix) throws IOException, InterruptedException {
+
+		final File all[] = dir.listFiles();
+		if ( all == null) {
+			throw new IOException( "not a directory: " + dir.getPath());
+		}
+		Arrays.sort( all);
+
+		final Set<String> done = this.readManifest();
+		final List<File> files = new ArrayList<File>();
+		for ( File f: all) {
+			if ( f.isFile() && f.getName().endsWith( suffix) && !done.contains( f.getName())) {
+				files.add( f);
+			}
+		}
+		logger.info( String.format( "trace ingestion: %d trace files in %s, %d already ingested, %d threads",
+				files.size() + done.size(), dir.getPath(), done.size(), this.nbrThreads));
+
+		final ExecutorService pool = Executors.newFixedThreadPool( this.nbrThreads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread( Runnable r) {
+				final Thread t = new Thread( r, "beacon-ingest-" + count.incrementAndGet());
+				t.setDaemon( true);
+				return t;
+			}
+		});
+		final CompletionService<FileResult> completion = new ExecutorCompletionService<FileResult>( pool);
+
+		this.startTS = System.currentTimeMillis();
+
+		EncounterAggregator merged = new EncounterAggregator();
+		List<File> mergedFiles = new ArrayList<File>();
+
+		// at most twice as many files in flight as threads: parsed aggregates wait in memory until merged
+		final int maxPending = 2 * this.nbrThreads;
+		int next = 0;
+		int pending = 0;
+
+		try {
+			while ( next < files.size() || pending > 0) {
+
+				while ( next < files.size() && pending < maxPending) {
+					completion.submit( new ParseTask( files.get( next++)));
+					pending++;
+				}
+
+				final FileResult result;
+				try {
+					result = completion.take().get();
+				} catch ( ExecutionException e) {
+					// the file stays out of the manifest and is retried next time
+					this.nbrFailedFiles++;
+					logger.warning( "trace ingestion: failure to parse a trace: " + e.getCause());
+					continue;
+				} finally {
+					pending--;
+				}
+
+				merged.merge( result.aggregator);
+				mergedFiles.add( result.file);
+				this.nbrFiles++;
+				this.nbrBytes += result.file.length();
+				this.nbrReports += result.aggregator.getNbrReports();
+				this.nbrErrors += result.nbrErrors;
+
+				if ( merged.size() >= this.batchSize) {
+					if ( !this.flush( merged, mergedFiles)) {
+						return false;
+					}
+					merged = new EncounterAggregator();
+					mergedFiles = new ArrayList<File>();
+				}
+			}
+
+			if ( !this.flush( merged, mergedFiles)) {
+				return false;
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		logger.info( "trace ingestion done: " + this.getThroughput());
+		return this.nbrFailedFiles == 0;
+	}
+
+	public static void main( String[] args) {
+
+		final Options options = new Options();
+		options.addOption( "i", "in", true, "directory of btsnoop trace files");
+		options.addOption( "d", "db", true, "proximity ID database, default " + Beacon.getDBFN());
+		options.addOption( "t", "threads", true, "nbr of files parsed in parallel, default nbr of processors");
+		options.addOption( "b", "batch", true, "nbr of proximity IDs stored per transaction, default " + DEFAULT_BATCH_SIZE);
+		options.addOption( "s", "suffix", true, "suffix of trace files, default .trace");
+		options.addOption( "m", "manifest", true, "list of ingested files, default [in]/" + MANIFEST_FILE_NAME);
+		options.addOption( "h", "help", false, "this help");
+
+		final CommandLineParser parser = new DefaultParser();
+		try {
+			final CommandLine cmd = parser.parse( options, args);
+			if ( cmd.hasOption( 'h') || !cmd.hasOption( 'i')) {
+				new HelpFormatter().printHelp( "TraceIngestion", options);
+				System.exit( cmd.hasOption( 'h') ? 0 : -1);
+			}
+
+			final File dir = new File( cmd.getOptionValue( "i"));
+			final String dbFn = cmd.getOptionValue( "d", Beacon.getDBFN());
+			final int nbrThreads = Integer.parseInt( cmd.getOptionValue( "t", Integer.toString( Runtime.getRuntime().availableProcessors())));
+			final int batchSize = Integer.parseInt( cmd.getOptionValue( "b", Integer.toString( DEFAULT_BATCH_SIZE)));
+			final String suffix = cmd.getOptionValue( "s", ".trace");
+			final File manifest = cmd.hasOption( 'm') ? new File( cmd.getOptionValue( "m")) : new File( dir, MANIFEST_FILE_NAME);
+
+			final TraceIngestion ingestion = new TraceIngestion( new SQLiteIDStore( dbFn), nbrThreads, batchSize, manifest);
+			final boolean ok = ingestion.ingest( dir, suffix);
+			System.out.println( "done: " + ingestion.getThroughput());
+			System.exit( ok ? 0 : -1);
+
+		} catch ( ParseException | NumberFormatException e) {
+			System.err.println( "failure to parse command line options: " + e.getMessage());
+			new HelpFormatter().printHelp( "TraceIngestion", options);
+		} catch ( Exception e) {
+			logger.severe( "trace ingestion failed: " + e.getMessage());
+			e.printStackTrace();
+		}
+		System.exit( -1);
+	}
+
+}
@@ -21,6 +21,7 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.logging.Logger;
@@ -28,6 +29,11 @@ import java.util.logging.Logger;
 import ch.binding.beacon.Beacon;
 import ch.binding.beacon.ByteArray;
 import ch.binding.beacon.ProximityIDStore;
+import ch.binding.beacon.jfr.PurgeEvent;
+import ch.binding.beacon.jfr.StoreBatchEvent;
+import ch.binding.beacon.metrics.Histogram;
+import ch.binding.beacon.metrics.MetricsRegistry;
+import ch.binding.beacon.utils.Clock;
 
 /***
  * a straightforward implementation to store proximity IDs. not space optimized.
@@ -44,6 +50,11 @@ public class SQLiteIDStore implements ProximityIDStore {
 	
 	private static Logger logger = Beacon.getLogger();
 	
+	private static final Histogram storeLatency = MetricsRegistry.histogram( "idstore.store.latency.us");
+	private static final Histogram storeBatchLatency = MetricsRegistry.histogram( "idstore.storeBatch.latency.us");
+	private static final Histogram storeBatchSize = MetricsRegistry.histogram( "idstore.storeBatch.size");
+	private static final Histogram purgeLatency = MetricsRegistry.histogram( "idstore.purge.latency.us");
+	
 	private String dbURL = "jdbc:sqlite:/home/carl/workspace/beacon/sqlite/proximity_id_store.db";
 	
 	public SQLiteIDStore( final String fn) throws Exception {
@@ -75,7 +86,7 @@ public class SQLiteIDStore implements ProximityIDStore {
 			throw new IllegalArgumentException( "advertising payload must be 40 hex-digits");
 		}
 		long ts = timeOfCapture.getTime();
-		final long now = System.currentTimeMillis();
+		final long now = Clock.now();
 		if ( ts >= now) {
 			throw new IllegalArgumentException();
 		}
@@ -83,6 +94,8 @@ public class SQLiteIDStore implements ProximityIDStore {
 		final String proximity_id = serviceData.substring( 0, Beacon.ROLLING_PROXY_ID_LENGTH * 2);
 		final String assoc_enc_meta_data = serviceData.substring( Beacon.ROLLING_PROXY_ID_LENGTH * 2);
 		
+		final long startTS = System.nanoTime();
+		
 		final String select_stmt = "select * from Encounters where proximity_id = ?";
 		final String insert_stmt = "insert into Encounters ( proximity_id, assoc_enc_meta_data, first_toc, last_toc, rssi) values( ?, ?, ?, ?, ?)";
 		final String update_stmt = "update Encounters set last_toc = ?, rssi=? where proximity_id = ?";
@@ -141,29 +154,92 @@ public class SQLiteIDStore implements ProximityIDStore {
 	            logger.severe(e.getMessage());
 	            return false;
 	        } finally {
+	        	storeLatency.record( (System.nanoTime() - startTS) / 1000);
 	        }
 		
 		
 		return true;
 	}
 
+	@Override
+	public boolean store( Collection<ProximityID> encounters) {
+		if ( encounters == null) {
+			throw new IllegalArgumentException();
+		}
+		if ( encounters.isEmpty()) {
+			return true;
+		}
+		
+		final long startTS = System.nanoTime();
+		final StoreBatchEvent evt = new StoreBatchEvent();
+		evt.begin();
+		boolean success = false;
+		
+		// one transaction for the whole batch. existing encounters are merged.
+		final String upsert_stmt = "insert into Encounters ( proximity_id, assoc_enc_meta_data, first_toc, last_toc, rssi) values( ?, ?, ?, ?, ?) " +
+				"on conflict( proximity_id) do update set first_toc = min( first_toc, excluded.first_toc), " +
+				"last_toc = max( last_toc, excluded.last_toc), rssi = max( rssi, excluded.rssi)";
+		
+		try ( Connection conn = this.connect();
+			  PreparedStatement pstmt = conn.prepareStatement( upsert_stmt);
+				){
+			
+			conn.setAutoCommit( false);
+			
+			for ( ProximityID pid: encounters) {
+				pstmt.setString( 1, Beacon.byteArrToHex( pid.proximityID, true, false));
+				pstmt.setString( 2, Beacon.byteArrToHex( pid.encodedAssocMetaData, true, false));
+				pstmt.setLong( 3, pid.first_toc);
+				pstmt.setLong( 4, pid.last_toc);
+				pstmt.setInt( 5, pid.rssi);
+				pstmt.addBatch();
+			}
+			
+			pstmt.executeBatch();
+			conn.commit();
+			success = true;
+			
+		} catch (SQLException e) {
+			logger.severe(e.getMessage());
+			return false;
+		} finally {
+			storeBatchLatency.record( (System.nanoTime() - startTS) / 1000);
+			storeBatchSize.record( encounters.size());
+			evt.end();
+			if ( evt.shouldCommit()) {
+				evt.store = "Encounters";
+				evt.encounters = encounters.size();
+				evt.success = success;
+				evt.commit();
+			}
+		}
+		
+		return true;
+	}
+
 	@Override
 	public boolean purge(Date before) {
 		long ts = before.getTime();
-		if ( ts >= System.currentTimeMillis()) {
+		if ( ts >= Clock.now()) {
 			throw new IllegalArgumentException();
 		}
+		final long startTS = System.nanoTime();
+		final PurgeEvent evt = new PurgeEvent();
+		evt.begin();
+		int rows = -1;
 		String sql = "delete from Encounters where (last_toc < ?)";
 		try (Connection conn = this.connect(); 
 				PreparedStatement pstmt = conn.prepareStatement(sql);) {
 
 			pstmt.setLong( 1, ts);
-			pstmt.executeUpdate();
+			rows = pstmt.executeUpdate();
 
 		} catch (SQLException e) {
 			logger.severe(e.getMessage());
 			return false;
 		} finally {
+			purgeLatency.record( (System.nanoTime() - startTS) / 1000);
+			commitPurgeEvent( evt, "Encounters.purge", rows);
 		}
 		return true;
 	}
@@ -171,11 +247,15 @@ public class SQLiteIDStore implements ProximityIDStore {
 	@Override
 	public boolean purgeEphemeralEncounters( long duration, Date before) {
 		long ts = before.getTime();
-		final long now = System.currentTimeMillis();
+		final long now = Clock.now();
 		if ( now - ts <= duration) {
 			throw new IllegalArgumentException( "before time-stamp not sufficiently far back in time...");
 		}
 		
+		final long startTS = System.nanoTime();
+		final PurgeEvent evt = new PurgeEvent();
+		evt.begin();
+		int rows = -1;
 		String sql = "delete from Encounters where (last_toc < ?) and ((last_toc - first_toc) < ?)";
 		
 		try (Connection conn = this.connect(); 
@@ -184,17 +264,35 @@ public class SQLiteIDStore implements ProximityIDStore {
 			pstmt.setLong( 1, ts);
 			pstmt.setLong( 2, duration);
 			
-			pstmt.executeUpdate();
+			rows = pstmt.executeUpdate();
 
 		} catch (SQLException e) {
 			logger.severe(e.getMessage());
 			return false;
 		} finally {
+			purgeLatency.record( (System.nanoTime() - startTS) / 1000);
+			commitPurgeEvent( evt, "Encounters.purgeEphemeralEncounters", rows);
 		}
 		
 		return true;
 	}
 
+	/***
+	 * 
+	 * @param evt
+	 * @param operation
+	 * @param rows nbr of deleted rows, < 0 on failure
+	 */
+	static void commitPurgeEvent( PurgeEvent evt, String operation, int rows) {
+		evt.end();
+		if ( evt.shouldCommit()) {
+			evt.operation = operation;
+			evt.rows = Math.max( 0, rows);
+			evt.success = rows >= 0;
+			evt.commit();
+		}
+	}
+	
 	@Override
 	public HashMap<ByteArray, ProximityID> getProximityIDs(long from_ts, long to_ts) {
 		
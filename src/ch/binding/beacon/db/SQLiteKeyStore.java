@@ -15,15 +15,21 @@
  */
 package ch.binding.beacon.db;
 
+import java.security.GeneralSecurityException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.logging.Logger;
 
 import ch.binding.beacon.Beacon;
 import ch.binding.beacon.KeyStore;
+import ch.binding.beacon.jfr.PurgeEvent;
 import ch.binding.beacon.utils.AESEncrypt;
 
 public class SQLiteKeyStore 
@@ -33,17 +39,44 @@ implements KeyStore {
 	
 	private String dbURL = "jdbc:sqlite:/home/carl/workspace/beacon/sqlite/proximity_id_store.db";
 
-	private String pwd;
+	/***
+	 * bound to the password and the salt of the store, null if key material is stored unencrypted
+	 */
+	private AESEncrypt aes = null;
+	
+	/***
+	 * name of the row of KeyStoreMeta holding the salt of the key derivation
+	 */
+	private static final String SALT = "kdf.salt";
 	
 	/**
+	 * the salt is kept in the DB, i.e. the key is derived with the same salt across restarts. keys written
+	 * in the original format or with another salt are re-encrypted once.
 	 * 
 	 * @param pwd if non null, attempt to encrypt/decrypt key material
 	 * @param dbFn file name of SQLite DB
+	 * @param kdfIterations cost of deriving the key from the password, paid once
 	 */
-	public SQLiteKeyStore( String pwd, String dbFn) {
+	public SQLiteKeyStore( String pwd, String dbFn, int kdfIterations) {
 		super();
-		this.pwd = pwd;
 		this.dbURL = "jdbc:sqlite:" + dbFn;
+		if ( pwd != null) {
+			final byte salt[] = this.getSalt();
+			if ( salt == null) {
+				throw new IllegalStateException( "cannot get the key derivation salt of " + dbFn);
+			}
+			try {
+				this.aes = new AESEncrypt( pwd, kdfIterations, salt);
+			} catch ( GeneralSecurityException e) {
+				logger.severe( e.getMessage());
+				throw new IllegalStateException( e);
+			}
+			this.reEncryptKeys();
+		}
+	}
+	
+	public SQLiteKeyStore( String pwd, String dbFn) {
+		this( pwd, dbFn, AESEncrypt.DEFAULT_ITERATIONS);
 	}
 	
 	private Connection connect() {
@@ -57,6 +90,49 @@ implements KeyStore {
         return conn;
     }
 	
+	/***
+	 * the salt of the store, a new one is stored on first use.
+	 * 
+	 * @return AESEncrypt.SALT_LEN bytes, null on failure
+	 */
+	private byte[] getSalt() {
+		
+		final String create_stmt = "create table if not exists KeyStoreMeta ( name text primary key, value blob)";
+		final String select_stmt = "select value from KeyStoreMeta where name = ?";
+		final String insert_stmt = "insert or ignore into KeyStoreMeta ( name, value) values( ?, ?)";
+		
+		try ( Connection conn = this.connect()) {
+			
+			// the table must exist before the other statements are prepared
+			try ( PreparedStatement pstmt = conn.prepareStatement( create_stmt)) {
+				pstmt.executeUpdate();
+			}
+			
+			// keeps the salt of a concurrent first use, if any
+			try ( PreparedStatement pstmt = conn.prepareStatement( insert_stmt)) {
+				pstmt.setString( 1, SALT);
+				pstmt.setBytes( 2, AESEncrypt.newSalt());
+				pstmt.executeUpdate();
+			}
+			
+			try ( PreparedStatement pstmt = conn.prepareStatement( select_stmt)) {
+				pstmt.setString( 1, SALT);
+				try ( ResultSet rs = pstmt.executeQuery()) {
+					if ( rs.next()) {
+						final byte salt[] = rs.getBytes( "value");
+						if ( salt != null && salt.length == AESEncrypt.SALT_LEN) {
+							return salt;
+						}
+						logger.severe( "invalid key derivation salt");
+					}
+				}
+			}
+		} catch (SQLException e) {
+			logger.severe(e.getMessage());
+		}
+		return null;
+	}
+	
 	@Override
 	public String getKey(long keyGenIntvlNbr) {
 
@@ -84,8 +160,8 @@ implements KeyStore {
 				return null;
 			}
 			
-			if ( pwd != null) {
-				String unencryptedKey = AESEncrypt.decrypt( key, this.pwd);
+			if ( this.aes != null) {
+				String unencryptedKey = this.aes.decryptString( key);
 				return unencryptedKey;
 			} else {
 				return key;
@@ -97,6 +173,47 @@ implements KeyStore {
 		return null;
 	}
 
+	/***
+	 * one query for the whole range, one pass to decrypt the keys.
+	 */
+	@Override
+	public SortedMap<Long, String> getKeys( long fromIntvlNbr, long toIntvlNbr) {
+		
+		final String select_stmt = "select ENIN, key from TempExpKeys where ENIN between ? and ? order by ENIN";
+		
+		final List<Long> enins = new ArrayList<Long>();
+		List<String> keys = new ArrayList<String>();
+		
+		try ( Connection conn = this.connect(); PreparedStatement pstmt = conn.prepareStatement( select_stmt);) {
+			
+			pstmt.setLong( 1, fromIntvlNbr);
+			pstmt.setLong( 2, toIntvlNbr);
+			
+			try ( ResultSet rs = pstmt.executeQuery()) {
+				while ( rs.next()) {
+					enins.add( rs.getLong( "ENIN"));
+					keys.add( rs.getString( "key"));
+				}
+			}
+		} catch (SQLException e) {
+			logger.severe(e.getMessage());
+			return null;
+		}
+		
+		if ( this.aes != null && !keys.isEmpty()) {
+			keys = this.aes.decryptStrings( keys);
+			if ( keys == null) {
+				return null;
+			}
+		}
+		
+		final SortedMap<Long, String> result = new TreeMap<Long, String>();
+		for ( int i = 0; i < enins.size(); i++) {
+			result.put( enins.get( i), keys.get( i));
+		}
+		return result;
+	}
+
 	@Override
 	public boolean addKey(long keyGenIntvlNbr, String key) {
 		
@@ -106,8 +223,11 @@ implements KeyStore {
 		
 		String dbKey = key;
 		
-		if ( this.pwd != null) {
-			dbKey = AESEncrypt.encrypt( key, this.pwd);
+		if ( this.aes != null) {
+			dbKey = this.aes.encryptString( key);
+			if ( dbKey == null) {
+				return false;
+			}
 		}
 			
 		try ( Connection conn = this.connect();
@@ -148,19 +268,87 @@ implements KeyStore {
 	@Override
 	public boolean purge(long beforeIntvlNbr) {
 
+		final PurgeEvent evt = new PurgeEvent();
+		evt.begin();
+		int rows = -1;
 		String sql = "delete from TempExpKeys where (ENIN < ?)";
 		try (Connection conn = this.connect(); 
 				PreparedStatement pstmt = conn.prepareStatement(sql);) {
 
 			pstmt.setLong( 1, beforeIntvlNbr);
-			pstmt.executeUpdate();
+			rows = pstmt.executeUpdate();
 
 		} catch (SQLException e) {
 			logger.severe(e.getMessage());
 			return false;
 		} finally {
+			SQLiteIDStore.commitPurgeEvent( evt, "TempExpKeys.purge", rows);
 		}
 		return true;
 	}
+	
+	/***
+	 * re-encrypts keys still stored in the original AESEncrypt format or written with another salt or cost, 
+	 * in one transaction. done at start-up.
+	 * 
+	 * @return nbr of keys re-encrypted, -1 on failure
+	 */
+	public int reEncryptKeys() {
+		if ( this.aes == null) {
+			return 0;
+		}
+		
+		final String select_stmt = "select ENIN, key from TempExpKeys";
+		final String update_stmt = "update TempExpKeys set key = ? where ENIN = ?";
+		
+		try ( Connection conn = this.connect()) {
+			final List<Long> enins = new ArrayList<Long>();
+			final List<String> keys = new ArrayList<String>();
+			
+			try ( PreparedStatement pstmt = conn.prepareStatement( select_stmt); ResultSet rs = pstmt.executeQuery()) {
+				while ( rs.next()) {
+					final String key = rs.getString( "key");
+					if ( key != null && !this.aes.isCurrentFormat( key)) {
+						enins.add( rs.getLong( "ENIN"));
+						keys.add( key);
+					}
+				}
+			}
+			if ( enins.isEmpty()) {
+				return 0;
+			}
+			
+			int count = 0;
+			conn.setAutoCommit( false);
+			try ( PreparedStatement pstmt = conn.prepareStatement( update_stmt)) {
+				for ( int i = 0; i < enins.size(); i++) {
+					final String plain = this.aes.decryptString( keys.get( i));
+					if ( plain == null) {
+						// e.g. written with another password or cost
+						logger.warning( String.format( "cannot decrypt temporary exposure key: %d", enins.get( i)));
+						continue;
+					}
+					final String encrypted = this.aes.encryptString( plain);
+					if ( encrypted == null) {
+						continue;
+					}
+					pstmt.setString( 1, encrypted);
+					pstmt.setLong( 2, enins.get( i));
+					pstmt.addBatch();
+					count++;
+				}
+				pstmt.executeBatch();
+				conn.commit();
+			} catch ( SQLException e) {
+				conn.rollback();
+				throw e;
+			}
+			logger.info( String.format( "re-encrypted %d temporary exposure keys", count));
+			return count;
+		} catch (SQLException e) {
+			logger.severe(e.getMessage());
+			return -1;
+		}
+	}
 
 }
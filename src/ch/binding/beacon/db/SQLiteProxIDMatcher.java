@@ -26,17 +26,27 @@ import ch.binding.beacon.ProximityIDMatcher.Match;
 import ch.binding.beacon.ProximityIDMatcher.TempExpKey;
 import ch.binding.beacon.ProximityIDStore.ProximityID;
 import ch.binding.beacon.ProximityIDStore;
+import ch.binding.beacon.jfr.MatcherRunEvent;
+import ch.binding.beacon.metrics.Counter;
+import ch.binding.beacon.metrics.Histogram;
+import ch.binding.beacon.metrics.MetricsRegistry;
 import ch.binding.beacon.utils.AESEncrypt;
+import ch.binding.beacon.utils.Clock;
 
 public class SQLiteProxIDMatcher implements ProximityIDMatcher {
 	
 	private String dbURL = "jdbc:sqlite:/home/carl/workspace/beacon/sqlite/proximity_id_store.db";
 	private ProximityIDStore idStore = null; 
 	
+	private static final Counter keysMatched = MetricsRegistry.counter( "matcher.keys");
+	private static final Counter proximityIDsDerived = MetricsRegistry.counter( "matcher.proximityIDs");
+	private static final Counter matchesFound = MetricsRegistry.counter( "matcher.matches");
+	private static final Histogram matchDuration = MetricsRegistry.histogram( "matcher.duration.ms");
+	
 	public SQLiteProxIDMatcher( String dbFn) throws Exception {
 		super();
 		this.dbURL = "jdbc:sqlite:" + dbFn;
-		this.idStore = new SQLiteIDStore("/home/carl/workspace/beacon/sqlite/proximity_id_store.db");
+		this.idStore = new SQLiteIDStore( dbFn);
 	}
 	
 	private Connection connect() {
@@ -85,8 +95,13 @@ public class SQLiteProxIDMatcher implements ProximityIDMatcher {
 			throw new IllegalStateException();
 		}
 		
+		final MatcherRunEvent evt = new MatcherRunEvent();
+		evt.begin();
+		
 		// iterate over the past INCUBATION_TIME days. so we have around INCUBATION_TIME * # infectedTempExpKeys.
-		final long now = System.currentTimeMillis();
+		final long startTS = System.currentTimeMillis();
+		final long now = Clock.now();
+		long nbrDerived = 0;
 		final long curIntvl = Crypto.getENIntervalNumber( now/1000);
 		final long fromIntvl = Crypto.getENPeriodStart(curIntvl) - Crypto.EK_ROLLING_PERIOD * INCUBATION_TIME;
 		
@@ -121,6 +136,7 @@ public class SQLiteProxIDMatcher implements ProximityIDMatcher {
 				for ( TempExpKey tek: keysOfDay) {
 					try {
 						ByteArray proxID = new ByteArray( Crypto.getRollingProximityID( tek.tempExposureKey, curEpoch));
+						nbrDerived++;
 						if ( proximityIDs.containsKey(proxID)) {
 							final Match match = new Match( tek, proximityIDs.get(proxID));
 							matches.add( match);
@@ -133,6 +149,20 @@ public class SQLiteProxIDMatcher implements ProximityIDMatcher {
 			}
 		}		
 		
+		keysMatched.add( infectedTempExpKeys.size());
+		proximityIDsDerived.add( nbrDerived);
+		matchesFound.add( matches.size());
+		matchDuration.record( System.currentTimeMillis() - startTS);
+		
+		evt.end();
+		if ( evt.shouldCommit()) {
+			evt.protocol = "EN";
+			evt.keys = infectedTempExpKeys.size();
+			evt.derived = nbrDerived;
+			evt.matches = matches.size();
+			evt.commit();
+		}
+		
 		return matches;
 	}
 	
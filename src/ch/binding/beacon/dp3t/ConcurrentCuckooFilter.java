@@ -0,0 +1,527 @@
+package ch.binding.beacon.dp3t;
+
+import java.nio.LongBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+/***
+ * a thread-safe variant of CuckooFilter with the same table layout and hashing. i.e. a filter built here can be
+ * turned into a CuckooFilter with toCuckooFilter(), e.g. to be written to a file.
+ *
+ * lookups do not take locks. each stripe of buckets has a version which a write to one of its buckets makes odd 
+ * before and even again after changing the slot. a lookup reads the versions of the item's two buckets, then the 
+ * buckets, and retries if a version was odd or has changed meanwhile. i.e. it sees both buckets as they were at 
+ * one point in time, neither a slot torn across two words nor a fingerprint which is being moved from the 
+ * bucket read second to the bucket read first can make it miss an item.
+ *
+ * inserts lock the stripes of the item's two buckets and take a free slot if there is one. otherwise they take
+ * the kick lock, search a path of evictions ending in a free slot without modifying the table, and then move
+ * the fingerprints along the path backwards, each move under the lock of the target bucket. a fingerprint
+ * is copied to its alternate bucket before its old slot is overwritten, i.e. it is always in one of its buckets. 
+ * deletes take the kick lock as well, so the fingerprints on a path can only change by the thread which moves them.
+ *
+ * slots sharing a word are updated with compare-and-set on the word.
+ *
+ * the filter does not grow, an insert fails if no path is found. bulkLoad() returns the items which failed, to be
+ * inserted into the CuckooFilter from toCuckooFilter(), which chains to a secondary filter when full.
+ *
+ * @author carl
+ *
+ */
+public class ConcurrentCuckooFilter {
+
+	/***
+	 * maps the items handed to bulkLoad() to the bytes inserted, e.g. a seed to the hash of its EphID.
+	 */
+	public static interface ItemMapper<T> {
+		public byte[] map( T t) throws NoSuchAlgorithmException;
+	}
+
+	private static final int MAX_NBR_STRIPES = 1024;
+
+	/***
+	 * max. length of a path of evictions
+	 */
+	private static final int MAX_PATH_LEN = 250;
+
+	/***
+	 * bulkLoad() splits the items down to chunks of about this size
+	 */
+	private static final int BULK_CHUNK = 4096;
+
+	private final AtomicLongArray table;
+	private final int nbrBuckets;
+	private final int bucketSize;
+	private final int fpBits;
+	private final long fpMask;
+	private final int bucketMask;
+	private final long seed;
+	private final int maxNbrKicks;
+
+	private final CuckooFilter.FingerPrinter fp;
+
+	private final Object stripes[];
+	private final int stripeMask;
+	
+	/***
+	 * per stripe, odd while a slot of the stripe is written
+	 */
+	private final AtomicLongArray versions;
+	private final Object kickLock = new Object();
+
+	private final AtomicLong count = new AtomicLong();
+
+	/***
+	 *
+	 * @param tableSize nbr of buckets, rounded up to a power of two
+	 * @param bucketSize nbr of fingerprints per bucket
+	 * @param fpBits size of fingerprints in bits, CuckooFilter.MIN_FP_BITS to CuckooFilter.MAX_FP_BITS
+	 * @param seed of the item hash
+	 * @param fp pre-processing of items, can be null
+	 */
+	public ConcurrentCuckooFilter( int tableSize, int bucketSize, int fpBits, long seed, CuckooFilter.FingerPrinter fp) {
+		super();
+
+		if ( tableSize <= 0 || bucketSize <= 0 || fpBits < CuckooFilter.MIN_FP_BITS || fpBits > CuckooFilter.MAX_FP_BITS) {
+			throw new IllegalArgumentException();
+		}
+
+		this.nbrBuckets = CuckooFilter.pwrOfTwo( tableSize);
+		this.bucketSize = bucketSize;
+		this.fpBits = fpBits;
+		this.fpMask = (1L << fpBits) - 1;
+		this.bucketMask = this.nbrBuckets - 1;
+		this.seed = seed;
+		this.fp = fp;
+		this.maxNbrKicks = CuckooFilter.maxNbrKicks( this.nbrBuckets);
+
+		this.table = new AtomicLongArray( CuckooFilter.nbrWords( this.nbrBuckets, bucketSize, fpBits));
+
+		final int nbrStripes = Math.min( this.nbrBuckets, MAX_NBR_STRIPES);
+		this.stripes = new Object[ nbrStripes];
+		for ( int i = 0; i < nbrStripes; i++) {
+			this.stripes[i] = new Object();
+		}
+		this.stripeMask = nbrStripes - 1;
+		this.versions = new AtomicLongArray( nbrStripes);
+	}
+
+	public ConcurrentCuckooFilter( int tableSize, int bucketSize, int fpBits, CuckooFilter.FingerPrinter fp) {
+		this( tableSize, bucketSize, fpBits, CuckooFilter.DEFAULT_SEED, fp);
+	}
+
+	/***
+	 *
+	 * @param nbrItems expected nbr of items
+	 * @param fpBits
+	 * @return a filter with CuckooFilter.DEFAULT_BUCKET_SIZE holding nbrItems at a load of at most 95%
+	 */
+	public static ConcurrentCuckooFilter forCapacity( long nbrItems, int fpBits) {
+		final long nbrBuckets = (long) Math.ceil( nbrItems / (0.95 * CuckooFilter.DEFAULT_BUCKET_SIZE));
+		if ( nbrBuckets > (1 << 30)) {
+			throw new IllegalArgumentException();
+		}
+		return new ConcurrentCuckooFilter( (int) Math.max( 1, nbrBuckets), CuckooFilter.DEFAULT_BUCKET_SIZE, fpBits, CuckooFilter.DEFAULT_SEED, null);
+	}
+
+	public long getCount() {
+		return this.count.get();
+	}
+
+	public long getSize() {
+		return (long) this.nbrBuckets * this.bucketSize;
+	}
+
+	public double getLoadFactor() {
+		return (double) this.getCount() / this.getSize();
+	}
+
+	/***
+	 *
+	 * @return a CuckooFilter with a copy of the table. not consistent if there are concurrent inserts or deletes.
+	 */
+	public CuckooFilter toCuckooFilter() {
+		final long words[] = new long[ this.table.length()];
+		for ( int w = 0; w < words.length; w++) {
+			words[w] = this.table.get( w);
+		}
+		return new CuckooFilter( LongBuffer.wrap( words), this.nbrBuckets, this.bucketSize, this.fpBits, this.seed,
+				this.count.get(), this.fp);
+	}
+
+	private long hashItem( byte x[]) throws NoSuchAlgorithmException {
+		return CuckooFilter.hash64( this.fp == null ? x : this.fp.doFingerprint( x), this.seed);
+	}
+
+	private int getSlot( long s) {
+		final long bit = s * this.fpBits;
+		final int w = (int) (bit >>> 6);
+		final int off = (int) (bit & 63);
+		long v = this.table.get( w) >>> off;
+		if ( off + this.fpBits > 64) {
+			v |= this.table.get( w + 1) << (64 - off);
+		}
+		return (int) (v & this.fpMask);
+	}
+
+	private void setWordBits( int w, long mask, long bits) {
+		while ( true) {
+			final long old = this.table.get( w);
+			if ( this.table.compareAndSet( w, old, (old & ~mask) | bits)) {
+				return;
+			}
+		}
+	}
+
+	/***
+	 * must hold the lock of the slot's bucket.
+	 */
+	private void setSlot( long s, int f) {
+		final int k = (int) (s / this.bucketSize) & this.stripeMask;
+		final long bit = s * this.fpBits;
+		final int w = (int) (bit >>> 6);
+		final int off = (int) (bit & 63);
+		final long v = f & this.fpMask;
+		this.versions.incrementAndGet( k);
+		this.setWordBits( w, this.fpMask << off, v << off);
+		if ( off + this.fpBits > 64) {
+			final int n = 64 - off;
+			this.setWordBits( w + 1, this.fpMask >>> n, v >>> n);
+		}
+		this.versions.incrementAndGet( k);
+	}
+	
+	/***
+	 * 
+	 * @return the even version of bucket i's stripe, waits while a slot of the stripe is written
+	 */
+	private long readVersion( int i) {
+		final int k = i & this.stripeMask;
+		long v;
+		while ( ((v = this.versions.get( k)) & 1) != 0) {
+			Thread.yield();
+		}
+		return v;
+	}
+
+	private boolean bucketContains( int i, int f) {
+		final long base = (long) i * this.bucketSize;
+		for ( int j = 0; j < this.bucketSize; j++) {
+			if ( this.getSlot( base + j) == f) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/***
+	 *
+	 * @return index of a free slot in bucket i or -1
+	 */
+	private int freeSlot( int i) {
+		final long base = (long) i * this.bucketSize;
+		for ( int j = 0; j < this.bucketSize; j++) {
+			if ( this.getSlot( base + j) == 0) {
+				return j;
+			}
+		}
+		return -1;
+	}
+
+	private Object stripe( int i) {
+		return this.stripes[ i & this.stripeMask];
+	}
+
+	/***
+	 * puts f into a free slot of bucket i1 or i2, under the locks of both.
+	 */
+	private boolean insertIntoFreeSlot( int i1, int i2, int f) {
+		Object l1 = this.stripe( i1);
+		Object l2 = this.stripe( i2);
+		// always lock in the same order
+		if ( (i1 & this.stripeMask) > (i2 & this.stripeMask)) {
+			final Object l = l1;
+			l1 = l2;
+			l2 = l;
+		}
+		synchronized ( l1) {
+			synchronized ( l2) {
+				int j = this.freeSlot( i1);
+				if ( j >= 0) {
+					this.setSlot( (long) i1 * this.bucketSize + j, f);
+					return true;
+				}
+				j = this.freeSlot( i2);
+				if ( j >= 0) {
+					this.setSlot( (long) i2 * this.bucketSize + j, f);
+					return true;
+				}
+				return false;
+			}
+		}
+	}
+
+	/***
+	 * copies fingerprint f into slot 'to' of bucket k which must hold 'expected'. when moving along a path, 
+	 * f remains in its old slot until that is overwritten by the next move.
+	 *
+	 * @return false if the slot 'to' does not hold 'expected' any longer
+	 */
+	private boolean copySlot( int k, int to, int expected, int f) {
+		synchronized ( this.stripe( k)) {
+			final long s = (long) k * this.bucketSize + to;
+			if ( this.getSlot( s) != expected) {
+				return false;
+			}
+			this.setSlot( s, f);
+			return true;
+		}
+	}
+
+	private static boolean onPath( int buckets[], int slots[], int len, int b, int j) {
+		for ( int n = 0; n < len; n++) {
+			if ( buckets[n] == b && slots[n] == j) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/***
+	 * searches a path of evictions from bucket i and executes it backwards. must hold the kick lock.
+	 *
+	 * @return true if f was inserted
+	 */
+	private boolean kick( int i, int f) {
+		final ThreadLocalRandom rnd = ThreadLocalRandom.current();
+
+		final int buckets[] = new int[ MAX_PATH_LEN + 1];
+		final int slots[] = new int[ MAX_PATH_LEN + 1];
+		final int fps[] = new int[ MAX_PATH_LEN + 1];
+
+		int nbrKicks = 0;
+		while ( nbrKicks < this.maxNbrKicks) {
+			// search a path: fps[n] is in slots[n] of buckets[n] and moves to buckets[n+1]
+			int b = i;
+			int len = 0;
+			int free = -1;
+			while ( len < MAX_PATH_LEN && nbrKicks < this.maxNbrKicks) {
+				nbrKicks++;
+				final int j = rnd.nextInt( this.bucketSize);
+				final int e;
+				// not torn by a concurrent insert into the slot
+				synchronized ( this.stripe( b)) {
+					e = this.getSlot( (long) b * this.bucketSize + j);
+				}
+				if ( e == 0) {
+					// a slot was freed in the meantime
+					free = j;
+					break;
+				}
+				if ( onPath( buckets, slots, len, b, j)) {
+					// a cycle, moving the same fingerprint twice would break the moves' pre-conditions
+					break;
+				}
+				buckets[len] = b;
+				slots[len] = j;
+				fps[len] = e;
+				len++;
+
+				b = CuckooFilter.altIndex( b, e, this.bucketMask);
+				free = this.freeSlot( b);
+				if ( free >= 0) {
+					break;
+				}
+			}
+			if ( free < 0) {
+				continue;
+			}
+
+			// execute the path backwards, starting with the move into the free slot
+			int to = free;
+			int toBucket = b;
+			int expected = 0;
+			boolean ok = true;
+			for ( int n = len - 1; n >= 0; n--) {
+				if ( !this.copySlot( toBucket, to, expected, fps[n])) {
+					// only possible for the free slot which was taken by a concurrent insert
+					assert( n == len - 1);
+					ok = false;
+					break;
+				}
+				to = slots[n];
+				toBucket = buckets[n];
+				expected = fps[n];
+			}
+			if ( ok && this.copySlot( toBucket, to, expected, f)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public boolean insert( byte[] x) throws NoSuchAlgorithmException {
+
+		final long h = this.hashItem( x);
+		final int f = CuckooFilter.fingerprint( h, this.fpBits);
+
+		final int i1 = (int) h & this.bucketMask;
+		final int i2 = CuckooFilter.altIndex( i1, f, this.bucketMask);
+
+		if ( this.insertIntoFreeSlot( i1, i2, f)) {
+			this.count.incrementAndGet();
+			return true;
+		}
+
+		synchronized ( this.kickLock) {
+			// another kick may have made room meanwhile
+			if ( this.insertIntoFreeSlot( i1, i2, f)
+					|| this.kick( ThreadLocalRandom.current().nextBoolean() ? i1 : i2, f)) {
+				this.count.incrementAndGet();
+				return true;
+			}
+		}
+		// hashtable full
+		return false;
+	}
+
+	/***
+	 * lock-free, retries while a concurrent write changes the stripes of the item's buckets.
+	 */
+	public boolean lookup( byte[] x) throws NoSuchAlgorithmException {
+		final long h = this.hashItem( x);
+		final int f = CuckooFilter.fingerprint( h, this.fpBits);
+
+		final int i1 = (int) h & this.bucketMask;
+		final int i2 = CuckooFilter.altIndex( i1, f, this.bucketMask);
+		while ( true) {
+			final long v1 = this.readVersion( i1);
+			final long v2 = this.readVersion( i2);
+			final boolean found = this.bucketContains( i1, f) || this.bucketContains( i2, f);
+			if ( this.versions.get( i1 & this.stripeMask) == v1 && this.versions.get( i2 & this.stripeMask) == v2) {
+				return found;
+			}
+		}
+	}
+
+	private boolean bucketDelete( int i, int f) {
+		synchronized ( this.stripe( i)) {
+			final long base = (long) i * this.bucketSize;
+			for ( int j = 0; j < this.bucketSize; j++) {
+				if ( this.getSlot( base + j) == f) {
+					this.setSlot( base + j, 0);
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	public boolean delete( byte[] x) throws NoSuchAlgorithmException {
+		final long h = this.hashItem( x);
+		final int f = CuckooFilter.fingerprint( h, this.fpBits);
+
+		final int i1 = (int) h & this.bucketMask;
+		synchronized ( this.kickLock) {
+			if ( this.bucketDelete( i1, f) || this.bucketDelete( CuckooFilter.altIndex( i1, f, this.bucketMask), f)) {
+				this.count.decrementAndGet();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/***
+	 * inserts the items in parallel: the spliterator is split into chunks which are mapped and inserted by the
+	 * tasks of the pool.
+	 *
+	 * @param items
+	 * @param mapper from an item to the bytes inserted
+	 * @param pool
+	 * @return the mapped items which could not be inserted, empty if all were
+	 */
+	public <T> List<byte[]> bulkLoad( Spliterator<T> items, ItemMapper<T> mapper, ForkJoinPool pool) {
+		final ConcurrentLinkedQueue<byte[]> failed = new ConcurrentLinkedQueue<byte[]>();
+		pool.invoke( new BulkLoadTask<T>( items, mapper, failed));
+		return new ArrayList<byte[]>( failed);
+	}
+
+	public <T> List<byte[]> bulkLoad( Spliterator<T> items, ItemMapper<T> mapper) {
+		return this.bulkLoad( items, mapper, ForkJoinPool.commonPool());
+	}
+
+	/***
+	 * for items which are inserted as they are
+	 */
+	public List<byte[]> bulkLoad( Spliterator<byte[]> items) {
+		return this.bulkLoad( items, new ItemMapper<byte[]>() {
+			@Override
+			public byte[] map( byte[] t) {
+				return t;
+			}
+		});
+	}
+
+	private class BulkLoadTask<T> extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Spliterator<T> items;
+		private final ItemMapper<T> mapper;
+		private final ConcurrentLinkedQueue<byte[]> failed;
+
+		/***
+		 * the tasks forked by the same parent, to be joined
+		 */
+		private BulkLoadTask<T> next = null;
+
+		BulkLoadTask( Spliterator<T> items, ItemMapper<T> mapper, ConcurrentLinkedQueue<byte[]> failed) {
+			super();
+			this.items = items;
+			this.mapper = mapper;
+			this.failed = failed;
+		}
+
+		@Override
+		protected void compute() {
+			Spliterator<T> rest = this.items;
+			BulkLoadTask<T> forked = null;
+			Spliterator<T> split;
+			// fork the halves split off and insert what remains
+			while ( rest.estimateSize() > BULK_CHUNK && (split = rest.trySplit()) != null) {
+				final BulkLoadTask<T> t = new BulkLoadTask<T>( split, this.mapper, this.failed);
+				t.fork();
+				t.next = forked;
+				forked = t;
+			}
+
+			rest.forEachRemaining( new Consumer<T>() {
+				@Override
+				public void accept( T t) {
+					try {
+						final byte x[] = mapper.map( t);
+						if ( !insert( x)) {
+							failed.add( x);
+						}
+					} catch ( NoSuchAlgorithmException e) {
+						throw new IllegalStateException( e);
+					}
+				}
+			});
+
+			for ( BulkLoadTask<T> t = forked; t != null; t = t.next) {
+				t.join();
+			}
+		}
+	}
+
+}
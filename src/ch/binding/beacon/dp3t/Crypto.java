@@ -8,7 +8,6 @@ import java.util.Date;
 import java.util.List;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.text.SimpleDateFormat;
@@ -17,11 +16,13 @@ import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import ch.binding.beacon.dp3t.SQLiteEphIDMatcher.Match;
+import ch.binding.beacon.utils.Clock;
 
 public class Crypto {
 	
@@ -43,6 +44,11 @@ public class Crypto {
 	public static final int NUMBER_OF_EPOCHS_PER_DAY = 24 * 4;
 	
 	public static final int MILLISECONDS_PER_EPOCH = (int) (ONE_DAY_MS / NUMBER_OF_EPOCHS_PER_DAY);
+	
+	/***
+	 * the EphIDs of a day back to back, 1536 bytes
+	 */
+	public static final int EPHIDS_OF_DAY_LENGTH = NUMBER_OF_EPOCHS_PER_DAY * EPHID_LENGTH;
 
 	static final byte[] BROADCAST_KEY = "broadcast key".getBytes();
 	
@@ -68,7 +74,7 @@ public class Crypto {
 			return;
 		
 		// get the key for today from store
-		final int dayNbr = getDayNumber( System.currentTimeMillis());
+		final int dayNbr = getDayNumber( Clock.now());
 		byte [] key = getSecretKeyOfDay( dayNbr);
 		
 		// if none, create a new one and store for today.
@@ -105,13 +111,7 @@ public class Crypto {
 	 * @return tomorrow's key
 	 */
 	 static byte[] getSKt1(byte[] SKt0) {
-		try {
-			MessageDigest digest = MessageDigest.getInstance("SHA-256");
-			byte[] SKt1 = digest.digest(SKt0);
-			return SKt1;
-		} catch (NoSuchAlgorithmException e) {
-			throw new IllegalStateException("SHA-256 algorithm must be present!");
-		}
+		return SHA256Hasher.hash( SKt0);
 	}
 	
 	/***
@@ -123,7 +123,7 @@ public class Crypto {
 	 */
 	private static boolean purgeOldKeys( boolean all) {
 		
-		final int today = getDayNumber( System.currentTimeMillis());
+		final int today = getDayNumber( Clock.now());
 		int beforeDayNbr = today;
 		
 		if ( ! all) {
@@ -163,20 +163,20 @@ public class Crypto {
 			}
 			
 			assert( key.getDayNbr() < dayNbr);
-			final int today = getDayNumber( System.currentTimeMillis());
+			final int today = getDayNumber( Clock.now());
 			
 			if ( dayNbr > today) {
 				System.err.println( "generating key(s) into the future?");
 			}
 			
-			for ( int i = (int) (key.getDayNbr() + 1); i <= dayNbr; i++) {
-				// generate daily keys, store them in DB.
-				final byte [] keyBytes = getSKt1( key.getKey());
-				ch.binding.beacon.dp3t.SecretKey nextKey = new ch.binding.beacon.dp3t.SecretKey( i, keyBytes);
-				keyStore.store( nextKey);
-				key = nextKey;
+			// generate the missing daily keys, store them in DB in one batch.
+			final byte [][] chain = KeyChain.getInstance().getKeys( key.getKey(), key.getDayNbr(), dayNbr);
+			final ArrayList<ch.binding.beacon.dp3t.SecretKey> newKeys = new ArrayList<ch.binding.beacon.dp3t.SecretKey>();
+			for ( int i = 1; i < chain.length; i++) {
+				newKeys.add( new ch.binding.beacon.dp3t.SecretKey( key.getDayNbr() + i, chain[i]));
 			}
-			return key.getKey();
+			keyStore.store( newKeys);
+			return chain[ chain.length - 1];
 		}
 		// if no latest key in database, return null.
 		return null;
@@ -203,7 +203,7 @@ public class Crypto {
 	}
 
 	static long getCurrentEpochStart() {
-		long now = System.currentTimeMillis();
+		long now = Clock.now();
 		return getEpochStart(now);
 	}
 
@@ -216,38 +216,87 @@ public class Crypto {
 		return getStartOfDay( time) + getEpochCounter(time) * MILLISECONDS_PER_EPOCH;
 	}
 
-	static List<EphId> createEphIds(byte[] SK, boolean shuffle) {
+	/***
+	 * the Mac and Cipher of a thread and the zeros encrypted to EphIDs
+	 */
+	private static final class EphIdGenerator {
 		
-		// System.err.println( Base64.getEncoder().encodeToString(SK));
+		private static final IvParameterSpec ZERO_COUNTER = new IvParameterSpec( new byte[16]);
 		
-		try {
-			Mac mac = Mac.getInstance("HmacSHA256");
-			mac.init(new SecretKeySpec(SK, "HmacSHA256"));
-			mac.update(BROADCAST_KEY);
-			byte[] prf = mac.doFinal();
-
-			//generate EphIDs
-			SecretKeySpec keySpec = new SecretKeySpec(prf, "AES");
-			Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
-			byte[] counter = new byte[16];
-			cipher.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(counter));
-			ArrayList<EphId> ephIds = new ArrayList<>();
-			byte[] emptyArray = new byte[EPHID_LENGTH];
-			for (int i = 0; i < NUMBER_OF_EPOCHS_PER_DAY; i++) {
-				final byte[] ephIdData = cipher.update(emptyArray);
-				
-				// System.err.println(  Base64.getEncoder().encodeToString(ephIdData));
-				
-				ephIds.add( new EphId( ephIdData));
+		private final Mac mac;
+		private final Cipher cipher;
+		private final byte zeros[] = new byte[ EPHIDS_OF_DAY_LENGTH];
+		
+		EphIdGenerator() {
+			try {
+				this.mac = Mac.getInstance( "HmacSHA256");
+				this.cipher = Cipher.getInstance( "AES/CTR/NoPadding");
+			} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+				throw new IllegalStateException("HmacSHA256 and AES algorithms must be present!", e);
 			}
-			if (shuffle) {
-				Collections.shuffle(ephIds, new SecureRandom());
+		}
+		
+		void createEphIds( byte[] SK, byte out[], int outOff) {
+			try {
+				this.mac.init( new SecretKeySpec( SK, "HmacSHA256"));
+				this.mac.update( BROADCAST_KEY);
+				final byte[] prf = this.mac.doFinal();
+				
+				// AES-CTR of zeros from counter 0, one block per EphID
+				this.cipher.init( Cipher.ENCRYPT_MODE, new SecretKeySpec( prf, "AES"), ZERO_COUNTER);
+				final int n = this.cipher.update( this.zeros, 0, EPHIDS_OF_DAY_LENGTH, out, outOff);
+				assert( n == EPHIDS_OF_DAY_LENGTH);
+			} catch (InvalidKeyException | InvalidAlgorithmParameterException | ShortBufferException e) {
+				throw new IllegalStateException( e);
 			}
-			return ephIds;
-		} catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException e) {
-			throw new IllegalStateException("HmacSHA256 and AES algorithms must be present!", e);
 		}
 	}
+	
+	private static final ThreadLocal<EphIdGenerator> ephIdGenerator = new ThreadLocal<EphIdGenerator>() {
+		@Override
+		protected EphIdGenerator initialValue() {
+			return new EphIdGenerator();
+		}
+	};
+	
+	/***
+	 * creates the EphIDs of a day in one pass, the EphID of epoch i at outOff + ephIdOffset( i).
+	 * 
+	 * @param SK the secret key of the day
+	 * @param out EPHIDS_OF_DAY_LENGTH bytes from outOff
+	 * @param outOff
+	 */
+	static void createEphIds( byte[] SK, byte out[], int outOff) {
+		if ( outOff < 0 || outOff + EPHIDS_OF_DAY_LENGTH > out.length) {
+			throw new IllegalArgumentException( "output buffer too short");
+		}
+		ephIdGenerator.get().createEphIds( SK, out, outOff);
+	}
+	
+	/***
+	 * 
+	 * @param epochOfDay
+	 * @return offset of the EphID of the epoch in the output of createEphIds()
+	 */
+	static int ephIdOffset( int epochOfDay) {
+		return epochOfDay * EPHID_LENGTH;
+	}
+
+	static List<EphId> createEphIds(byte[] SK, boolean shuffle) {
+		
+		final byte[] data = new byte[ EPHIDS_OF_DAY_LENGTH];
+		createEphIds( SK, data, 0);
+		
+		ArrayList<EphId> ephIds = new ArrayList<>( NUMBER_OF_EPOCHS_PER_DAY);
+		for (int i = 0; i < NUMBER_OF_EPOCHS_PER_DAY; i++) {
+			final int off = ephIdOffset( i);
+			ephIds.add( new EphId( Arrays.copyOfRange( data, off, off + EPHID_LENGTH)));
+		}
+		if (shuffle) {
+			Collections.shuffle(ephIds, new SecureRandom());
+		}
+		return ephIds;
+	}
 
 	private static List<EphId> getEphIDs( int dayNbr) {
 		final byte [] dailyKey = getSecretKeyOfDay( dayNbr);
@@ -1,7 +1,11 @@
 package ch.binding.beacon.dp3t;
 
-import java.security.MessageDigest;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 
@@ -85,27 +89,20 @@ public class Crypto2 {
 		return c;
 	}
 	
-	private static int getHashLength() throws NoSuchAlgorithmException {
-		MessageDigest md = MessageDigest.getInstance("SHA-256");
-		return md.getDigestLength();
-	}
 	private static byte[] hash(byte[] data) throws NoSuchAlgorithmException {
-		MessageDigest md = MessageDigest.getInstance("SHA-256");
-		return md.digest( data);
+		return SHA256Hasher.hash( data);
 	} 
 	
 	public static class SHA256FingerPrinter implements CuckooFilter.FingerPrinter {
 
 		@Override
 		public byte[] doFingerprint(byte[] data) throws NoSuchAlgorithmException {
-			MessageDigest md = MessageDigest.getInstance("SHA-256");
-			return md.digest( data);
+			return SHA256Hasher.hash( data);
 		}
 
 		@Override
 		public int getFPSize() throws NoSuchAlgorithmException {
-			MessageDigest md = MessageDigest.getInstance("SHA-256");
-			return md.getDigestLength();
+			return SHA256Hasher.HASH_LENGTH;
 		}
 		
 	}
@@ -133,31 +130,62 @@ public class Crypto2 {
 		return getEphId( seed, epoch);
 	}
 
-	private static int SIZE_OF_INT = 4;  // bytes
-	private static int SIZE_OF_LONG = 8; // bytes
-	private static int SIZE_OF_BYTE = 8; // bit
-	
 	public static byte[] getHash( EphId ephId) throws NoSuchAlgorithmException {
-		final int dl = ephId.getData().length;
-		
-		byte data[] = new byte[ dl + SIZE_OF_INT];
-		System.arraycopy( ephId.getData(), 0, data, 0, dl);
-		int idx = dl;
-		
-		// we assume that epoch is using 4 bytes and MSB
-		// MAX_INT epochs == 2 147 483 647 epochs =~ 214 748 364 days =~ 588351 years
-		final int epoch = (int) ephId.getEpoch();
-		for ( int i = 0; i < SIZE_OF_INT; i++) {
-			// MSB
-			final int left_shift = ((SIZE_OF_INT - (i + 1)) * SIZE_OF_BYTE);
-			// LSB
-			// final int left_shift = (i * SIZE_OF_BYTE);
-			data[idx++] = (byte) ((epoch >> left_shift) & 0xFF);
+		final byte h[] = new byte[ SHA256Hasher.HASH_LENGTH];
+		SHA256Hasher.hashEphId( ephId.getData(), 0, ephId.getEpoch(), h, 0);
+		return h;
+	}
+	
+	/***
+	 * 
+	 * @param ephIds
+	 * @return the hashes of the EphIDs back to back, SHA256Hasher.HASH_LENGTH bytes each
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static byte[] getHashes( EphId ephIds[]) throws NoSuchAlgorithmException {
+		final byte h[] = new byte[ ephIds.length * SHA256Hasher.HASH_LENGTH];
+		SHA256Hasher.hashEphIds( ephIds, h, 0);
+		return h;
+	}
+	
+	/***
+	 * 
+	 * @param keyStore
+	 * @param fromEpoch
+	 * @param toEpoch
+	 * @return a Cuckoo filter of the hashes of the EphIDs of the infected seeds in the given range
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static CuckooFilter buildInfectedFilter( KeyStore2 keyStore, long fromEpoch, long toEpoch) throws NoSuchAlgorithmException {
+		List<KeyStore2.Seed> infectedSeeds = keyStore.getInfectedSeeds( fromEpoch, toEpoch);
+		if ( infectedSeeds == null) {
+			infectedSeeds = new ArrayList<KeyStore2.Seed>();
 		}
 		
-		return Crypto2.hash( data);
+		// the items are SHA-256 hashes already. hashing and inserting runs on all cores.
+		final ConcurrentCuckooFilter cf = ConcurrentCuckooFilter.forCapacity( Math.max( 1000, infectedSeeds.size()), CuckooFilter.DEFAULT_FP_BITS);
+		final List<byte[]> failed = cf.bulkLoad( infectedSeeds.spliterator(), new ConcurrentCuckooFilter.ItemMapper<KeyStore2.Seed>() {
+			@Override
+			public byte[] map( KeyStore2.Seed s) throws NoSuchAlgorithmException {
+				// the EphID is the hash of the seed truncated to 128 bits, hash it in place
+				final byte h[] = SHA256Hasher.hash( s.getSeed());
+				SHA256Hasher.hashEphId( h, 0, s.getEpoch(), h, 0);
+				return h;
+			}
+		});
+		// the few which found no room go to a secondary filter
+		final CuckooFilter filter = cf.toCuckooFilter();
+		for ( byte x[]: failed) {
+			filter.insert( x);
+		}
+		return filter;
 	}
 	
+	/***
+	 * 
+	 * @param args [filter file]. the filter is loaded from the file if it exists, else it is built from the 
+	 * infected seeds and written to the file.
+	 */
 	public static void main(String[] args) {
 		
 		long now = System.currentTimeMillis();
@@ -173,22 +201,29 @@ public class Crypto2 {
 			final byte [] seed = Crypto2.getSeed( epoch);
 			keyStore.putInfectedSeed(seed, epoch);
 			
-			CuckooFilter.FingerPrinter fp = new Crypto2.SHA256FingerPrinter();
-			CuckooFilter cf = new CuckooFilter( 1000, 3, Crypto2.getHashLength(), fp);
+			final Path filterPath = args.length > 0 ? Paths.get( args[0]) : null;
+			
+			CuckooFilter cf;
+			if ( filterPath != null && Files.exists( filterPath)) {
+				cf = CuckooFilter.load( filterPath, null);
+			} else {
+				cf = Crypto2.buildInfectedFilter( keyStore, 0, Integer.MAX_VALUE);
+				if ( filterPath != null) {
+					cf.write( filterPath);
+				}
+			}
 			
-			// get all infected seeds
-			List<KeyStore2.Seed> infectedSeeds = keyStore.getInfectedSeeds( 0, Integer.MAX_VALUE); 
-			for ( KeyStore2.Seed s: infectedSeeds) {
-				final EphId ephID = Crypto2.getEphId( s.getSeed(), s.getEpoch());
-				final byte[] hashOfEphId = Crypto2.getHash( ephID);
-				
-				cf.insert( hashOfEphId);
-				
-				assert( cf.lookup(hashOfEphId));
-				
+			// look up the observed EphIDs
+			final List<byte[]> observed = keyStore.getObservedEphIDs( 0, Long.MAX_VALUE);
+			int matches = 0;
+			for ( byte [] h: observed) {
+				if ( cf.lookup( h)) {
+					matches++;
+				}
 			}
+			System.out.println( String.format( "%d infected EphIDs, %d observed EphIDs, %d matches", cf.getCount(), observed.size(), matches));
 			
-		} catch (NoSuchAlgorithmException e) {
+		} catch (NoSuchAlgorithmException | IOException e) {
 			e.printStackTrace();
 		}
 	}
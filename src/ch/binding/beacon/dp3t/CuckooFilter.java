@@ -1,264 +1,783 @@
 package ch.binding.beacon.dp3t;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
+import java.util.Random;
 
+/***
+ * a Cuckoo filter, see Fan et al. "Cuckoo Filter: Practically Better Than Bloom", with partial-key cuckoo hashing.
+ *
+ * the fingerprints are fpBits wide, 8 to 32 bits, and are bit-packed into a single long[]:
+ * slot j of bucket i is at bit (i * bucketSize + j) * fpBits. a zero fingerprint marks an empty slot.
+ *
+ * an item is hashed into 64 bits with a seeded mix function. the low bits give the primary bucket, the high bits
+ * the fingerprint. the alternate bucket is the primary bucket xor-ed with a mix of the fingerprint, so either bucket
+ * can be computed from the other and the fingerprint alone.
+ *
+ * the false positive rate is about 2 * bucketSize / 2^fpBits. measured with 1M random items, bucket size 4,
+ * at 95% load: 8 bits 2.9%, 12 bits 0.19%, 16 bits 0.0095%, using 8.4, 12.6 resp. 16.8 bits or 1.0, 1.5 resp. 2.0 MB
+ * per million items. see main().
+ *
+ * the filter grows and never loses an item: if an insert runs out of evictions, the fingerprint last evicted is 
+ * kept in a victim slot, which lookups check as well, and the filter is full. the same happens once the load 
+ * factor reaches maxLoadFactor. further items go to a chained secondary filter of twice the size, and so on. 
+ * lookups check all filters of the chain, i.e. the false positive rate is the sum of theirs. the fingerprints 
+ * cannot be re-hashed into a larger table as the bucket index of the larger table needs hash bits not in the 
+ * fingerprint. to get rid of a chain, build a filter forCapacity( getCount()) from the items again.
+ *
+ * a filter can be written to a file and loaded by memory-mapping the file. lookups then run directly against the 
+ * mapped table, without a copy on the heap. such a filter is read-only. file format, big-endian, one such block
+ * per filter of the chain:
+ *
+ * 	int magic "CKF1"
+ * 	short version, 1
+ * 	short header size in bytes, 56 (48 in files without a victim)
+ * 	int nbr of buckets, a power of two
+ * 	int bucket size
+ * 	int fingerprint bits
+ * 	int reserved, 0
+ * 	long hash seed
+ * 	long nbr of items
+ * 	long nbr of words of the table
+ * 	int victim fingerprint, 0 if none
+ * 	int bucket of the victim
+ * 	long[] the table, as described above
+ *
+ * the FingerPrinter, if any, is not part of the file and must be given again when loading.
+ *
+ * @author carl
+ *
+ */
 public class CuckooFilter {
-	
+
+	/***
+	 * an optional pre-processing of items before they are hashed, e.g. a cryptographic digest.
+	 */
 	public static interface FingerPrinter {
 		public byte[] doFingerprint( byte [] x) throws NoSuchAlgorithmException;
 		public int getFPSize() throws NoSuchAlgorithmException;
 	}
 
+	public static final int MIN_FP_BITS = 8;
+	public static final int MAX_FP_BITS = 32;
+
+	public static final int DEFAULT_FP_BITS = 16;
+	public static final int DEFAULT_BUCKET_SIZE = 4;
+	public static final long DEFAULT_SEED = 0x5DEECE66DL;
+
+	private static final long C1 = 0x9E3779B97F4A7C15L;
+	private static final long C2 = 0xC2B2AE3D27D4EB4FL;
+
+	private static final int MAGIC = 0x434B4631; // "CKF1"
+	private static final short VERSION = 1;
+	private static final short HEADER_SIZE = 56;
+	private static final short MIN_HEADER_SIZE = 48;
+
+	public static final double DEFAULT_MAX_LOAD_FACTOR = 0.95;
+
+	/***
+	 * the packed fingerprints. wraps a long[] or is a view of a mapped file.
+	 */
+	private final LongBuffer table;
+	private final int nbrBuckets;
+	private final int bucketSize;
+	private final int fpBits;
+	private final long fpMask;
+	private final int bucketMask;
+	private final long seed;
+	private final int maxNbrKicks;
+
+	private final FingerPrinter fp;
+	private final Random random;
+
+	/***
+	 * nbr of items in this filter of the chain, incl. the victim
+	 */
+	private long count = 0;
+
+	/***
+	 * a fingerprint which could not be placed and its bucket. the filter is full if there is one.
+	 */
+	private int victimFp = 0;
+	private int victimIndex = 0;
+
+	/***
+	 * the secondary filter taking the items once this one is full
+	 */
+	private CuckooFilter next = null;
+
+	private double maxLoadFactor = DEFAULT_MAX_LOAD_FACTOR;
+
+	/***
+	 * size of the header and table in the file a mapped filter was loaded from
+	 */
+	private int blockSize = 0;
+
+	private int getBlockSize() {
+		return this.blockSize;
+	}
+
+	private long nbrKicks = 0;
+	private long nbrFailures = 0;
+
 	/***
-	 * a bucket contains one or multiple items. Each item is an array of byte.
-	 * @author carl
 	 *
+	 * @return nbr of items in the filter
 	 */
-	private static class Bucket {
-		
-		private byte[][] items = null;
-		private int count = 0;
-		private int itemSize;
-		
-		Bucket( int size, int itemSize) {
-			items = new byte[size][];
-			this.itemSize = itemSize;
-			for ( int i = 0; i < size; i++) {
-				items[i] = null;
-			}
+	public long getCount() {
+		long n = 0;
+		for ( CuckooFilter cf = this; cf != null; cf = cf.next) {
+			n += cf.count;
 		}
-		
-		boolean checkLength( byte[] item) {
-			if ( item.length != this.itemSize)
-				throw new IllegalArgumentException( "mismatching item length");
-			return true;
+		return n;
+	}
+
+	/***
+	 *
+	 * @return nbr of slots, i.e. the capacity
+	 */
+	public long getSize() {
+		long n = 0;
+		for ( CuckooFilter cf = this; cf != null; cf = cf.next) {
+			n += cf.getLinkSize();
 		}
-		
-		boolean isFull() {
-			return this.count >= items.length;
-		}
-		
-		boolean hasSpace() {
-			return this.count < items.length;
-		}
-		
-		int getRandomEntry() {
-			final double r = Math.random() * this.items.length;
-			return (int) Math.floor( r);
-			
-		}
-		
-		boolean contains( byte[] item) {
-			
-			checkLength( item);
-			
-			for ( int i = 0; i < this.count; i++) {
-				if ( Arrays.equals( items[i], item)) {
-					return true;
-				}
-			}
-			return false;
-		}
-		
-		boolean insert( byte[] item) {
-			
-			checkLength( item);
-			
-			if ( isFull())
-				return false;
-			
-			items[this.count] = item;
-			this.count++;
-			
-			return true;
+		return n;
+	}
+
+	private long getLinkSize() {
+		return (long) this.nbrBuckets * this.bucketSize;
+	}
+
+	/***
+	 *
+	 * @return occupancy, nbr of items over nbr of slots
+	 */
+	public double getLoadFactor() {
+		return (double) this.getCount() / this.getSize();
+	}
+
+	/***
+	 *
+	 * @return nbr of filters in the chain, 1 if it never grew
+	 */
+	public int getNbrFilters() {
+		int n = 0;
+		for ( CuckooFilter cf = this; cf != null; cf = cf.next) {
+			n++;
 		}
-		
-		boolean delete( byte[] item) {
-			
-			checkLength( item);
-			
-			for ( int i = 0; i < this.count; i++) {
-				if ( Arrays.equals( this.items[i], item)) {
-					// move other items down so we keep empty spots at end of this.items
-					for ( int j = i; j < this.count-1; j++) {
-						this.items[j] = this.items[j+1];
-					}
-					
-					this.items[ this.count] = null;
-					this.count--;
-					
-					for ( int j = this.count; j < this.items.length; j++) {
-						assert( this.items[j] == null);
-					}
-					
-					return true;
-				}
-			}
-			
-			return false;
-		}
-
-		public byte[] swap(int eIdx, byte[] f) {
-			
-			if ( eIdx < 0 || eIdx >= this.items.length)
-				throw new IllegalArgumentException();
-			if ( f == null || f.length != this.items[0].length)
-				throw new IllegalArgumentException();
-			if ( !isFull()) {
-				throw new IllegalStateException( "swap on an empty bucket?");
-			}
-			
-			final byte[] e = this.items[eIdx];
-			this.items[eIdx] = f;
-			
-			return e;
+		return n;
+	}
+
+	/***
+	 *
+	 * @return nbr of inserts which ran out of evictions, leaving a victim
+	 */
+	public long getNbrFailures() {
+		long n = 0;
+		for ( CuckooFilter cf = this; cf != null; cf = cf.next) {
+			n += cf.nbrFailures;
 		}
+		return n;
 	}
-	
-	private Bucket[] table;
-	private FingerPrinter fp;
-	private long count = 0;
-	
-	public long getCount() {
-		return this.count;
+
+	/***
+	 *
+	 * @return nbr of fingerprints evicted by inserts
+	 */
+	public long getNbrKicks() {
+		long n = 0;
+		for ( CuckooFilter cf = this; cf != null; cf = cf.next) {
+			n += cf.nbrKicks;
+		}
+		return n;
 	}
-	
-	public long getSize() {
-		return this.table.length * this.table[0].items.length;
+
+	public double getMaxLoadFactor() {
+		return this.maxLoadFactor;
 	}
-	
-	private static byte [] xor( byte[] a, byte [] b) {
-		if ( a.length != b.length)
+
+	/***
+	 *
+	 * @param maxLoadFactor the load factor above which items go to the secondary filter, (0, 1]
+	 */
+	public void setMaxLoadFactor( double maxLoadFactor) {
+		if ( maxLoadFactor <= 0 || maxLoadFactor > 1) {
 			throw new IllegalArgumentException();
-		byte c[] = new byte[a.length];
-		for ( int i = 0; i < a.length; i++) 
-			c[i] = (byte) ((a[i] ^ b[i]) & 0xFF);
-		return c;
+		}
+		for ( CuckooFilter cf = this; cf != null; cf = cf.next) {
+			cf.maxLoadFactor = maxLoadFactor;
+		}
+	}
+
+	public int getFingerprintBits() {
+		return this.fpBits;
+	}
+
+	public int getBucketSize() {
+		return this.bucketSize;
+	}
+
+	/***
+	 *
+	 * @return size of the table in bytes
+	 */
+	public long getMemorySize() {
+		long n = 0;
+		for ( CuckooFilter cf = this; cf != null; cf = cf.next) {
+			n += (long) cf.table.capacity() * Long.BYTES;
+		}
+		return n;
 	}
-	
+
+	/***
+	 *
+	 * @return true if loaded from a mapped file
+	 */
+	public boolean isReadOnly() {
+		return this.table.isReadOnly();
+	}
+
 	/**
-	 * 
+	 *
 	 * @param sz > 0
-	 * @return smallest integer power of 2 which is larger than sz.
+	 * @return smallest integer power of 2 which is larger or equal to sz.
 	 */
-	private static int pwrOfTwo( int sz) {
-		if ( sz <= 0)
+	static int pwrOfTwo( int sz) {
+		if ( sz <= 0 || sz > (1 << 30))
 			throw new IllegalArgumentException();
 		int i = 1;
-		int s = 0;
-		while ( (i << s) <= sz) s++;
-		return i << s;
+		while ( i < sz) i <<= 1;
+		return i;
 	}
-	
-	public CuckooFilter( int tableSize, int bucketSize, int itemSize, FingerPrinter fp) throws NoSuchAlgorithmException {
+
+	/***
+	 *
+	 * @param tableSize nbr of buckets, rounded up to a power of two
+	 * @param bucketSize nbr of fingerprints per bucket
+	 * @param fpBits size of fingerprints in bits, MIN_FP_BITS to MAX_FP_BITS
+	 * @param seed of the item hash and of the choice of evicted fingerprints
+	 * @param fp pre-processing of items, can be null
+	 */
+	public CuckooFilter( int tableSize, int bucketSize, int fpBits, long seed, FingerPrinter fp) {
 		super();
-		
-		if ( tableSize <= 0 || bucketSize <= 0 || fp == null || itemSize <= 0) {
+
+		if ( tableSize <= 0 || bucketSize <= 0 || fpBits < MIN_FP_BITS || fpBits > MAX_FP_BITS) {
 			throw new IllegalArgumentException();
 		}
-		if ( itemSize != fp.getFPSize()) {
-			throw new IllegalArgumentException( "item size does not match finger-printer size");
-		}
-		
+
 		// make tableSize a power of two so that xor-ing of addr works
 		// ex: size 6, addresses 011 and 100 are legal. 011 ^ 100 == 111 which is out of bound.
-		tableSize = pwrOfTwo( tableSize);
-		
-		this.table = new Bucket[tableSize];
-		for ( int i = 0; i < tableSize; i++) {
-			this.table[i] = new Bucket( bucketSize, itemSize);
-		}
+		this.nbrBuckets = pwrOfTwo( tableSize);
+		this.bucketSize = bucketSize;
+		this.fpBits = fpBits;
+		this.fpMask = (1L << fpBits) - 1;
+		this.bucketMask = this.nbrBuckets - 1;
+		this.seed = seed;
 		this.fp = fp;
+		this.random = new Random( seed);
+		this.maxNbrKicks = maxNbrKicks( this.nbrBuckets);
+
+		// one spare word so that reading a slot can always look at the next word
+		this.table = LongBuffer.wrap( new long[ nbrWords( this.nbrBuckets, bucketSize, fpBits)]);
+	}
+
+	static int maxNbrKicks( int nbrBuckets) {
+		return Math.max( 500, (int) Math.min( (long) nbrBuckets * 8 / 10, 5000));
+	}
+
+	/***
+	 * for a filter on a given table, e.g. a mapped one
+	 */
+	CuckooFilter( LongBuffer table, int nbrBuckets, int bucketSize, int fpBits, long seed, long count, FingerPrinter fp) {
+		super();
+		this.table = table;
+		this.nbrBuckets = nbrBuckets;
+		this.bucketSize = bucketSize;
+		this.fpBits = fpBits;
+		this.fpMask = (1L << fpBits) - 1;
+		this.bucketMask = nbrBuckets - 1;
+		this.seed = seed;
+		this.fp = fp;
+		this.random = new Random( seed);
+		this.maxNbrKicks = maxNbrKicks( nbrBuckets);
+		this.count = count;
+	}
+
+	public CuckooFilter( int tableSize, int bucketSize, int fpBits, FingerPrinter fp) {
+		this( tableSize, bucketSize, fpBits, DEFAULT_SEED, fp);
+	}
+
+	/***
+	 *
+	 * @param nbrItems expected nbr of items
+	 * @param fpBits
+	 * @return a filter with DEFAULT_BUCKET_SIZE holding nbrItems at a load of at most DEFAULT_MAX_LOAD_FACTOR
+	 */
+	public static CuckooFilter forCapacity( long nbrItems, int fpBits) {
+		final long nbrBuckets = (long) Math.ceil( nbrItems / (DEFAULT_MAX_LOAD_FACTOR * DEFAULT_BUCKET_SIZE));
+		if ( nbrBuckets > (1 << 30)) {
+			throw new IllegalArgumentException();
+		}
+		return new CuckooFilter( (int) Math.max( 1, nbrBuckets), DEFAULT_BUCKET_SIZE, fpBits, DEFAULT_SEED, null);
+	}
+
+	static long mix( long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/***
+	 *
+	 * @param x
+	 * @param seed
+	 * @return 64 bit hash of x, reading 8 bytes at a time
+	 */
+	static long hash64( byte x[], long seed) {
+		long h = seed ^ (x.length * C1);
+		int i = 0;
+		for ( ; i + 8 <= x.length; i += 8) {
+			final long k = (x[i] & 0xFFL) | (x[i+1] & 0xFFL) << 8 | (x[i+2] & 0xFFL) << 16 | (x[i+3] & 0xFFL) << 24
+					| (x[i+4] & 0xFFL) << 32 | (x[i+5] & 0xFFL) << 40 | (x[i+6] & 0xFFL) << 48 | (x[i+7] & 0xFFL) << 56;
+			h ^= mix( k * C2);
+			h = Long.rotateLeft( h, 27) * C1 + C2;
+		}
+		long k = 0;
+		for ( int s = 0; i < x.length; i++, s += 8) {
+			k |= (x[i] & 0xFFL) << s;
+		}
+		h ^= mix( k * C2);
+		return mix( h);
+	}
+
+	private long hashItem( byte x[]) throws NoSuchAlgorithmException {
+		return hash64( this.fp == null ? x : this.fp.doFingerprint( x), this.seed);
+	}
+
+	/***
+	 *
+	 * @param h item hash
+	 * @return non-zero fingerprint from the high bits of h
+	 */
+	static int fingerprint( long h, int fpBits) {
+		final int f = (int) ((h >>> (64 - fpBits)) & ((1L << fpBits) - 1));
+		return f == 0 ? 1 : f;
 	}
-	
-	private int hash( byte[] x) {
-		int hc = Arrays.hashCode(x) % this.table.length;
-		if ( hc < 0) 
-			hc += this.table.length;
-		assert( hc >= 0);
-		return hc;
+
+	static int altIndex( int i, int f, int bucketMask) {
+		return (i ^ (int) mix( (f & 0xFFFFFFFFL) * C1)) & bucketMask;
+	}
+
+	private int fingerprint( long h) {
+		return fingerprint( h, this.fpBits);
+	}
+
+	private int index( long h) {
+		return (int) h & this.bucketMask;
+	}
+
+	private int altIndex( int i, int f) {
+		return altIndex( i, f, this.bucketMask);
+	}
+
+	private int getSlot( long s) {
+		final long bit = s * this.fpBits;
+		final int w = (int) (bit >>> 6);
+		final int off = (int) (bit & 63);
+		long v = this.table.get( w) >>> off;
+		if ( off + this.fpBits > 64) {
+			v |= this.table.get( w + 1) << (64 - off);
+		}
+		return (int) (v & this.fpMask);
+	}
+
+	private void setSlot( long s, int f) {
+		final long bit = s * this.fpBits;
+		final int w = (int) (bit >>> 6);
+		final int off = (int) (bit & 63);
+		final long v = f & this.fpMask;
+		this.table.put( w, (this.table.get( w) & ~(this.fpMask << off)) | (v << off));
+		if ( off + this.fpBits > 64) {
+			final int n = 64 - off;
+			this.table.put( w + 1, (this.table.get( w + 1) & ~(this.fpMask >>> n)) | (v >>> n));
+		}
+	}
+
+	private boolean bucketContains( int i, int f) {
+		final long base = (long) i * this.bucketSize;
+		for ( int j = 0; j < this.bucketSize; j++) {
+			if ( this.getSlot( base + j) == f) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean bucketInsert( int i, int f) {
+		final long base = (long) i * this.bucketSize;
+		for ( int j = 0; j < this.bucketSize; j++) {
+			if ( this.getSlot( base + j) == 0) {
+				this.setSlot( base + j, f);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean bucketDelete( int i, int f) {
+		final long base = (long) i * this.bucketSize;
+		for ( int j = 0; j < this.bucketSize; j++) {
+			if ( this.getSlot( base + j) == f) {
+				this.setSlot( base + j, 0);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isFull() {
+		return this.victimFp != 0 || this.count >= this.maxLoadFactor * this.getLinkSize();
+	}
+
+	/***
+	 *
+	 * @return a filter of twice the size, or the same size at the max.
+	 */
+	private CuckooFilter grow() {
+		final int n = this.nbrBuckets < (1 << 30) ? 2 * this.nbrBuckets : this.nbrBuckets;
+		final CuckooFilter cf = new CuckooFilter( n, this.bucketSize, this.fpBits, this.seed, this.fp);
+		cf.maxLoadFactor = this.maxLoadFactor;
+		return cf;
 	}
-	
+
+	/***
+	 * always succeeds: a full filter chains to a secondary filter.
+	 *
+	 * @param x
+	 * @return true
+	 * @throws NoSuchAlgorithmException
+	 */
 	public boolean insert( byte[] x) throws NoSuchAlgorithmException {
-		
-		byte f[] = this.fp.doFingerprint(x);
-		assert( this.table[0].checkLength(f));
-		
-		int i1 = this.hash( x);		
-		if ( this.table[i1].hasSpace()) {
-			assert( this.table[i1].insert( f));
-			this.count++;
+		if ( this.isReadOnly()) {
+			throw new UnsupportedOperationException( "mapped filter");
+		}
+
+		final long h = this.hashItem( x);
+
+		CuckooFilter cf = this;
+		while ( cf.isFull()) {
+			if ( cf.next == null) {
+				cf.next = cf.grow();
+			}
+			cf = cf.next;
+		}
+		cf.insert( h);
+		return true;
+	}
+
+	/***
+	 * inserts into this filter of the chain. if the evictions run out, the fingerprint last evicted becomes the
+	 * victim.
+	 */
+	private void insert( long h) {
+		int f = this.fingerprint( h);
+		this.count++;
+
+		final int i1 = this.index( h);
+		if ( this.bucketInsert( i1, f)) {
+			return;
+		}
+
+		final int i2 = this.altIndex( i1, f);
+		if ( this.bucketInsert( i2, f)) {
+			return;
+		}
+
+		// randomly pick i1 or i2
+		int i = this.random.nextBoolean() ? i1 : i2;
+
+		for ( int n = 0; n < this.maxNbrKicks; n++) {
+
+			// randomly select an entry e from bucket[i] and swap f and the fingerprint stored in entry e
+			final long s = (long) i * this.bucketSize + this.random.nextInt( this.bucketSize);
+			final int e = this.getSlot( s);
+			this.setSlot( s, f);
+			f = e;
+			this.nbrKicks++;
+
+			i = this.altIndex( i, f);
+			if ( this.bucketInsert( i, f)) {
+				return;
+			}
+		}
+		// hashtable full, keep what was evicted last
+		this.victimFp = f;
+		this.victimIndex = i;
+		this.nbrFailures++;
+	}
+
+	private boolean contains( long h) {
+		final int f = this.fingerprint( h);
+
+		final int i1 = this.index( h);
+		if ( this.bucketContains( i1, f)) {
 			return true;
 		}
-		
-		int i2 = i1 ^ this.hash( f);  // xor
-		if ( this.table[i2].hasSpace()) {
-			assert( this.table[i2].insert( f));
-			this.count++;
+		final int i2 = this.altIndex( i1, f);
+		if ( this.bucketContains( i2, f)) {
 			return true;
 		}
-		
-		// randomly pick i1 or i2
-		int i = (Math.random()>=0.5)?i1:i2;
-		
-		final int maxNbrKicks = (int) ((float) this.table.length * 0.8);
-		assert ( maxNbrKicks > 0);
-		for ( int n = 0; n < maxNbrKicks; n++) {
-			
-			// randomly select an entry e from bucket[i]
-			int eIdx = this.table[i].getRandomEntry();
-			// swap f and the fingerprint stored in entry e
-			f = this.table[i].swap( eIdx, f);
-			i = i ^ this.hash( f);
-			if ( this.table[i].hasSpace()) {
-				assert( this.table[i].insert( f));
-				this.count++;
+		return this.victimFp == f && ( this.victimIndex == i1 || this.victimIndex == i2);
+	}
+
+	public boolean lookup( byte[] x) throws NoSuchAlgorithmException {
+		final long h = this.hashItem( x);
+		for ( CuckooFilter cf = this; cf != null; cf = cf.next) {
+			if ( cf.contains( h)) {
 				return true;
 			}
 		}
-		// hashtable full
 		return false;
 	}
-	
-	public boolean lookup( byte[] x) throws NoSuchAlgorithmException {
-		byte f[] = this.fp.doFingerprint(x);
-		assert( this.table[0].checkLength(f));
-		
-		int i1 = this.hash( x);
-		if ( this.table[i1].contains( f)) {
+
+	private boolean delete( long h) {
+		final int f = this.fingerprint( h);
+
+		final int i1 = this.index( h);
+		final int i2 = this.altIndex( i1, f);
+		if ( this.victimFp == f && ( this.victimIndex == i1 || this.victimIndex == i2)) {
+			this.victimFp = 0;
+			this.count--;
 			return true;
 		}
-		int i2 = i1 ^ this.hash( f);  // xor
-		if ( this.table[i2].contains( f)) {
+		if ( this.bucketDelete( i1, f) || this.bucketDelete( i2, f)) {
+			this.count--;
+			// there is room for the victim now, if it's one of its buckets
+			if ( this.victimFp != 0) {
+				final int v = this.victimFp;
+				if ( this.bucketInsert( this.victimIndex, v) || this.bucketInsert( this.altIndex( this.victimIndex, v), v)) {
+					this.victimFp = 0;
+				}
+			}
 			return true;
 		}
 		return false;
 	}
-	
+
 	public boolean delete( byte[] x) throws NoSuchAlgorithmException {
-		byte f[] = this.fp.doFingerprint(x);
-		assert( this.table[0].checkLength(f));
-		
-		int i1 = this.hash( x);
-		if ( this.table[i1].contains( f)) {
-			if ( this.table[i1].delete( f)) {
-				this.count--;
-				return true;
-			} else {
-				return false;
-			}
+		if ( this.isReadOnly()) {
+			throw new UnsupportedOperationException( "mapped filter");
 		}
-		int i2 = i1 ^ this.hash( f);  // xor
-		if ( this.table[i2].contains( f)) {
-			if ( this.table[i2].delete( f)) {
-				this.count--;
+		final long h = this.hashItem( x);
+		for ( CuckooFilter cf = this; cf != null; cf = cf.next) {
+			if ( cf.delete( h)) {
 				return true;
-			} else {
-				return false;
 			}
 		}
 		return false;
 	}
-	
+
+	/***
+	 * 
+	 * @return nbr of words needed for the table of the given geometry, incl. the spare word
+	 */
+	static int nbrWords( int nbrBuckets, int bucketSize, int fpBits) {
+		final long nbrBits = (long) nbrBuckets * bucketSize * fpBits;
+		if ( ((nbrBits + 63) >>> 6) >= Integer.MAX_VALUE) {
+			throw new IllegalArgumentException( "table too large");
+		}
+		return (int) ((nbrBits + 63) >>> 6) + 1;
+	}
+
+	/***
+	 * writes the filter and its chain to a file, see the class comment for the format.
+	 *
+	 * @param path
+	 * @throws IOException
+	 */
+	public void write( Path path) throws IOException {
+		try ( FileChannel ch = FileChannel.open( path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			for ( CuckooFilter cf = this; cf != null; cf = cf.next) {
+				cf.write( ch);
+			}
+			ch.force( true);
+		}
+	}
+
+	private void write( FileChannel ch) throws IOException {
+		final ByteBuffer hdr = ByteBuffer.allocate( HEADER_SIZE);
+		hdr.putInt( MAGIC);
+		hdr.putShort( VERSION);
+		hdr.putShort( HEADER_SIZE);
+		hdr.putInt( this.nbrBuckets);
+		hdr.putInt( this.bucketSize);
+		hdr.putInt( this.fpBits);
+		hdr.putInt( 0);
+		hdr.putLong( this.seed);
+		hdr.putLong( this.count);
+		hdr.putLong( this.table.capacity());
+		hdr.putInt( this.victimFp);
+		hdr.putInt( this.victimIndex);
+		hdr.flip();
+		while ( hdr.hasRemaining()) {
+			ch.write( hdr);
+		}
+
+		// the table in chunks of 64K
+		final ByteBuffer buf = ByteBuffer.allocate( 1 << 16);
+		final LongBuffer lb = buf.asLongBuffer();
+		final int n = this.table.capacity();
+		for ( int w = 0; w < n; ) {
+			lb.clear();
+			while ( lb.hasRemaining() && w < n) {
+				lb.put( this.table.get( w++));
+			}
+			buf.clear();
+			buf.limit( lb.position() * Long.BYTES);
+			while ( buf.hasRemaining()) {
+				ch.write( buf);
+			}
+		}
+	}
+
+	/***
+	 * memory-maps a filter written by write(). lookups run on the mapped table, the filter is read-only.
+	 *
+	 * @param path
+	 * @param fp the FingerPrinter the filter was built with, can be null
+	 * @return the filter
+	 * @throws IOException if the file is not a filter or is truncated
+	 */
+	public static CuckooFilter load( Path path, FingerPrinter fp) throws IOException {
+		try ( FileChannel ch = FileChannel.open( path, StandardOpenOption.READ)) {
+			final long size = ch.size();
+			if ( size < MIN_HEADER_SIZE) {
+				throw new IOException( "not a cuckoo filter: " + path);
+			}
+			if ( size > Integer.MAX_VALUE) {
+				throw new IOException( "cuckoo filter too large to be mapped: " + path);
+			}
+			// the mapping remains valid after the channel is closed
+			final MappedByteBuffer buf = ch.map( FileChannel.MapMode.READ_ONLY, 0, size);
+
+			// one block per filter of the chain
+			CuckooFilter first = null, last = null;
+			int offset = 0;
+			while ( offset < size) {
+				final CuckooFilter cf = load( path, buf, offset, fp);
+				offset += cf.getBlockSize();
+				if ( first == null) {
+					first = cf;
+				} else {
+					last.next = cf;
+				}
+				last = cf;
+			}
+			return first;
+		}
+	}
+
+	private static CuckooFilter load( Path path, MappedByteBuffer buf, int offset, FingerPrinter fp) throws IOException {
+		final int size = buf.capacity();
+		if ( size - offset < MIN_HEADER_SIZE) {
+			throw new IOException( "truncated cuckoo filter: " + path);
+		}
+		buf.limit( size);
+		buf.position( offset);
+		if ( buf.getInt() != MAGIC || buf.getShort() != VERSION) {
+			throw new IOException( "not a cuckoo filter: " + path);
+		}
+		final int hdrSize = buf.getShort();
+		final int nbrBuckets = buf.getInt();
+		final int bucketSize = buf.getInt();
+		final int fpBits = buf.getInt();
+		buf.getInt();
+		final long seed = buf.getLong();
+		final long count = buf.getLong();
+		final long nbrWords = buf.getLong();
+
+		if ( hdrSize < MIN_HEADER_SIZE 
+				|| nbrBuckets <= 0 || Integer.bitCount( nbrBuckets) != 1 || bucketSize <= 0 
+				|| fpBits < MIN_FP_BITS || fpBits > MAX_FP_BITS
+				|| nbrWords < (((long) nbrBuckets * bucketSize * fpBits + 63) >>> 6) + 1) {
+			throw new IOException( "invalid cuckoo filter header: " + path);
+		}
+		if ( size - offset < hdrSize + nbrWords * Long.BYTES) {
+			throw new IOException( "truncated cuckoo filter: " + path);
+		}
+
+		int victimFp = 0, victimIndex = 0;
+		if ( hdrSize >= HEADER_SIZE) {
+			victimFp = buf.getInt();
+			victimIndex = buf.getInt();
+		}
+
+		buf.position( offset + hdrSize);
+		buf.limit( (int) (offset + hdrSize + nbrWords * Long.BYTES));
+		final LongBuffer table = buf.slice().asLongBuffer().asReadOnlyBuffer();
+
+		final CuckooFilter cf = new CuckooFilter( table, nbrBuckets, bucketSize, fpBits, seed, count, fp);
+		cf.victimFp = victimFp;
+		cf.victimIndex = victimIndex;
+		cf.blockSize = (int) (hdrSize + nbrWords * Long.BYTES);
+		return cf;
+	}
+
+	/***
+	 * measures the false positive rate and the memory use: fills filters of about 1M slots with random items up 
+	 * to 95% load and looks up 1M other random items.
+	 *
+	 * args: [nbr of items [fingerprint bits...]]
+	 */
+	public static void main( String[] args) throws NoSuchAlgorithmException {
+		final int nbrItems = args.length > 0 ? Integer.parseInt( args[0]) : 1000000;
+		int bits[] = { 8, 12, 16, 24, 32};
+		if ( args.length > 1) {
+			bits = new int[ args.length - 1];
+			for ( int a = 1; a < args.length; a++) {
+				bits[a - 1] = Integer.parseInt( args[a]);
+			}
+		}
+
+		final Random rnd = new Random( 4711);
+		final byte items[][] = new byte[ nbrItems][];
+		for ( int i = 0; i < nbrItems; i++) {
+			items[i] = new byte[ Crypto2.EPHID_LENGTH];
+			rnd.nextBytes( items[i]);
+		}
+		final byte probe[] = new byte[ Crypto2.EPHID_LENGTH];
+
+		for ( int fpBits: bits) {
+
+			final CuckooFilter cf = new CuckooFilter( nbrItems / DEFAULT_BUCKET_SIZE, DEFAULT_BUCKET_SIZE, fpBits, null);
+			final int n = (int) Math.min( nbrItems, (long) (0.95 * cf.getSize()));
+			final long start = System.nanoTime();
+			for ( int i = 0; i < n; i++) {
+				cf.insert( items[i]);
+			}
+			final long insertNs = System.nanoTime() - start;
+
+			int fps = 0;
+			for ( int i = 0; i < nbrItems; i++) {
+				rnd.nextBytes( probe);
+				if ( cf.lookup( probe)) fps++;
+			}
+
+			System.out.println( String.format( "fp bits %2d: load %.3f, failed %d, filters %d, FPR %.5f%% (expected %.5f%%), %.2f bits/item, %.2f MB per 1M items, %d ns/insert",
+					fpBits, cf.getLoadFactor(), cf.getNbrFailures(), cf.getNbrFilters(), 100.0 * fps / nbrItems,
+					100.0 * 2 * cf.getBucketSize() / Math.pow( 2, fpBits),
+					8.0 * cf.getMemorySize() / cf.getCount(), cf.getMemorySize() * (1000000.0 / cf.getCount()) / (1 << 20),
+					insertNs / n));
+		}
+	}
+
 }
@@ -0,0 +1,114 @@
+package ch.binding.beacon.dp3t;
+
+import ch.binding.beacon.dp3t.SQLiteEphIDMatcher.EphIdTS;
+
+/***
+ * a hash table from EphIDs to their encounters, probed with an EphID at an offset of a byte array, e.g. the
+ * output of Crypto.createEphIds(), without creating a key object per probe.
+ *
+ * the EphIDs are kept as two longs each, open addressing with linear probing. the table is not thread-safe
+ * for puts, concurrent gets on a table which is no longer modified are safe.
+ *
+ * @author carl
+ *
+ */
+class EphIdTable {
+
+	private final long hi[];
+	private final long lo[];
+	private final EphIdTS values[];
+	private final int mask;
+	private int size = 0;
+
+	/***
+	 *
+	 * @param capacity max. nbr of EphIDs, the table is kept at most half full
+	 */
+	EphIdTable( int capacity) {
+		int n = 16;
+		while ( n < 2 * capacity) {
+			n <<= 1;
+		}
+		this.hi = new long[ n];
+		this.lo = new long[ n];
+		this.values = new EphIdTS[ n];
+		this.mask = n - 1;
+	}
+
+	int size() {
+		return this.size;
+	}
+
+	boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	private static long getLong( byte b[], int off) {
+		long l = 0;
+		for ( int i = 0; i < 8; i++) {
+			l = (l << 8) | (b[off + i] & 0xFF);
+		}
+		return l;
+	}
+
+	/***
+	 * the EphIDs are pseudo-random already, some mixing for the low bits
+	 */
+	private int slot( long h, long l) {
+		final long x = (h ^ (l * 0x9E3779B97F4A7C15L));
+		return (int) (x ^ (x >>> 32)) & this.mask;
+	}
+
+	/***
+	 *
+	 * @param ephIds
+	 * @param off offset of a Crypto.EPHID_LENGTH bytes EphID
+	 * @param value
+	 * @return the previous value or null
+	 */
+	EphIdTS put( byte ephIds[], int off, EphIdTS value) {
+		if ( value == null) {
+			throw new IllegalArgumentException();
+		}
+		final long h = getLong( ephIds, off);
+		final long l = getLong( ephIds, off + 8);
+		int i = this.slot( h, l);
+		while ( this.values[i] != null) {
+			if ( this.hi[i] == h && this.lo[i] == l) {
+				final EphIdTS old = this.values[i];
+				this.values[i] = value;
+				return old;
+			}
+			i = (i + 1) & this.mask;
+		}
+		if ( 2 * (this.size + 1) > this.values.length) {
+			throw new IllegalStateException( "EphID table full");
+		}
+		this.hi[i] = h;
+		this.lo[i] = l;
+		this.values[i] = value;
+		this.size++;
+		return null;
+	}
+
+	/***
+	 *
+	 * @param ephIds
+	 * @param off offset of a Crypto.EPHID_LENGTH bytes EphID
+	 * @return the value of the EphID or null
+	 */
+	EphIdTS get( byte ephIds[], int off) {
+		final long h = getLong( ephIds, off);
+		final long l = getLong( ephIds, off + 8);
+		int i = this.slot( h, l);
+		EphIdTS v;
+		while ( (v = this.values[i]) != null) {
+			if ( this.hi[i] == h && this.lo[i] == l) {
+				return v;
+			}
+			i = (i + 1) & this.mask;
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,155 @@
+package ch.binding.beacon.dp3t;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ch.binding.beacon.ByteArray;
+import ch.binding.beacon.metrics.Counter;
+import ch.binding.beacon.metrics.MetricsRegistry;
+
+/***
+ * the DP-3T key chain SK(t+1) = SHA-256( SK(t)), memoised per seed key and day: the keys derived from a seed key
+ * are cached, so SK(t) of a day already derived is a lookup and a later day continues from the last key derived
+ * rather than from the seed.
+ *
+ * the cache holds at most maxChains chains, the least recently used are dropped. the returned keys are shared
+ * and must not be modified.
+ *
+ * @author carl
+ *
+ */
+public class KeyChain {
+
+	public static final int DEFAULT_MAX_CHAINS = Integer.getInteger( "beacon.dp3t.keychain.size", 4096);
+
+	private static final Counter hits = MetricsRegistry.counter( "dp3t.keychain.hits");
+	private static final Counter misses = MetricsRegistry.counter( "dp3t.keychain.misses");
+
+	private static final KeyChain instance = new KeyChain( DEFAULT_MAX_CHAINS);
+
+	/***
+	 *
+	 * @return the chain shared by the key store and the matcher
+	 */
+	public static KeyChain getInstance() {
+		return instance;
+	}
+
+	/***
+	 * a seed key and its day
+	 */
+	private static final class Seed {
+
+		private final ByteArray key;
+		private final int dayNbr;
+
+		Seed( byte key[], int dayNbr) {
+			this.key = new ByteArray( key);
+			this.dayNbr = dayNbr;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * this.key.hashCode() + this.dayNbr;
+		}
+
+		@Override
+		public boolean equals( Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+			final Seed s = (Seed) o;
+			return this.dayNbr == s.dayNbr && this.key.equals( s.key);
+		}
+	}
+
+	/***
+	 * access-ordered, keys[i] is the key of day seed.dayNbr + i, keys[0] the seed key.
+	 */
+	private final LinkedHashMap<Seed, byte[][]> chains;
+
+	public KeyChain( final int maxChains) {
+		super();
+		if ( maxChains <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.chains = new LinkedHashMap<Seed, byte[][]>( 16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry( Map.Entry<Seed, byte[][]> eldest) {
+				return this.size() > maxChains;
+			}
+		};
+	}
+
+	/***
+	 *
+	 * @param seedKey SK(seedDayNbr)
+	 * @param seedDayNbr
+	 * @param toDayNbr >= seedDayNbr
+	 * @return SK(seedDayNbr) ... SK(toDayNbr)
+	 */
+	public byte[][] getKeys( byte seedKey[], int seedDayNbr, int toDayNbr) {
+		if ( toDayNbr < seedDayNbr) {
+			throw new IllegalArgumentException( "day nbr before seed key");
+		}
+		final int n = toDayNbr - seedDayNbr + 1;
+		final Seed seed = new Seed( seedKey, seedDayNbr);
+
+		byte keys[][];
+		synchronized ( this.chains) {
+			keys = this.chains.get( seed);
+		}
+		if ( keys != null && keys.length >= n) {
+			hits.inc();
+			return keys.length == n ? keys : Arrays.copyOf( keys, n);
+		}
+		misses.inc();
+
+		// continue from the last key derived, outside of the lock
+		int i;
+		if ( keys == null) {
+			keys = new byte[n][];
+			keys[0] = seedKey.clone();
+			i = 1;
+		} else {
+			i = keys.length;
+			keys = Arrays.copyOf( keys, n);
+		}
+		for ( ; i < n; i++) {
+			keys[i] = Crypto.getSKt1( keys[i - 1]);
+		}
+
+		synchronized ( this.chains) {
+			final byte cached[][] = this.chains.get( seed);
+			if ( cached == null || cached.length < n) {
+				// keyed by the copy of the seed key, the caller may modify its array
+				this.chains.put( new Seed( keys[0], seedDayNbr), keys);
+			}
+		}
+		return keys;
+	}
+
+	/***
+	 *
+	 * @param seedKey SK(seedDayNbr)
+	 * @param seedDayNbr
+	 * @param dayNbr >= seedDayNbr
+	 * @return SK(dayNbr)
+	 */
+	public byte[] getKey( byte seedKey[], int seedDayNbr, int dayNbr) {
+		final byte keys[][] = this.getKeys( seedKey, seedDayNbr, dayNbr);
+		return keys[ keys.length - 1];
+	}
+
+	/***
+	 * drops all chains, e.g. when a new key sequence is started
+	 */
+	public void invalidate() {
+		synchronized ( this.chains) {
+			this.chains.clear();
+		}
+	}
+
+}
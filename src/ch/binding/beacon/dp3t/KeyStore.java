@@ -4,12 +4,49 @@ import java.util.List;
 
 public interface KeyStore {
 
+	/***
+	 * a sighting of a foreign EphID
+	 */
+	public static class ForeignEphId {
+		
+		private final EphId ephId;
+		private final int rssi;
+		private final long timeOfCapture;
+		
+		public ForeignEphId( EphId ephId, int rssi, long timeOfCapture) {
+			super();
+			this.ephId = ephId;
+			this.rssi = rssi;
+			this.timeOfCapture = timeOfCapture;
+		}
+
+		public EphId getEphId() {
+			return this.ephId;
+		}
+
+		public int getRssi() {
+			return this.rssi;
+		}
+
+		public long getTimeOfCapture() {
+			return this.timeOfCapture;
+		}
+	}
+
 	/***
 	 * to store a key in DB
 	 * @param key
 	 */
 	boolean store( ch.binding.beacon.dp3t.SecretKey key);
 
+	/***
+	 * stores the keys in one transaction, replacing the keys of the same days.
+	 * 
+	 * @param keys
+	 * @return success/failure
+	 */
+	boolean store( List<ch.binding.beacon.dp3t.SecretKey> keys);
+
 	/***
 	 * 
 	 * @param dayNbr number of day since EPOCH. if -1 returns the latest key found in store.
@@ -38,4 +75,13 @@ public interface KeyStore {
 	
 	boolean storeForeignEphId( EphId ephId, int rssi, long timeOfCapture);
 	
+	/***
+	 * stores the sightings in one transaction. a sighting of an EphID stored already on the same day extends its
+	 * time range and keeps the strongest RSSI.
+	 * 
+	 * @param ephIds
+	 * @return success/failure
+	 */
+	boolean storeForeignEphIds( List<ForeignEphId> ephIds);
+	
 }
@@ -12,14 +12,60 @@ public interface KeyStore2 {
 	
 	public boolean putObservedEphID( byte [] hash, int rssi, long timeOfCapture);
 	
+	/***
+	 * a sighting of the hash of an EphID
+	 */
+	public static class ObservedEphID {
+		
+		private final byte [] hash;
+		private final int rssi;
+		private final long timeOfCapture;
+		
+		public ObservedEphID( byte [] hash, int rssi, long timeOfCapture) {
+			super();
+			this.hash = hash;
+			this.rssi = rssi;
+			this.timeOfCapture = timeOfCapture;
+		}
+
+		public byte [] getHash() {
+			return hash;
+		}
+
+		public int getRssi() {
+			return rssi;
+		}
+
+		public long getTimeOfCapture() {
+			return timeOfCapture;
+		}
+	}
+	
+	/***
+	 * stores the sightings in one transaction. a sighting of a hash stored already extends its time range and 
+	 * keeps the strongest RSSI.
+	 * 
+	 * @param observed
+	 * @return success/failure
+	 */
+	public boolean putObservedEphIDs( List<ObservedEphID> observed);
+	
 	public boolean putInfectedSeed( byte [] seed, long epoch);
 	
+	/***
+	 * stores the seeds in one transaction, seeds stored already are ignored.
+	 * 
+	 * @param seeds
+	 * @return success/failure
+	 */
+	public boolean putInfectedSeeds( List<Seed> seeds);
+	
 	public static class Seed {
 		
 		private byte [] seed;
 		private long epoch;
 		
-		Seed( byte [] seed, long epoch) {
+		public Seed( byte [] seed, long epoch) {
 			super();
 			this.seed = seed;
 			this.epoch = epoch;
@@ -42,5 +88,13 @@ public interface KeyStore2 {
 	 */
 	public List<Seed> getInfectedSeeds( long fromEpoch, long toEpoch);
 	
+	/**
+	 * 
+	 * @param fromToc time of capture, msecs
+	 * @param toToc time of capture, msecs
+	 * @return hashes of the EphIDs last observed in the given time range, null on failure
+	 */
+	public List<byte[]> getObservedEphIDs( long fromToc, long toToc);
+	
 
 }
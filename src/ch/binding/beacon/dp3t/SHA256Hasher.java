@@ -0,0 +1,144 @@
+package ch.binding.beacon.dp3t;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/***
+ * SHA-256 hashing without a provider lookup per hash: each thread keeps its own MessageDigest. the hashes can be
+ * written into buffers of the caller, e.g. the hashes of all EphIDs of a day into one contiguous array.
+ *
+ * the hash of an EphID is SHA-256( EphID || epoch), the epoch as 4 bytes MSB first, see Crypto2.getHash().
+ *
+ * @author carl
+ *
+ */
+public final class SHA256Hasher {
+
+	public static final int HASH_LENGTH = 32;
+
+	private static final int EPOCH_LENGTH = 4;
+
+	private static final class State {
+		final MessageDigest md;
+		final byte epoch[] = new byte[ EPOCH_LENGTH];
+
+		State() {
+			try {
+				this.md = MessageDigest.getInstance( "SHA-256");
+			} catch ( NoSuchAlgorithmException e) {
+				throw new IllegalStateException( "SHA-256 algorithm must be present!");
+			}
+		}
+	}
+
+	private static final ThreadLocal<State> STATE = new ThreadLocal<State>() {
+		@Override
+		protected State initialValue() {
+			return new State();
+		}
+	};
+
+	private SHA256Hasher() {
+	}
+
+	/***
+	 *
+	 * @param data
+	 * @return the SHA-256 hash of data
+	 */
+	public static byte[] hash( byte data[]) {
+		return STATE.get().md.digest( data);
+	}
+
+	/***
+	 * hashes len bytes of data at off into out at outOff.
+	 *
+	 * @param data
+	 * @param off
+	 * @param len
+	 * @param out at least HASH_LENGTH bytes after outOff
+	 * @param outOff
+	 */
+	public static void hash( byte data[], int off, int len, byte out[], int outOff) {
+		checkOut( out, outOff, 1);
+		final MessageDigest md = STATE.get().md;
+		md.update( data, off, len);
+		digest( md, out, outOff);
+	}
+
+	/***
+	 * hashes an EphID and its epoch into out at outOff.
+	 *
+	 * @param ephIds
+	 * @param off offset of the EphID, Crypto2.EPHID_LENGTH bytes
+	 * @param epoch
+	 * @param out
+	 * @param outOff
+	 */
+	public static void hashEphId( byte ephIds[], int off, long epoch, byte out[], int outOff) {
+		checkOut( out, outOff, 1);
+		final State s = STATE.get();
+		s.md.update( ephIds, off, Crypto2.EPHID_LENGTH);
+		// MAX_INT epochs =~ 588351 years, 4 bytes are enough
+		final int e = (int) epoch;
+		s.epoch[0] = (byte) (e >>> 24);
+		s.epoch[1] = (byte) (e >>> 16);
+		s.epoch[2] = (byte) (e >>> 8);
+		s.epoch[3] = (byte) e;
+		s.md.update( s.epoch, 0, EPOCH_LENGTH);
+		digest( s.md, out, outOff);
+	}
+
+	/***
+	 * hashes n EphIDs stored back to back in ephIds with their epochs. the hashes are stored back to back in out.
+	 *
+	 * @param ephIds n * Crypto2.EPHID_LENGTH bytes from off
+	 * @param off
+	 * @param epochs n epochs
+	 * @param n
+	 * @param out n * HASH_LENGTH bytes from outOff
+	 * @param outOff
+	 */
+	public static void hashEphIds( byte ephIds[], int off, long epochs[], int n, byte out[], int outOff) {
+		if ( off + n * Crypto2.EPHID_LENGTH > ephIds.length || n > epochs.length) {
+			throw new IllegalArgumentException();
+		}
+		checkOut( out, outOff, n);
+		for ( int i = 0; i < n; i++) {
+			hashEphId( ephIds, off + i * Crypto2.EPHID_LENGTH, epochs[i], out, outOff + i * HASH_LENGTH);
+		}
+	}
+
+	/***
+	 *
+	 * @param ephIds
+	 * @param out ephIds.length * HASH_LENGTH bytes from outOff
+	 * @param outOff
+	 */
+	public static void hashEphIds( EphId ephIds[], byte out[], int outOff) {
+		checkOut( out, outOff, ephIds.length);
+		for ( int i = 0; i < ephIds.length; i++) {
+			hashEphId( ephIds[i].getData(), 0, ephIds[i].getEpoch(), out, outOff + i * HASH_LENGTH);
+		}
+	}
+
+	/***
+	 * checked before anything is hashed, else a failing digest() would leave the data in the thread's digest
+	 */
+	private static void checkOut( byte out[], int outOff, int n) {
+		if ( outOff < 0 || outOff + (long) n * HASH_LENGTH > out.length) {
+			throw new IllegalArgumentException( "output buffer too short");
+		}
+	}
+
+	private static void digest( MessageDigest md, byte out[], int outOff) {
+		try {
+			md.digest( out, outOff, HASH_LENGTH);
+		} catch ( DigestException e) {
+			md.reset();
+			throw new IllegalStateException( e);
+		}
+	}
+
+}
@@ -7,17 +7,38 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import ch.binding.beacon.dp3t.KeyStore;
 
 public class SQLKeyStore implements KeyStore {
 	
 	
-	private String dbURL = "jdbc:sqlite:/home/carl/workspace/beacon/sqlite/dp3t.db";
+	/***
+	 * the DP-3T database. can be overridden with -Dbeacon.dp3t.db=[file name], e.g. for benchmarks.
+	 */
+	static final String DB_URL = "jdbc:sqlite:" + System.getProperty( "beacon.dp3t.db", "/home/carl/workspace/beacon/sqlite/dp3t.db");
+	
+	private String dbURL = DB_URL;
+	
+	/***
+	 * we keep track of the strongest RSSI...
+	 */
+	static final String FOREIGN_EPH_ID_UPSERT = "insert into foreign_eph_ids ( day_nbr, first_toc, last_toc, eph_id, rssi) values( ?, ?, ?, ?, ?) " +
+			"on conflict( eph_id, day_nbr) do update set first_toc = min( first_toc, excluded.first_toc), " +
+			"last_toc = max( last_toc, excluded.last_toc), rssi = max( rssi, excluded.rssi)";
+	
+	/***
+	 * the DBs whose text rows have been converted
+	 */
+	private static final Set<String> converted = new HashSet<String>();
 	
 	SQLKeyStore() {
 		super();
+		convertTextRows( this.dbURL);
 	}
 	
 	private Connection connect() {
@@ -77,6 +98,34 @@ public class SQLKeyStore implements KeyStore {
 			
 	}
 
+	@Override
+	public boolean store( List<SecretKey> keys) {
+		
+		final String upsert_stmt = "insert into secret_keys ( day_nbr, key) values( ?, ?) " +
+				"on conflict( day_nbr) do update set key = excluded.key";
+		
+		try ( Connection conn = this.connect();
+			  PreparedStatement pstmt = conn.prepareStatement( upsert_stmt);
+				){
+			
+			conn.setAutoCommit( false);
+			
+			for ( SecretKey key: keys) {
+				pstmt.setLong( 1, key.getDayNbr());
+				pstmt.setString( 2, Base64.getEncoder().encodeToString( key.getKey()));
+				pstmt.addBatch();
+			}
+			
+			pstmt.executeBatch();
+			conn.commit();
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+		}
+		return true;
+	}
+
 	@Override
 	public SecretKey getKey( int dayNbr) {
 		
@@ -171,8 +220,7 @@ public class SQLKeyStore implements KeyStore {
 			// loop through the result set which is ordered on epoch_nbr
 			while (rs.next()) {
 				count++;
-				final String ephIdStr = rs.getString( "eph_id");
-				final byte [] ephId = Base64.getDecoder().decode( ephIdStr);
+				final byte [] ephId = getBytes( rs, "eph_id");
 				ephIds.add( new EphId( ephId));
 			}
 
@@ -192,27 +240,30 @@ public class SQLKeyStore implements KeyStore {
 	@Override
 	public boolean storeEphIDs( int dayNbr, List<EphId> ephIds) {
 		
-		final String insert_stmt = "insert into eph_ids ( day_nbr, epoch_nbr, eph_id) values( ?, ?, ?)";
-		
-		// the ephIDs are ordered
-		int epochNbr = 0;
+		final String upsert_stmt = "insert into eph_ids ( day_nbr, epoch_nbr, eph_id) values( ?, ?, ?) " +
+				"on conflict( day_nbr, epoch_nbr) do update set eph_id = excluded.eph_id";
 		
-		for ( EphId ephId: ephIds) {
-			try (Connection conn = this.connect(); 
-					PreparedStatement pstmt = conn.prepareStatement(insert_stmt);
-					) {
-				final String ephIdStr = Base64.getEncoder().encodeToString( ephId.getData()); 
+		try ( Connection conn = this.connect();
+			  PreparedStatement pstmt = conn.prepareStatement( upsert_stmt);
+				){
+			
+			conn.setAutoCommit( false);
+			
+			// the ephIDs are ordered
+			int epochNbr = 0;
+			for ( EphId ephId: ephIds) {
 				pstmt.setLong( 1, dayNbr);
-            	pstmt.setInt( 2, epochNbr++);
-            	pstmt.setString( 3,  ephIdStr);
-            	pstmt.executeUpdate();      
-            	            	
-			} catch ( Exception e) {
-				System.err.println(e.getMessage());
-				return false;
-			} finally {
+				pstmt.setInt( 2, epochNbr++);
+				pstmt.setBytes( 3, ephId.getData());
+				pstmt.addBatch();
 			}
-
+			
+			pstmt.executeBatch();
+			conn.commit();
+		} catch (SQLException e) {
+			System.err.println(e.getMessage());
+			return false;
+		} finally {
 		}
 		return true;
 	}
@@ -237,81 +288,137 @@ public class SQLKeyStore implements KeyStore {
 
 	
 
-	private static final long ONE_SEC = 1000; 
-	
 	@Override
 	public boolean storeForeignEphId(EphId ephId, int rssi, long timeOfCapture) {
+		return this.storeForeignEphIds( Collections.singletonList( new ForeignEphId( ephId, rssi, timeOfCapture)));
+	}
+
+	@Override
+	public boolean storeForeignEphIds( List<ForeignEphId> ephIds) {
 		
-		final int dayNbr = Crypto.getDayNumber(timeOfCapture);
-		
-		final String select_stmt = "select * from foreign_eph_ids where (day_nbr = ?) and (eph_id = ?)";
-		final String insert_stmt = "insert into foreign_eph_ids ( day_nbr, first_toc, last_toc, eph_id, rssi) values( ?, ?, ?, ?, ?)";
-		final String update_stmt = "update foreign_eph_ids set last_toc = ?, rssi=? where (day_nbr = ?) and (eph_id = ?)";
-		
-		final String ephIdStr = Base64.getEncoder().encodeToString( ephId.getData());
-			
 		try ( Connection conn = this.connect();
-	          PreparedStatement pstmt  = conn.prepareStatement( select_stmt);
-			  PreparedStatement pstmt2 = conn.prepareStatement( insert_stmt);
-			  PreparedStatement pstmt3 = conn.prepareStatement( update_stmt);
+			  PreparedStatement pstmt = conn.prepareStatement( FOREIGN_EPH_ID_UPSERT);
 				){
-	            
-	            // set the value
-	            pstmt.setInt( 1, dayNbr);
-	            pstmt.setString( 2,  ephIdStr);
-	            // execute query
-	            ResultSet rs  = pstmt.executeQuery();
-	            
-	            int count = 0;
-	            long last_toc = 0;
-	            int dbRssi = 0;
-	            
-	            // loop through the result set
-	            while (rs.next()) {
-	            	count++;
-	            	last_toc = rs.getLong( "last_toc");
-	            	dbRssi = rs.getInt( "rssi");
-	            }
-	           
-	            if ( count == 0) {
-	          
-	            	// insert new ephID
-	            	pstmt2.setInt( 1, dayNbr);
-	            	pstmt2.setLong( 2, timeOfCapture);
-	            	pstmt2.setLong( 3, timeOfCapture);
-	            	pstmt2.setString( 4, ephIdStr);
-	            	pstmt2.setInt( 5, rssi);
-	            	
-	            	pstmt2.executeUpdate();
-	            	
-	            } else {
-	            	// we keep track of the strongest RSSI...
-	            	// there may be smarter things to do?
-	            	int maxRssi = dbRssi>rssi?dbRssi:rssi;
-	            	
-	            	// update only if the new capture is more than a second apart...
-	            	if ( timeOfCapture - last_toc >= ONE_SEC) {
-		            	// update last time-of-capture
-		            	
-		            	pstmt3.setLong( 1, timeOfCapture);
-		            	pstmt3.setInt( 2, maxRssi);
-		            	pstmt3.setInt( 3, dayNbr);
-		            	pstmt3.setString( 4, ephIdStr);
-		            	
-		            	pstmt3.executeUpdate();
-	            	}
-	            	
-	            }
-	        } catch (SQLException e) {
-	            e.printStackTrace();
-	            return false;
-	        } finally {
-	        }
+			
+			conn.setAutoCommit( false);
+			
+			for ( ForeignEphId f: ephIds) {
+				pstmt.setInt( 1, Crypto.getDayNumber( f.getTimeOfCapture()));
+				pstmt.setLong( 2, f.getTimeOfCapture());
+				pstmt.setLong( 3, f.getTimeOfCapture());
+				pstmt.setBytes( 4, f.getEphId().getData());
+				pstmt.setInt( 5, f.getRssi());
+				pstmt.addBatch();
+			}
+			
+			pstmt.executeBatch();
+			conn.commit();
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+		}
+		return true;
+	}
+	
+	/***
+	 * EphIDs and hashes used to be stored as Base64 text and are stored as BLOBs now. a text row and a BLOB row of 
+	 * the same bytes do not conflict, i.e. would be kept side by side. the text rows of a DB are therefore converted 
+	 * once, in one transaction, and merged with a BLOB row of the same EphID or hash as the upserts do.
+	 * 
+	 * @param dbURL
+	 * @return false on failure, the rows are left as they were
+	 */
+	static boolean convertTextRows( String dbURL) {
 		
+		final String select_eph_ids = "select rowid, eph_id from eph_ids where typeof( eph_id) = 'text'";
+		final String update_eph_id = "update eph_ids set eph_id = ? where rowid = ?";
+		final String select_foreign = "select rowid, day_nbr, first_toc, last_toc, eph_id, rssi from foreign_eph_ids where typeof( eph_id) = 'text'";
+		final String delete_foreign = "delete from foreign_eph_ids where rowid = ?";
+		final String select_observed = "select rowid, hash, first_toc, last_toc, rssi from observed_eph_ids where typeof( hash) = 'text'";
+		final String delete_observed = "delete from observed_eph_ids where rowid = ?";
 		
-		return true;
-
+		synchronized ( converted) {
+			if ( converted.contains( dbURL)) {
+				return true;
+			}
+			
+			try ( Connection conn = DriverManager.getConnection( dbURL)) {
+				
+				conn.setAutoCommit( false);
+				
+				try ( PreparedStatement select = conn.prepareStatement( select_eph_ids);
+					  PreparedStatement update = conn.prepareStatement( update_eph_id);
+					  ResultSet rs = select.executeQuery()) {
+					// the primary key is ( day_nbr, epoch_nbr), the rows are updated in place
+					while ( rs.next()) {
+						update.setBytes( 1, getBytes( rs, "eph_id"));
+						update.setLong( 2, rs.getLong( "rowid"));
+						update.addBatch();
+					}
+					update.executeBatch();
+				}
+				
+				try ( PreparedStatement select = conn.prepareStatement( select_foreign);
+					  PreparedStatement delete = conn.prepareStatement( delete_foreign);
+					  PreparedStatement upsert = conn.prepareStatement( FOREIGN_EPH_ID_UPSERT);
+					  ResultSet rs = select.executeQuery()) {
+					while ( rs.next()) {
+						delete.setLong( 1, rs.getLong( "rowid"));
+						delete.addBatch();
+						upsert.setInt( 1, rs.getInt( "day_nbr"));
+						upsert.setLong( 2, rs.getLong( "first_toc"));
+						upsert.setLong( 3, rs.getLong( "last_toc"));
+						upsert.setBytes( 4, getBytes( rs, "eph_id"));
+						upsert.setInt( 5, rs.getInt( "rssi"));
+						upsert.addBatch();
+					}
+					delete.executeBatch();
+					upsert.executeBatch();
+				}
+				
+				try ( PreparedStatement select = conn.prepareStatement( select_observed);
+					  PreparedStatement delete = conn.prepareStatement( delete_observed);
+					  PreparedStatement upsert = conn.prepareStatement( SQLKeyStore2.OBSERVED_EPH_ID_UPSERT);
+					  ResultSet rs = select.executeQuery()) {
+					while ( rs.next()) {
+						delete.setLong( 1, rs.getLong( "rowid"));
+						delete.addBatch();
+						upsert.setBytes( 1, getBytes( rs, "hash"));
+						upsert.setLong( 2, rs.getLong( "first_toc"));
+						upsert.setLong( 3, rs.getLong( "last_toc"));
+						upsert.setInt( 4, rs.getInt( "rssi"));
+						upsert.addBatch();
+					}
+					delete.executeBatch();
+					upsert.executeBatch();
+				}
+				
+				conn.commit();
+			} catch ( SQLException | IllegalArgumentException e) {
+				// the transaction is rolled back when the connection is closed
+				System.err.println( "cannot convert text rows: " + e.getMessage());
+				return false;
+			}
+			converted.add( dbURL);
+			return true;
+		}
 	}
-
 	
+	/***
+	 * EphIDs are stored as BLOBs, rows stored before as Base64 text, see convertTextRows().
+	 * 
+	 * @param rs
+	 * @param column
+	 * @return the bytes of the column of the current row
+	 * @throws SQLException
+	 */
+	static byte[] getBytes( ResultSet rs, String column) throws SQLException {
+		final Object o = rs.getObject( column);
+		if ( o instanceof byte[]) {
+			return (byte[]) o;
+		}
+		return o == null ? null : Base64.getDecoder().decode( o.toString());
+	}
+
 }
@@ -7,6 +7,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
 
 import org.sqlite.SQLiteException;
@@ -14,10 +15,18 @@ import org.sqlite.SQLiteException;
 public class SQLKeyStore2 implements KeyStore2 {
 
 	
-	private String dbURL = "jdbc:sqlite:/home/carl/workspace/beacon/sqlite/dp3t.db";
+	private String dbURL = SQLKeyStore.DB_URL;
+	
+	/***
+	 * we keep track of the strongest RSSI...
+	 */
+	static final String OBSERVED_EPH_ID_UPSERT = "insert into observed_eph_ids ( hash, first_toc, last_toc, rssi) values( ?, ?, ?, ?) " +
+			"on conflict( hash) do update set first_toc = min( first_toc, excluded.first_toc), " +
+			"last_toc = max( last_toc, excluded.last_toc), rssi = max( rssi, excluded.rssi)";
 	
 	SQLKeyStore2() {
 		super();
+		SQLKeyStore.convertTextRows( this.dbURL);
 	}
 	
 	private Connection connect() {
@@ -108,74 +117,36 @@ public class SQLKeyStore2 implements KeyStore2 {
 
 	}
 
-	private final static int ONE_SEC = 1000;
-	
 	@Override
 	public boolean putObservedEphID(byte[] hash, int rssi, long timeOfCapture) {
+		return this.putObservedEphIDs( Collections.singletonList( new ObservedEphID( hash, rssi, timeOfCapture)));
+	}
+	
+	@Override
+	public boolean putObservedEphIDs( List<ObservedEphID> observed) {
 		
-		String hashStr = Base64.getEncoder().encodeToString( hash);
-		
-		final String select_stmt = "select * from observed_eph_ids where hash = ?";
-		final String insert_stmt = "insert into observed_eph_ids ( hash, first_toc, last_toc, rssi) values( ?, ?, ?, ?)";
-		final String update_stmt = "update observed_eph_ids set last_toc = ?, rssi = ? where hash = ?";
-			
 		try ( Connection conn = this.connect();
-	          PreparedStatement pstmt  = conn.prepareStatement( select_stmt);
-			  PreparedStatement pstmt2 = conn.prepareStatement( insert_stmt);
-			  PreparedStatement pstmt3 = conn.prepareStatement( update_stmt);
+			  PreparedStatement pstmt = conn.prepareStatement( OBSERVED_EPH_ID_UPSERT);
 				){
-	            
-	            // set the value
-	            pstmt.setString( 1, hashStr);
-	            // execute query
-	            ResultSet rs  = pstmt.executeQuery();
-	            
-	            int count = 0;
-	            long last_toc = 0;
-	            int dbRssi = 0;
-	            
-	            // loop through the result set
-	            while (rs.next()) {
-	            	count++;
-	            	last_toc = rs.getLong( "last_toc");
-	            	dbRssi = rs.getInt( "rssi");
-	            }
-	           
-	            if ( count == 0) {
-	          
-	            	// insert new payload
-	            	pstmt2.setString( 1, hashStr);
-	            	pstmt2.setLong( 2, timeOfCapture);
-	            	pstmt2.setLong( 3, timeOfCapture);
-	            	pstmt2.setInt( 4, rssi);	            	
-	            	pstmt2.executeUpdate();
-	            	
-	            } else {
-	            	// we keep track of the strongest RSSI...
-	            	// there may be smarter things to do?
-	            	int maxRssi = dbRssi>rssi?dbRssi:rssi;
-	            	
-	            	// update only if the new capture is more than a second apart...
-	            	if ( timeOfCapture - last_toc >= ONE_SEC) {
-		            	// update last time-of-capture
-		            	
-		            	pstmt3.setLong( 1, timeOfCapture);
-		            	pstmt3.setInt( 2, maxRssi);
-		            	pstmt3.setString( 3, hashStr);
-		            	
-		            	pstmt3.executeUpdate();
-	            	}
-	            	
-	            }
-	        } catch (SQLException e) {
-	            e.printStackTrace();
-	            return false;
-	        } finally {
-	        }
-		
-		
+			
+			conn.setAutoCommit( false);
+			
+			for ( ObservedEphID o: observed) {
+				pstmt.setBytes( 1, o.getHash());
+				pstmt.setLong( 2, o.getTimeOfCapture());
+				pstmt.setLong( 3, o.getTimeOfCapture());
+				pstmt.setInt( 4, o.getRssi());
+				pstmt.addBatch();
+			}
+			
+			pstmt.executeBatch();
+			conn.commit();
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+		}
 		return true;
-
 	}
 
 	private static final int SQLITE_CONSTRAINT = 19;
@@ -209,6 +180,33 @@ public class SQLKeyStore2 implements KeyStore2 {
 		return true;
 	}
 
+	@Override
+	public boolean putInfectedSeeds( List<Seed> seeds) {
+		
+		final String insert_stmt = "insert into infected_seeds ( seed, epoch) values( ?, ?) on conflict do nothing";
+		
+		try ( Connection conn = this.connect();
+			  PreparedStatement pstmt = conn.prepareStatement( insert_stmt);
+				){
+			
+			conn.setAutoCommit( false);
+			
+			for ( Seed seed: seeds) {
+				pstmt.setString( 1, Base64.getEncoder().encodeToString( seed.getSeed()));
+				pstmt.setInt( 2, (int) seed.getEpoch());
+				pstmt.addBatch();
+			}
+			
+			pstmt.executeBatch();
+			conn.commit();
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+		}
+		return true;
+	}
+
 	@Override
 	public List<Seed> getInfectedSeeds(long fromEpoch, long toEpoch) {
 		
@@ -244,4 +242,28 @@ public class SQLKeyStore2 implements KeyStore2 {
 			
 	}
 
+	@Override
+	public List<byte[]> getObservedEphIDs( long fromToc, long toToc) {
+		
+		final String select_stmt = "select hash from observed_eph_ids where ( ? <= last_toc) and ( last_toc <= ?)";
+		try ( Connection conn = this.connect();
+		          PreparedStatement pstmt  = conn.prepareStatement( select_stmt);
+			){
+            
+            pstmt.setLong( 1, fromToc);
+            pstmt.setLong( 2, toToc);
+            
+            ArrayList<byte[]> hashes = new ArrayList<byte[]>();
+            try ( ResultSet rs  = pstmt.executeQuery()) {
+            	while (rs.next()) {
+            		hashes.add( SQLKeyStore.getBytes( rs, "hash"));
+            	}
+            }
+            return hashes;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+	}
+
 }
@@ -7,21 +7,75 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Base64;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 
 import ch.binding.beacon.ByteArray;
+import ch.binding.beacon.jfr.MatcherRunEvent;
+import ch.binding.beacon.metrics.Counter;
+import ch.binding.beacon.metrics.Histogram;
+import ch.binding.beacon.metrics.MetricsRegistry;
+import ch.binding.beacon.utils.Clock;
 
 
 
 public class SQLiteEphIDMatcher {
 	
-	private String dbURL = "jdbc:sqlite:/home/carl/workspace/beacon/sqlite/dp3t.db";
+	private String dbURL = SQLKeyStore.DB_URL;
+	
+	private static final Counter keysMatched = MetricsRegistry.counter( "dp3t.matcher.keys");
+	private static final Counter ephIDsDerived = MetricsRegistry.counter( "dp3t.matcher.ephIDs");
+	private static final Counter matchesFound = MetricsRegistry.counter( "dp3t.matcher.matches");
+	private static final Histogram matchDuration = MetricsRegistry.histogram( "dp3t.matcher.duration.ms");
+	
+	/***
+	 * a task derives and probes the EphIDs of at most that many keys
+	 */
+	private static final int KEY_SHARD = 64;
+	
+	private final ForkJoinPool pool;
+	
+	private final KeyChain keyChain;
+	
+	/***
+	 * if set, the expanded keys are stored into infectious_keys, else the keys are only kept in memory
+	 */
+	private boolean persistInfectiousKeys = false;
 	
 	SQLiteEphIDMatcher() {
+		this( ForkJoinPool.commonPool(), KeyChain.getInstance());
+	}
+	
+	/***
+	 * 
+	 * @param pool the days and key shards are matched on
+	 */
+	SQLiteEphIDMatcher( ForkJoinPool pool) {
+		this( pool, KeyChain.getInstance());
+	}
+	
+	/***
+	 * 
+	 * @param pool the days and key shards are matched on
+	 * @param keyChain expands the published keys
+	 */
+	SQLiteEphIDMatcher( ForkJoinPool pool, KeyChain keyChain) {
 		super();
+		this.pool = pool;
+		this.keyChain = keyChain;
+		SQLKeyStore.convertTextRows( this.dbURL);
+	}
+	
+	public boolean isPersistInfectiousKeys() {
+		return this.persistInfectiousKeys;
+	}
+
+	public void setPersistInfectiousKeys( boolean persistInfectiousKeys) {
+		this.persistInfectiousKeys = persistInfectiousKeys;
 	}
 	
 	private Connection connect() {
@@ -69,6 +123,67 @@ public class SQLiteEphIDMatcher {
 			this.ephId = ephId;
 		}
 		
+		public SecretKey getKey() {
+			return this.key;
+		}
+		
+		public EphIdTS getEphId() {
+			return this.ephId;
+		}
+		
+	}
+	
+	/***
+	 * matches the keys [from, to) of a day against the encounters of the day. the encounters are shared and 
+	 * read-only, each leaf task has its own EphID buffer and list of matches which are merged when joined.
+	 */
+	private static class MatchTask extends RecursiveTask<ArrayList<Match>> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final List<SecretKey> keys;
+		private final int from;
+		private final int to;
+		private final EphIdTable encounters;
+		
+		MatchTask( List<SecretKey> keys, int from, int to, EphIdTable encounters) {
+			super();
+			this.keys = keys;
+			this.from = from;
+			this.to = to;
+			this.encounters = encounters;
+		}
+
+		@Override
+		protected ArrayList<Match> compute() {
+			if ( this.to - this.from > KEY_SHARD) {
+				final int mid = (this.from + this.to) >>> 1;
+				final MatchTask right = new MatchTask( this.keys, mid, this.to, this.encounters);
+				right.fork();
+				final ArrayList<Match> matches = new MatchTask( this.keys, this.from, mid, this.encounters).compute();
+				matches.addAll( right.join());
+				return matches;
+			}
+			
+			final ArrayList<Match> matches = new ArrayList<Match>();
+			// the EphIDs of a key and day, reused for the keys of the shard
+			final byte derivedEphIds[] = new byte[ Crypto.EPHIDS_OF_DAY_LENGTH];
+			
+			for ( int k = this.from; k < this.to; k++) {
+				final SecretKey sk = this.keys.get( k);
+				// derive the EphIds and match against encountered EphIds
+				Crypto.createEphIds( sk.getKey(), derivedEphIds, 0);
+				
+				for ( int i = 0; i < Crypto.NUMBER_OF_EPOCHS_PER_DAY; i++) {
+					final EphIdTS ephIdTS = this.encounters.get( derivedEphIds, Crypto.ephIdOffset( i));
+					if ( ephIdTS != null) {
+						matches.add( new Match( sk, ephIdTS));
+					}
+				}
+			}
+			ephIDsDerived.add( (long) (this.to - this.from) * Crypto.NUMBER_OF_EPOCHS_PER_DAY);
+			return matches;
+		}
 	}
 	
 	/**
@@ -78,28 +193,41 @@ public class SQLiteEphIDMatcher {
 	
 	public List<Match> matches( List<SecretKey> infectiousKeys) {
 		
-		// purge DB of infectious keys
-		if ( !purgeInfectiousKeys( 0, Integer.MAX_VALUE)) {
-			throw new IllegalStateException();
+		final MatcherRunEvent evt = new MatcherRunEvent();
+		evt.begin();
+		long nbrDerived = 0;
+		
+		// expand all infectious keys which are newer than today - INFECTIOUS_DURATION, day by day in memory
+		final long startTS = System.currentTimeMillis();
+		final long now = Clock.now();
+		final int curDay = Crypto.getDayNumber(now);
+		final int fromDay = curDay - INFECTIUOS_DURATION;
+		
+		// the keys of day fromDay + i
+		final int nbrDays = curDay - fromDay + 1;
+		final List<List<SecretKey>> keysByDay = new ArrayList<List<SecretKey>>( nbrDays);
+		for ( int i = 0; i < nbrDays; i++) {
+			keysByDay.add( new ArrayList<SecretKey>());
 		}
 		
-		// enter all infectious keys which are newer than today - INFECTIOUS_DURATION
-		// generating the key sequences as needed		
-		final long now = System.currentTimeMillis();
-		final long curDay = Crypto.getDayNumber(now);
-		final long fromDay = curDay - INFECTIUOS_DURATION;
+		// the keys entered per day. a chain reaching a key entered already continues as that key's chain, e.g. 
+		// for keys published more than once or the keys of one case published on consecutive days.
+		final List<Set<ByteArray>> entered = new ArrayList<Set<ByteArray>>( nbrDays);
+		for ( int i = 0; i < nbrDays; i++) {
+			entered.add( new HashSet<ByteArray>());
+		}
 		
 		for ( SecretKey sk: infectiousKeys) {
 			// we assume that the infectious keys are sent for their oldest infectious day.
-			final long skDayNbr = sk.getDayNbr();
+			final int skDayNbr = sk.getDayNbr();
 			if ( skDayNbr >= fromDay && skDayNbr <= curDay) {
-				byte key[] = sk.getKey();
-				for ( long day = skDayNbr; day <= curDay; day++) {
-
-					if ( !enterInfectiuosKey( day, key)) {
-						throw new IllegalStateException();
+				final byte chain[][] = this.keyChain.getKeys( sk.getKey(), skDayNbr, curDay);
+				for ( int i = 0; i < chain.length; i++) {
+					final int day = skDayNbr + i;
+					if ( !entered.get( day - fromDay).add( new ByteArray( chain[i]))) {
+						break;
 					}
-					key = Crypto.getSKt1(key);
+					keysByDay.get( day - fromDay).add( i == 0 ? sk : new SecretKey( day, chain[i]));
 				}
 			} else if ( skDayNbr > curDay) {
 				throw new IllegalStateException( "a key of the future?");
@@ -108,37 +236,60 @@ public class SQLiteEphIDMatcher {
 			}
 		}
 		
-		ArrayList<Match> matches = new ArrayList<Match>();
+		if ( this.persistInfectiousKeys) {
+			if ( !purgeInfectiousKeys( 0, Integer.MAX_VALUE) || !storeInfectiousKeys( keysByDay)) {
+				throw new IllegalStateException();
+			}
+		}
+		
+		// load the encounters of the days, then match the days and their key shards in parallel.
+		final ArrayList<MatchTask> tasks = new ArrayList<MatchTask>();
 		
 		// from day to day, starting at the beginning of the infectious period and ending now.
-		for ( long day = fromDay; day < curDay; day++) {
+		for ( int day = fromDay; day < curDay; day++) {
 			
-			// get the keys for the current day. there may be none...
-			List<SecretKey> keysOfDay = getInfectiousKeys( day);
-			if ( keysOfDay == null || keysOfDay.isEmpty()) {
+			// the keys for the current day. there may be none...
+			final List<SecretKey> keysOfDay = keysByDay.get( day - fromDay);
+			if ( keysOfDay.isEmpty()) {
 				continue;
 			}
 			
-			final HashMap<ByteArray, EphIdTS> lkupTbl = getEncounters( day);
+			final EphIdTable lkupTbl = getEncounters( day);
 			if ( lkupTbl == null || lkupTbl.isEmpty()) {
 				continue;
 			}
 			
-			for ( SecretKey sk: keysOfDay) {
-				// derive list of EphIds and match against encountered EphIds
-				final List<EphId> derivedEphIds = Crypto.createEphIds( sk.getKey(), false);
-				if ( derivedEphIds == null || derivedEphIds.isEmpty()) {
-					continue;
-				}
-				
-				for ( EphId ephID: derivedEphIds) {
-					final ByteArray ba = new ByteArray( ephID.getData());
-					if ( lkupTbl.containsKey( ba)) {
-						matches.add( new Match( sk, lkupTbl.get( ba)));
-					}
+			tasks.add( new MatchTask( keysOfDay, 0, keysOfDay.size(), lkupTbl));
+			nbrDerived += (long) keysOfDay.size() * Crypto.NUMBER_OF_EPOCHS_PER_DAY;
+		}
+		
+		final ArrayList<Match> matches = this.pool.invoke( new RecursiveTask<ArrayList<Match>>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected ArrayList<Match> compute() {
+				invokeAll( tasks);
+				// merged in the order of the days
+				final ArrayList<Match> matches = new ArrayList<Match>();
+				for ( MatchTask t: tasks) {
+					matches.addAll( t.join());
 				}
+				return matches;
 			}
-		}		
+		});
+		
+		keysMatched.add( infectiousKeys.size());
+		matchesFound.add( matches.size());
+		matchDuration.record( System.currentTimeMillis() - startTS);
+		
+		evt.end();
+		if ( evt.shouldCommit()) {
+			evt.protocol = "DP3T";
+			evt.keys = infectiousKeys.size();
+			evt.derived = nbrDerived;
+			evt.matches = matches.size();
+			evt.commit();
+		}
 		
 		return matches;
 		
@@ -149,7 +300,7 @@ public class SQLiteEphIDMatcher {
 	 * @param day
 	 * @return the set of all encountered EphIds on the given day.
 	 */
-	private HashMap<ByteArray, EphIdTS> getEncounters(long day) {
+	private EphIdTable getEncounters(long day) {
 		final String select_stmt = "select * from foreign_eph_ids where (day_nbr = ?)";
 		
 		try (Connection conn = this.connect(); 
@@ -162,7 +313,7 @@ public class SQLiteEphIDMatcher {
 			rs = pstmt.executeQuery();
 			
 			int count = 0;
-			HashMap<ByteArray, EphIdTS> tbl = new HashMap<ByteArray, EphIdTS>();
+			ArrayList<EphIdTS> encounters = new ArrayList<EphIdTS>();
 			
 			// loop through the result set
 			while (rs.next()) {
@@ -173,16 +324,22 @@ public class SQLiteEphIDMatcher {
 				final long last_toc = rs.getLong("last_toc");
 				final int rssi = rs.getInt( "rssi");
 				final int dayNbr = rs.getInt( "day_nbr");
-				final String eph_id = rs.getString( "eph_id");
+				final byte eph_id[] = SQLKeyStore.getBytes( rs, "eph_id");
 								
-				final EphIdTS ephId = new EphIdTS( first_toc, last_toc, Base64.getDecoder().decode( eph_id), rssi);
+				final EphIdTS ephId = new EphIdTS( first_toc, last_toc, eph_id, rssi);
 				
-				tbl.put( new ByteArray( ephId.data), ephId);
+				encounters.add( ephId);
 			}
 
-			if ( tbl.isEmpty())
+			if ( encounters.isEmpty())
 				return null;
 			
+			final EphIdTable tbl = new EphIdTable( encounters.size());
+			for ( EphIdTS ephId: encounters) {
+				if ( ephId.data.length == Crypto.EPHID_LENGTH) {
+					tbl.put( ephId.data, 0, ephId);
+				}
+			}
 			return tbl;
 				
 			
@@ -193,59 +350,31 @@ public class SQLiteEphIDMatcher {
 		return null;
 	}
 
-	private List<SecretKey> getInfectiousKeys(long day) {
-		final String select_stmt = "select * from infectious_keys where (day_nbr = ?)";
-			
-		try (Connection conn = this.connect(); 
-				PreparedStatement pstmt = conn.prepareStatement(select_stmt);
-			) {
-
-			ResultSet rs = null;
-			
-			pstmt.setLong(1, day);	
-			rs = pstmt.executeQuery();
-			
-			int count = 0;
-			
-			ArrayList<SecretKey> tbl = new ArrayList<SecretKey>();
-			
-			// loop through the result set
-			while (rs.next()) {
-				
-				count++;
-				
-				final int day_nbr = rs.getInt( "day_nbr");
-				final byte key[] = rs.getBytes( "key"); 
-				
-				final SecretKey sk = new SecretKey( day_nbr, key);
-				
-				tbl.add( sk);
-			}
-
-			if ( tbl.isEmpty())
-				return null;
-			
-			return tbl;
-							
-		} catch (SQLException e) {
-			System.err.println(e.getMessage());
-		} finally {
-		}
-		// TODO Auto-generated method stub
-		return null;
-	}
-
-	private boolean enterInfectiuosKey( long day, byte[] key) {
-		final String insert_stmt = "insert into infectious_keys ( day_nbr, key) values( ?, ?)";
+	/***
+	 * stores the keys in one transaction. keys which are stored already are ignored.
+	 * 
+	 * @param keysByDay
+	 * @return success/failure
+	 */
+	private boolean storeInfectiousKeys( List<List<SecretKey>> keysByDay) {
+		final String insert_stmt = "insert or ignore into infectious_keys ( day_nbr, key) values( ?, ?)";
 
 		try ( Connection conn = this.connect();
 				PreparedStatement pstmt  = conn.prepareStatement( insert_stmt);
-
 				){
 
-			pstmt.setLong( 1, day);
-			pstmt.setBytes( 2, key);
-			pstmt.executeUpdate();
+			conn.setAutoCommit( false);
+			
+			for ( List<SecretKey> keysOfDay: keysByDay) {
+				for ( SecretKey sk: keysOfDay) {
+					pstmt.setLong( 1, sk.getDayNbr());
+					pstmt.setBytes( 2, sk.getKey());
+					pstmt.addBatch();
+				}
+			}
+			
+			pstmt.executeBatch();
+			conn.commit();
 		} catch (SQLException e) {
 			e.printStackTrace();
 			return false;
@@ -255,7 +384,7 @@ public class SQLiteEphIDMatcher {
 	}
 
 	private boolean purgeInfectiousKeys(int from_day, int to_day) {
-		String delete_stmt = "delete from secret_keys where (? <= day_nbr) and (day_nbr <= ?)";
+		String delete_stmt = "delete from infectious_keys where (? <= day_nbr) and (day_nbr <= ?)";
 		try (Connection conn = this.connect(); 
 				PreparedStatement pstmt = conn.prepareStatement(delete_stmt);) {
 
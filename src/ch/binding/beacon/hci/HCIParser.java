@@ -15,14 +15,20 @@
  */
 package ch.binding.beacon.hci;
 
+import java.io.BufferedInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 import java.util.logging.Logger;
 
 import ch.binding.beacon.Beacon;
+import ch.binding.beacon.jfr.ParseHCIEvent;
+import ch.binding.beacon.metrics.Counter;
+import ch.binding.beacon.metrics.Histogram;
+import ch.binding.beacon.metrics.MetricsRegistry;
 
 
 /***
@@ -35,6 +41,11 @@ public class HCIParser {
 	
 	static Logger logger = Beacon.getLogger();
 	
+	private static final Counter recordsParsed = MetricsRegistry.counter( "hci.records");
+	private static final Counter parseErrors = MetricsRegistry.counter( "hci.parse.errors");
+	private static final Histogram recordsPerTrace = MetricsRegistry.histogram( "hci.parse.records");
+	private static final Histogram parseDuration = MetricsRegistry.histogram( "hci.parse.duration.ms");
+	
 	public static final int BT_ADDR_SIZE = 0x06; // nbr of bytes
 	
 	/**
@@ -52,11 +63,17 @@ public class HCIParser {
 	public static final int HCI_EVENT = 0x04;
 		
 	
-	private static byte [] readBytes( final FileInputStream in, final long nbrBytes) throws IOException {
+	private static final int READ_BUFFER_SIZE = 1 << 16;
+	
+	private static byte [] readBytes( final InputStream in, final long nbrBytes) throws IOException {
 		byte data[] = new byte[(int) nbrBytes];
-		int n = in.read( data, 0, data.length);
-		if ( n != data.length) {
-			throw new IOException( "unexpected EOF");
+		int off = 0;
+		while ( off < data.length) {
+			final int n = in.read( data, off, data.length - off);
+			if ( n < 0) {
+				throw new IOException( "unexpected EOF");
+			}
+			off += n;
 		}
 		return data;
 	}
@@ -178,6 +195,11 @@ public class HCIParser {
 	 * 
 	 * https://www.wolframalpha.com/input/?i=seconds+since+0%3A00%2C+01-01-1970
 	 */	
+	/***
+	 * original length, included length, packet flags, cumulative drops and time-stamp precede the packet data.
+	 */
+	private static final int PACKET_RECORD_HEADER_LEN = 4 + 4 + 4 + 4 + 8;
+	
 	public static final long nbrDaysSince01010000ToEpoch = 719528+carlsDaysFudge; // (737909 - 18381);
 	
  	public static boolean parseHCI( final String fn, byte pduTypes[], HCI_PDU_Handler pduHandler) throws IOException {
@@ -186,99 +208,124 @@ public class HCIParser {
  			throw new IllegalArgumentException();
  		}
 		
-		FileInputStream in = new FileInputStream( fn);
+		final ParseHCIEvent evt = new ParseHCIEvent();
+		evt.begin();
+		
+		final long startTS = System.currentTimeMillis();
 		int n = 0;
+		long nbrBytes = 0;
 		
-		// http://www.fte.com/webhelp/bpa600/Content/Technical_Information/BT_Snoop_File_Format.htm
-		// All integer values are stored in "big-endian" order, with the high-order bits first.
+		// buffered: the records are read field by field
+		try ( InputStream in = new BufferedInputStream( new FileInputStream( fn), READ_BUFFER_SIZE)) {
 		
-		// parse the header
-		byte identificationPattern[] = readBytes( in, 8);
-		String s = new String( Arrays.copyOfRange( identificationPattern, 0, 7), StandardCharsets.US_ASCII);
-		if ( !s.equals( "btsnoop")) {
-			throw new IOException( "not a btsnoop file?");
-		}
+			// http://www.fte.com/webhelp/bpa600/Content/Technical_Information/BT_Snoop_File_Format.htm
+			// All integer values are stored in "big-endian" order, with the high-order bits first.
 		
-		byte versionNumber[] = readBytes( in, 4);
-		long versNbr = getInt32( versionNumber);
-		if ( versNbr != BTSNOOP_VERSION) {
-			throw new IOException( "mismatching BTSNOOP VERSION");
-		}
+			// parse the header
+			byte identificationPattern[] = readBytes( in, 8);
+			String s = new String( Arrays.copyOfRange( identificationPattern, 0, 7), StandardCharsets.US_ASCII);
+			if ( !s.equals( "btsnoop")) {
+				throw new IOException( "not a btsnoop file?");
+			}
 		
-		byte dataLinkType[] = readBytes( in, 4);
-		long dataLinkTypeInt = getInt32( dataLinkType);
-		if ( dataLinkTypeInt != HCI_UART) {
-			throw new IOException( "data link type != HCI_UART");
-		}
+			byte versionNumber[] = readBytes( in, 4);
+			long versNbr = getInt32( versionNumber);
+			if ( versNbr != BTSNOOP_VERSION) {
+				throw new IOException( "mismatching BTSNOOP VERSION");
+			}
 		
-		// All integer values are stored in "big-endian" order, with the high-order bits first.
+			byte dataLinkType[] = readBytes( in, 4);
+			long dataLinkTypeInt = getInt32( dataLinkType);
+			if ( dataLinkTypeInt != HCI_UART) {
+				throw new IOException( "data link type != HCI_UART");
+			}
+		
+			// All integer values are stored in "big-endian" order, with the high-order bits first.
 		
-		while ( in.available() > 0) {
-			byte originalLength[] = readBytes( in, 4);
-			byte includedLength[] = readBytes( in, 4);
+			nbrBytes += identificationPattern.length + versionNumber.length + dataLinkType.length;
+		
+			while ( in.available() > 0) {
+				byte originalLength[] = readBytes( in, 4);
+				byte includedLength[] = readBytes( in, 4);
 			
-			long origLen = getInt32( originalLength);
-			long inclLen = getInt32( includedLength);
+				long origLen = getInt32( originalLength);
+				long inclLen = getInt32( includedLength);
 			
-			if ( origLen != inclLen) {
-				logger.warning( String.format( "original length != included length %d %d", origLen, inclLen));
-			}
+				if ( origLen != inclLen) {
+					logger.warning( String.format( "original length != included length %d %d", origLen, inclLen));
+				}
 			
-			byte packetFlags[] = readBytes( in, 4);
-			byte cumulativeDrops[] = readBytes( in, 4);
+				byte packetFlags[] = readBytes( in, 4);
+				byte cumulativeDrops[] = readBytes( in, 4);
 			
-			// A 64-bit signed integer representing the time of packet arrival, 
-			// in microseconds since midnight, January 1st, 0 AD nominal Gregorian.
-			byte microseconds[] = readBytes( in, 8);
-			long ts = getLong64( microseconds);  // microseconds
-			ts = (long) (ts / 1E3);
-			ts = ts - (nbrDaysSince01010000ToEpoch * 24 * 60 * 60 * 1000); // milli-seconds
+				// A 64-bit signed integer representing the time of packet arrival, 
+				// in microseconds since midnight, January 1st, 0 AD nominal Gregorian.
+				byte microseconds[] = readBytes( in, 8);
+				long ts = getLong64( microseconds);  // microseconds
+				ts = (long) (ts / 1E3);
+				ts = ts - (nbrDaysSince01010000ToEpoch * 24 * 60 * 60 * 1000); // milli-seconds
 			
-			// logger.info( String.format( "parseHCI: event time: %s", new Date( ts).toString()));
+				// logger.info( String.format( "parseHCI: event time: %s", new Date( ts).toString()));
 			
-			// Variable-length field holding the packet that was captured, beginning with its datalink header. 
-			// The Datalink Type field of the file header can be used to determine how to decode the datalink header. 
-			// The length of the Packet Data field is given in the Included Length field.
-			byte packetData[] = readBytes( in, inclLen);
+				// Variable-length field holding the packet that was captured, beginning with its datalink header. 
+				// The Datalink Type field of the file header can be used to determine how to decode the datalink header. 
+				// The length of the Packet Data field is given in the Included Length field.
+				byte packetData[] = readBytes( in, inclLen);
+				n++;
+				nbrBytes += PACKET_RECORD_HEADER_LEN + inclLen;
 			
-			if ( packetData == null || packetData.length == 0) {
-				logger.warning( "empty packetData");
-				continue;
-			}
+				if ( packetData == null || packetData.length == 0) {
+					logger.warning( "empty packetData");
+					continue;
+				}
 			
-			if ( contains( packetData[0], pduTypes)) {
+				if ( contains( packetData[0], pduTypes)) {
 				
-				HCI_PDU pdu = null;
+					HCI_PDU pdu = null;
 						
-				switch ( packetData[0]) {
-				case HCI_COMMAND:
-					// logger.info( "HCI_COMMAND");
-					pdu = parseHCICommand( packetData, ts);
-					if ( pdu != null) {
-						pduHandler.onPDU( pdu);
-					}
-					break;
-				case HCI_EVENT:
-					// logger.info( "HCI_EVENT");
-					try {
-						pdu = parseHCIEvent( packetData, ts);
-					} catch (Exception e) {
-						logger.severe( "failure to parse HCI event");
-						e.printStackTrace();
-					}
-					if ( pdu != null) {
-						pduHandler.onPDU( pdu);
+					switch ( packetData[0]) {
+					case HCI_COMMAND:
+						// logger.info( "HCI_COMMAND");
+						pdu = parseHCICommand( packetData, ts);
+						if ( pdu != null) {
+							pduHandler.onPDU( pdu);
+						}
+						break;
+					case HCI_EVENT:
+						// logger.info( "HCI_EVENT");
+						try {
+							pdu = parseHCIEvent( packetData, ts);
+						} catch (Exception e) {
+							parseErrors.inc();
+							logger.severe( "failure to parse HCI event");
+							e.printStackTrace();
+						}
+						if ( pdu != null) {
+							pduHandler.onPDU( pdu);
+						}
+						break;
+					case HCI_ASYNC_DATA:
+					case HCI_SYNC_DATA:
+						logger.info( "unsupported HCI PDU type: " + Byte.toString( packetData[0]));
+						break;
+					default:
+						throw new IOException( "unknown HCI PDU type");
 					}
-					break;
-				case HCI_ASYNC_DATA:
-				case HCI_SYNC_DATA:
-					logger.info( "unsupported HCI PDU type: " + Byte.toString( packetData[0]));
-					break;
-				default:
-					throw new IOException( "unknown HCI PDU type");
 				}
-			}
 			
+			}
+		}
+		
+		recordsParsed.add( n);
+		recordsPerTrace.record( n);
+		parseDuration.record( System.currentTimeMillis() - startTS);
+		
+		evt.end();
+		if ( evt.shouldCommit()) {
+			evt.fileName = fn;
+			evt.bytes = nbrBytes;
+			evt.records = n;
+			evt.commit();
 		}
 		
 		return true;
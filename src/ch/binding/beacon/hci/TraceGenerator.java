@@ -0,0 +1,679 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon.hci;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import ch.binding.beacon.Beacon;
+import ch.binding.beacon.ContactDetectionService;
+import ch.binding.beacon.dp3t.DP3T_ContactDetectionService;
+
+/***
+ * generates synthetic btsnoop traces, version 1 and data link type HCI_UART, as written by hcidump and read
+ * by HCIParser. to load test parsing, storing and matching without a Bluetooth controller and a crowd.
+ *
+ * A number of simulated devices advertise in range of the scanner:
+ * <ul>
+ * <li>exposure notification devices, ADV_NONCONN_IND with service 0xFD6F, rolling proximity ID and meta data</li>
+ * <li>DP-3T devices, ADV_NONCONN_IND with service 0xFD68 and an EphID</li>
+ * <li>iBeacons, ADV_NONCONN_IND with Apple's manufacturer specific data</li>
+ * <li>other devices, connectable ADV_IND which, as we scan actively, are often followed by a SCAN_RSP</li>
+ * </ul>
+ *
+ * EN and DP-3T devices change their random address and identifier every 10 to 20 minutes and, at each
+ * change, may leave or enter the range. each device has its own mean RSSI, reports are normally distributed
+ * around it. advertising events occur every advertising interval plus a random delay of 0..10 ms as per the
+ * BT specs. reports which arrive within a few milli-secs of each other are packed into one
+ * LE_AdvertisingReport event, as controllers do.
+ *
+ * All randomness is drawn from a single generator seeded by the caller: same parameters and seed, same trace.
+ *
+ * @author carl
+ *
+ */
+public class TraceGenerator {
+
+	/***
+	 * min. and max. time between changes of the rolling proximity ID or EphID, milli-secs
+	 */
+	public static final long MIN_ROTATION_INTERVAL = 10 * 60 * 1000;
+	public static final long MAX_ROTATION_INTERVAL = 20 * 60 * 1000;
+
+	/***
+	 * random delay added to each advertising event, milli-secs. BT Core spec. Vol 6, Part B, 4.4.2.2.1
+	 */
+	private static final int MAX_ADV_DELAY = 10;
+
+	/***
+	 * reports arriving within this many milli-secs of the first report of an event are packed into it.
+	 */
+	private static final long REPORT_BATCH_WINDOW = 5;
+
+	/***
+	 * max. length of HCI event parameters
+	 */
+	private static final int MAX_EVENT_PARAM_LEN = 0xFF;
+
+	/***
+	 * per report: event type, address type, address, data length, rssi
+	 */
+	private static final int REPORT_OVERHEAD = 1 + 1 + HCIParser.BT_ADDR_SIZE + 1 + 1;
+
+	/***
+	 * packet flags of a btsnoop record: bit 0 received, bit 1 command or event
+	 */
+	private static final int RECEIVED_EVENT_FLAGS = 0x03;
+
+	private static final byte IBEACON_UUID[] = {
+			(byte) 0x93, 0x48, 0x59, 0x7e, (byte) 0x81, (byte) 0xa2, 0x11, (byte) 0xea,
+			(byte) 0x97, 0x22, (byte) 0x90, 0x61, (byte) 0xae, (byte) 0xc6, 0x7c, 0x30 };
+
+	enum DeviceType { EXPOSURE_NOTIFICATION, DP3T, I_BEACON, OTHER };
+
+	/***
+	 * what to generate. defaults give a busy room for an hour.
+	 */
+	public static class Config {
+
+		public long seed = 0;
+		public int nbrDevices = 20;
+		public long startTime = System.currentTimeMillis(); // milli-secs since epoch, to be set for reproducible traces
+		public long duration = 60 * 60 * 1000;              // milli-secs
+		public long advInterval = 250;                      // milli-secs
+
+		// fractions of device types, the remainder are OTHER
+		public double enFraction = 0.7;
+		public double dp3tFraction = 0.1;
+		public double iBeaconFraction = 0.1;
+
+		// probability that a device is in range after an ID rotation
+		public double presence = 0.8;
+
+		// mean RSSI of a device is uniform in [minRSSI, maxRSSI], reports deviate by rssiStdDev
+		public int minRSSI = -95;
+		public int maxRSSI = -45;
+		public double rssiStdDev = 6.0;
+
+		// probability that an ADV_IND is followed by a SCAN_RSP
+		public double scanRspProbability = 0.5;
+
+		// max. nbr of reports in one LE_AdvertisingReport event, 1..25
+		public int maxReportsPerEvent = 4;
+
+		void validate() {
+			if ( this.nbrDevices < 0 || this.duration < 0 || this.advInterval < 20 ||
+					this.enFraction < 0 || this.dp3tFraction < 0 || this.iBeaconFraction < 0 ||
+					this.enFraction + this.dp3tFraction + this.iBeaconFraction > 1.0 ||
+					this.presence < 0 || this.presence > 1.0 ||
+					this.minRSSI > this.maxRSSI || this.minRSSI < -127 || this.maxRSSI > 20 ||
+					this.rssiStdDev < 0 || this.scanRspProbability < 0 || this.scanRspProbability > 1.0 ||
+					this.maxReportsPerEvent < 1 || this.maxReportsPerEvent > 25) {
+				throw new IllegalArgumentException( "bad trace generator configuration");
+			}
+		}
+	}
+
+	/***
+	 * what has been generated.
+	 */
+	public static class Stats {
+
+		public long nbrEvents;
+		public long nbrReports;
+		public long nbrENReports;
+		public long nbrDP3TReports;
+		public long nbrIBeaconReports;
+		public long nbrOtherReports;
+		public long nbrIDs;           // distinct rolling proximity IDs and EphIDs
+		public long nbrBytes;
+
+		@Override
+		public String toString() {
+			return String.format( "%d events, %d reports (EN %d, DP-3T %d, iBeacon %d, other %d), %d IDs, %d bytes",
+					this.nbrEvents, this.nbrReports, this.nbrENReports, this.nbrDP3TReports,
+					this.nbrIBeaconReports, this.nbrOtherReports, this.nbrIDs, this.nbrBytes);
+		}
+	}
+
+	/***
+	 * one advertising report before it is packed into an event
+	 */
+	private static class Report {
+		final byte eventType;
+		final byte addressType;
+		final byte address[];
+		final byte data[];
+		final byte rssi;
+
+		Report( byte eventType, byte addressType, byte address[], byte data[], byte rssi) {
+			this.eventType = eventType;
+			this.addressType = addressType;
+			this.address = address;
+			this.data = data;
+			this.rssi = rssi;
+		}
+
+		int getLength() {
+			return REPORT_OVERHEAD + this.data.length;
+		}
+	}
+
+	private class Device {
+
+		final int index;
+		final DeviceType type;
+		final int meanRSSI;
+
+		byte address[];
+		byte payload[];
+		byte scanRsp[];
+
+		boolean inRange;
+		long nextAdvertisement;  // milli-secs since epoch
+		long nextRotation;
+
+		Device( int index, DeviceType type, int meanRSSI, long now) {
+			this.index = index;
+			this.type = type;
+			this.meanRSSI = meanRSSI;
+
+			// first rotation somewhere within an interval: devices did not all start at the same time
+			this.rotate( now);
+			this.nextRotation = now + (long) (random.nextDouble() * (this.nextRotation - now));
+			this.nextAdvertisement = now + random.nextInt( (int) config.advInterval);
+		}
+
+		/***
+		 * new address and identifier. devices may leave or enter the range.
+		 */
+		void rotate( long now) {
+			this.nextRotation = now + MIN_ROTATION_INTERVAL +
+					(long) (random.nextDouble() * (MAX_ROTATION_INTERVAL - MIN_ROTATION_INTERVAL));
+
+			switch ( this.type) {
+			case EXPOSURE_NOTIFICATION:
+				this.address = randomAddress();
+				this.payload = ContactDetectionService.toBytes( randomBytes( Beacon.ROLLING_PROXY_ID_LENGTH), null);
+				// toBytes() would copy the proximity ID in place of the meta data...
+				this.payload = appendMetaData( this.payload, randomBytes( Beacon.ASSOCIATED_META_DATA_LENGTH));
+				stats.nbrIDs++;
+				break;
+			case DP3T:
+				this.address = randomAddress();
+				this.payload = dp3tPayload( randomBytes( Beacon.ROLLING_PROXY_ID_LENGTH));
+				stats.nbrIDs++;
+				break;
+			case I_BEACON:
+				if ( this.address == null) {
+					this.address = randomAddress();
+					this.payload = iBeaconPayload( this.index);
+				}
+				break;
+			case OTHER:
+				if ( this.address == null) {
+					this.address = randomAddress();
+					this.payload = otherPayload( this.index);
+					this.scanRsp = scanRspPayload( this.index);
+				}
+				break;
+			}
+
+			this.inRange = random.nextDouble() < config.presence;
+		}
+
+		byte nextRSSI() {
+			long rssi = Math.round( this.meanRSSI + random.nextGaussian() * config.rssiStdDev);
+			rssi = Math.max( -127, Math.min( 20, rssi));
+			return (byte) rssi;
+		}
+
+		/***
+		 * reports for the advertising event at nextAdvertisement, none if out of range
+		 */
+		void advertise( List<Report> reports) {
+			if ( !this.inRange)
+				return;
+
+			switch ( this.type) {
+			case EXPOSURE_NOTIFICATION:
+				reports.add( new Report( LE_AdvertisingReport.ADV_NONCONN_IND, LE_AdvertisingReport.RandomDeviceAddress,
+						this.address, this.payload, this.nextRSSI()));
+				stats.nbrENReports++;
+				break;
+			case DP3T:
+				reports.add( new Report( LE_AdvertisingReport.ADV_NONCONN_IND, LE_AdvertisingReport.RandomDeviceAddress,
+						this.address, this.payload, this.nextRSSI()));
+				stats.nbrDP3TReports++;
+				break;
+			case I_BEACON:
+				reports.add( new Report( LE_AdvertisingReport.ADV_NONCONN_IND, LE_AdvertisingReport.PublicDeviceAddress,
+						this.address, this.payload, this.nextRSSI()));
+				stats.nbrIBeaconReports++;
+				break;
+			case OTHER:
+				reports.add( new Report( LE_AdvertisingReport.ADV_IND, LE_AdvertisingReport.PublicDeviceAddress,
+						this.address, this.payload, this.nextRSSI()));
+				stats.nbrOtherReports++;
+				if ( random.nextDouble() < config.scanRspProbability) {
+					reports.add( new Report( LE_AdvertisingReport.SCAN_RSP, LE_AdvertisingReport.PublicDeviceAddress,
+							this.address, this.scanRsp, this.nextRSSI()));
+					stats.nbrOtherReports++;
+				}
+				break;
+			}
+		}
+	}
+
+	private final Config config;
+	private final Random random;
+	private final Stats stats = new Stats();
+
+	public TraceGenerator( Config config) {
+		super();
+		if ( config == null) {
+			throw new IllegalArgumentException();
+		}
+		config.validate();
+		this.config = config;
+		this.random = new Random( config.seed);
+	}
+
+	public Stats getStats() {
+		return this.stats;
+	}
+
+	private byte [] randomBytes( int n) {
+		final byte b[] = new byte[n];
+		this.random.nextBytes( b);
+		return b;
+	}
+
+	/***
+	 *
+	 * @return a non-resolvable private address, i.e. the two MSBs cleared. LSB first as on the wire.
+	 */
+	private byte [] randomAddress() {
+		final byte addr[] = this.randomBytes( HCIParser.BT_ADDR_SIZE);
+		addr[HCIParser.BT_ADDR_SIZE-1] &= 0x3F;
+		return addr;
+	}
+
+	private static byte [] appendMetaData( byte payload[], byte metaData[]) {
+		final byte data[] = new byte[payload.length + metaData.length];
+		System.arraycopy( payload, 0, data, 0, payload.length);
+		System.arraycopy( metaData, 0, data, payload.length, metaData.length);
+		data[7] += metaData.length; // service data length
+		return data;
+	}
+
+	/***
+	 * same layout as the EN payload, with the DP-3T service UUID and the EphID as service data.
+	 */
+	private static byte [] dp3tPayload( byte ephId[]) {
+		final int uuid = DP3T_ContactDetectionService.CONTACT_DETECTION_SERVICE_UUID;
+		final byte data[] = new byte[11 + ephId.length];
+		int idx = 0;
+		data[idx++] = 0x02; // len flags
+		data[idx++] = 0x01; // type flags
+		data[idx++] = 0x1A; // value flags
+		data[idx++] = 0x03; // len service UUID
+		data[idx++] = 0x03; // type service UUID
+		data[idx++] = (byte) (uuid & 0xFF);
+		data[idx++] = (byte) ((uuid >> 8) & 0xFF);
+		data[idx++] = (byte) (ephId.length + 3); // len service data
+		data[idx++] = 0x16; // type service data
+		data[idx++] = (byte) (uuid & 0xFF);
+		data[idx++] = (byte) ((uuid >> 8) & 0xFF);
+		System.arraycopy( ephId, 0, data, idx, ephId.length);
+		return data;
+	}
+
+	/***
+	 * flags and Apple's manufacturer specific data: 1a ff 4c 00 02 15 [UUID] [major] [minor] [tx power]
+	 */
+	private static byte [] iBeaconPayload( int index) {
+		final byte data[] = new byte[3 + 6 + IBEACON_UUID.length + 2 + 2 + 1];
+		int idx = 0;
+		data[idx++] = 0x02; // len flags
+		data[idx++] = 0x01; // type flags
+		data[idx++] = 0x06; // LE general discoverable, BR/EDR not supported
+		data[idx++] = 0x1A; // len manufacturer specific data
+		data[idx++] = (byte) 0xFF;
+		data[idx++] = 0x4C; // Apple, LSB
+		data[idx++] = 0x00;
+		data[idx++] = 0x02; // iBeacon
+		data[idx++] = 0x15; // remaining length
+		System.arraycopy( IBEACON_UUID, 0, data, idx, IBEACON_UUID.length);
+		idx += IBEACON_UUID.length;
+		data[idx++] = 0x00; // major, MSB
+		data[idx++] = 0x01;
+		data[idx++] = (byte) ((index >> 8) & 0xFF); // minor, MSB
+		data[idx++] = (byte) (index & 0xFF);
+		data[idx++] = (byte) 0xC5; // measured power at 1m, -59 dBm
+		return data;
+	}
+
+	private static byte [] otherPayload( int index) {
+		final byte data[] = new byte[3 + 4];
+		int idx = 0;
+		data[idx++] = 0x02; // len flags
+		data[idx++] = 0x01; // type flags
+		data[idx++] = 0x06;
+		data[idx++] = 0x03; // len tx power level
+		data[idx++] = 0x0A; // type tx power level
+		data[idx++] = (byte) (index & 0xFF);
+		data[idx++] = 0x00;
+		return data;
+	}
+
+	private static byte [] scanRspPayload( int index) {
+		final byte name[] = String.format( "dev-%04d", index).getBytes( StandardCharsets.US_ASCII);
+		final byte data[] = new byte[2 + name.length];
+		data[0] = (byte) (name.length + 1);
+		data[1] = 0x09; // complete local name
+		System.arraycopy( name, 0, data, 2, name.length);
+		return data;
+	}
+
+	private DeviceType nextDeviceType() {
+		final double d = this.random.nextDouble();
+		if ( d < this.config.enFraction)
+			return DeviceType.EXPOSURE_NOTIFICATION;
+		if ( d < this.config.enFraction + this.config.dp3tFraction)
+			return DeviceType.DP3T;
+		if ( d < this.config.enFraction + this.config.dp3tFraction + this.config.iBeaconFraction)
+			return DeviceType.I_BEACON;
+		return DeviceType.OTHER;
+	}
+
+	/***
+	 *
+	 * @param ts milli-secs since epoch
+	 * @return microseconds since 01.01.0000 as expected by HCIParser
+	 */
+	static long toBTSnoopTimeStamp( long ts) {
+		return (ts + HCIParser.nbrDaysSince01010000ToEpoch * 24 * 60 * 60 * 1000) * 1000;
+	}
+
+	private static void writeHeader( DataOutputStream out) throws IOException {
+		out.write( "btsnoop\0".getBytes( StandardCharsets.US_ASCII));
+		out.writeInt( (int) HCIParser.BTSNOOP_VERSION);
+		out.writeInt( HCIParser.HCI_UART);
+	}
+
+	/***
+	 * packs the reports into one LE_AdvertisingReport event: parameters are laid out as arrays, one per
+	 * field, 7.7.65.2 LE Advertising Report event.
+	 */
+	private void writeEvent( DataOutputStream out, ByteArrayOutputStream buf, List<Report> reports, long ts) throws IOException {
+		final int n = reports.size();
+		int paramLen = 2;
+		for ( Report r: reports) {
+			paramLen += r.getLength();
+		}
+		assert( paramLen <= MAX_EVENT_PARAM_LEN);
+
+		buf.reset();
+		buf.write( HCIParser.HCI_EVENT);
+		buf.write( HCI_Event.HCI_Meta_Event);
+		buf.write( paramLen);
+		buf.write( LE_MetaEvent.HCI_LE_Advertising_Report);
+		buf.write( n);
+		for ( Report r: reports) {
+			buf.write( r.eventType);
+		}
+		for ( Report r: reports) {
+			buf.write( r.addressType);
+		}
+		for ( Report r: reports) {
+			buf.write( r.address);
+		}
+		for ( Report r: reports) {
+			buf.write( r.data.length);
+		}
+		for ( Report r: reports) {
+			buf.write( r.data);
+		}
+		for ( Report r: reports) {
+			buf.write( r.rssi);
+		}
+
+		out.writeInt( buf.size()); // original length
+		out.writeInt( buf.size()); // included length
+		out.writeInt( RECEIVED_EVENT_FLAGS);
+		out.writeInt( 0); // cumulative drops
+		out.writeLong( toBTSnoopTimeStamp( ts));
+		buf.writeTo( out);
+
+		this.stats.nbrEvents++;
+		this.stats.nbrReports += n;
+		this.stats.nbrBytes += 4 + 4 + 4 + 4 + 8 + buf.size();
+	}
+
+	/***
+	 * the simulated devices, earliest advertisement first. created on first use.
+	 */
+	private PriorityQueue<Device> devices = null;
+
+	private void initDevices() {
+		// ties by device index so that the order is reproducible
+		this.devices = new PriorityQueue<Device>( Math.max( 1, this.config.nbrDevices), new Comparator<Device>() {
+			@Override
+			public int compare( Device d1, Device d2) {
+				if ( d1.nextAdvertisement != d2.nextAdvertisement)
+					return Long.compare( d1.nextAdvertisement, d2.nextAdvertisement);
+				return Integer.compare( d1.index, d2.index);
+			}
+		});
+		for ( int i = 0; i < this.config.nbrDevices; i++) {
+			final int meanRSSI = this.config.minRSSI + this.random.nextInt( this.config.maxRSSI - this.config.minRSSI + 1);
+			this.devices.add( new Device( i, this.nextDeviceType(), meanRSSI, this.config.startTime));
+		}
+	}
+
+	/***
+	 * to skip the advertisements before the given time-stamp. the IDs are rotated as if time had passed,
+	 * without writing anything.
+	 */
+	private void skipTo( long ts) {
+		final List<Device> skipped = new ArrayList<Device>();
+		while ( !this.devices.isEmpty() && this.devices.peek().nextAdvertisement < ts) {
+			skipped.add( this.devices.poll());
+		}
+		for ( Device d: skipped) {
+			while ( ts >= d.nextRotation) {
+				d.rotate( d.nextRotation);
+			}
+			d.nextAdvertisement = ts + this.random.nextInt( (int) this.config.advInterval);
+			this.devices.add( d);
+		}
+	}
+
+	/***
+	 * writes the whole trace, from the configured start time for the configured duration.
+	 *
+	 * @param fn
+	 * @return the stats of the generated trace
+	 * @throws IOException
+	 */
+	public Stats generate( String fn) throws IOException {
+		return this.generate( fn, this.config.startTime, this.config.startTime + this.config.duration);
+	}
+
+	/***
+	 * writes a trace of the advertisements in [from, to). the simulated devices carry on from one call
+	 * to the next: a scanner which traces one file per scan window sees the same devices and IDs
+	 * across windows. advertisements between the previous call and from are skipped.
+	 *
+	 * @param fn
+	 * @param from time-stamp, milli-secs since epoch
+	 * @param to time-stamp, milli-secs since epoch
+	 * @return the stats of all traces generated so far
+	 * @throws IOException
+	 */
+	public synchronized Stats generate( String fn, long from, long to) throws IOException {
+		if ( fn == null || to < from) {
+			throw new IllegalArgumentException();
+		}
+
+		if ( this.devices == null) {
+			this.initDevices();
+		}
+		this.skipTo( from);
+
+		final PriorityQueue<Device> devices = this.devices;
+		final long end = to;
+
+		final ByteArrayOutputStream buf = new ByteArrayOutputStream( MAX_EVENT_PARAM_LEN + 3);
+		final List<Report> pending = new ArrayList<Report>();
+		final List<Report> reports = new ArrayList<Report>( 2);
+		long eventTS = -1;
+		int pendingLen = 2;
+
+		try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( fn), 1 << 16))) {
+
+			writeHeader( out);
+			this.stats.nbrBytes += 8 + 4 + 4;
+
+			while ( !devices.isEmpty() && devices.peek().nextAdvertisement < end) {
+				final Device d = devices.poll();
+				final long ts = d.nextAdvertisement;
+
+				while ( ts >= d.nextRotation) {
+					d.rotate( d.nextRotation);
+				}
+
+				reports.clear();
+				d.advertise( reports);
+
+				for ( Report r: reports) {
+					// flush the pending event if it is full or too old
+					if ( !pending.isEmpty() && ( ts - eventTS > REPORT_BATCH_WINDOW ||
+							pending.size() >= this.config.maxReportsPerEvent ||
+							pendingLen + r.getLength() > MAX_EVENT_PARAM_LEN)) {
+						this.writeEvent( out, buf, pending, eventTS);
+						pending.clear();
+						pendingLen = 2;
+					}
+					if ( pending.isEmpty()) {
+						eventTS = ts;
+					}
+					pending.add( r);
+					pendingLen += r.getLength();
+				}
+
+				d.nextAdvertisement = ts + this.config.advInterval + this.random.nextInt( MAX_ADV_DELAY + 1);
+				devices.add( d);
+			}
+
+			if ( !pending.isEmpty()) {
+				this.writeEvent( out, buf, pending, eventTS);
+			}
+		}
+
+		return this.stats;
+	}
+
+	private static long parseDuration( String s) {
+		// 90s, 15m, 2h, 3d or plain milli-secs
+		final char unit = s.charAt( s.length() - 1);
+		final String nbr = s.substring( 0, s.length() - 1);
+		switch ( unit) {
+		case 's':
+			return Long.parseLong( nbr) * 1000;
+		case 'm':
+			return Long.parseLong( nbr) * 60 * 1000;
+		case 'h':
+			return Long.parseLong( nbr) * 60 * 60 * 1000;
+		case 'd':
+			return Long.parseLong( nbr) * 24 * 60 * 60 * 1000;
+		default:
+			return Long.parseLong( s);
+		}
+	}
+
+	public static void main( String[] args) {
+
+		final Options options = new Options();
+		options.addOption( "o", "out", true, "trace file, default /tmp/hcidump_synthetic.trace");
+		options.addOption( "s", "seed", true, "seed of the random generator, default 0");
+		options.addOption( "n", "devices", true, "nbr of simulated devices, default 20");
+		options.addOption( "d", "duration", true, "length of the trace, e.g. 90s, 15m, 2h, 3d, default 1h");
+		options.addOption( "i", "interval", true, "advertising interval, msecs, default 250");
+		options.addOption( "t", "start", true, "start time, msecs since epoch, default now. set it for reproducible traces");
+		options.addOption( "p", "presence", true, "probability of a device to be in range, default 0.8");
+		options.addOption( "e", "en", true, "fraction of exposure notification devices, default 0.7");
+		options.addOption( "3", "dp3t", true, "fraction of DP-3T devices, default 0.1");
+		options.addOption( "b", "ibeacon", true, "fraction of iBeacons, default 0.1");
+		options.addOption( "r", "reports", true, "max. nbr of reports per event, default 4");
+		options.addOption( "h", "help", false, "this help");
+
+		final CommandLineParser parser = new DefaultParser();
+		final Config config = new Config();
+		String fn = "/tmp/hcidump_synthetic.trace";
+
+		try {
+			final CommandLine cmd = parser.parse( options, args);
+			if ( cmd.hasOption( 'h')) {
+				new HelpFormatter().printHelp( "TraceGenerator", options);
+				return;
+			}
+			fn = cmd.getOptionValue( "o", fn);
+			config.seed = Long.parseLong( cmd.getOptionValue( "s", "0"));
+			config.nbrDevices = Integer.parseInt( cmd.getOptionValue( "n", Integer.toString( config.nbrDevices)));
+			if ( cmd.hasOption( 'd'))
+				config.duration = parseDuration( cmd.getOptionValue( "d"));
+			config.advInterval = Long.parseLong( cmd.getOptionValue( "i", Long.toString( config.advInterval)));
+			config.startTime = Long.parseLong( cmd.getOptionValue( "t", Long.toString( config.startTime)));
+			config.presence = Double.parseDouble( cmd.getOptionValue( "p", Double.toString( config.presence)));
+			config.enFraction = Double.parseDouble( cmd.getOptionValue( "e", Double.toString( config.enFraction)));
+			config.dp3tFraction = Double.parseDouble( cmd.getOptionValue( "3", Double.toString( config.dp3tFraction)));
+			config.iBeaconFraction = Double.parseDouble( cmd.getOptionValue( "b", Double.toString( config.iBeaconFraction)));
+			config.maxReportsPerEvent = Integer.parseInt( cmd.getOptionValue( "r", Integer.toString( config.maxReportsPerEvent)));
+		} catch ( ParseException | NumberFormatException e) {
+			System.err.println( "failure to parse command line options: " + e.getMessage());
+			new HelpFormatter().printHelp( "TraceGenerator", options);
+			System.exit( -1);
+		}
+
+		try {
+			final long startTS = System.currentTimeMillis();
+			final Stats stats = new TraceGenerator( config).generate( fn);
+			System.out.println( String.format( "%s: %s in %d ms", fn, stats.toString(), System.currentTimeMillis() - startTS));
+		} catch ( IOException | IllegalArgumentException e) {
+			System.err.println( "failure to generate trace: " + e.getMessage());
+			System.exit( -1);
+		}
+	}
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/***
+ * one run of a matcher of infected keys against the encounters.
+ * 
+ * @author carl
+ *
+ */
+@Name( "ch.binding.beacon.MatcherRun")
+@Label( "Matcher Run")
+@Category( { "Beacon", "Matching"})
+@Description( "Matching of infected keys against observed proximity IDs or EphIDs")
+public class MatcherRunEvent extends jdk.jfr.Event {
+	
+	@Label( "Protocol")
+	public String protocol;
+	
+	@Label( "Keys")
+	public long keys;
+	
+	@Label( "IDs Derived")
+	@Description( "Rolling proximity IDs or EphIDs derived from the keys")
+	public long derived;
+	
+	@Label( "Matches")
+	public long matches;
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/***
+ * one run of HCIParser.parseHCI over a btsnoop trace.
+ * 
+ * @author carl
+ *
+ */
+@Name( "ch.binding.beacon.ParseHCI")
+@Label( "Parse HCI Trace")
+@Category( { "Beacon", "Scanning"})
+@Description( "Parsing of an hcidump btsnoop trace")
+public class ParseHCIEvent extends jdk.jfr.Event {
+	
+	@Label( "File")
+	public String fileName;
+	
+	@Label( "Bytes")
+	@DataAmount
+	public long bytes;
+	
+	@Label( "Records")
+	public long records;
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+import jdk.jfr.Timestamp;
+
+/***
+ * a transition of the beacon cycle: BeaconOn, BeaconOff or BeaconIdle. the duration of the event is the
+ * time the transition took on the phase thread.
+ * 
+ * @author carl
+ *
+ */
+@Name( "ch.binding.beacon.PhaseTransition")
+@Label( "Beacon Phase Transition")
+@Category( { "Beacon", "Cycle"})
+@Description( "Transition between advertising, scanning and idle phases of the beacon cycle")
+public class PhaseTransitionEvent extends jdk.jfr.Event {
+	
+	@Label( "Transition")
+	public String transition;
+	
+	@Label( "State")
+	@Description( "State of the beacon after the transition")
+	public String state;
+	
+	@Label( "Cycle Start")
+	@Timestamp( Timestamp.MILLISECONDS_SINCE_EPOCH)
+	public long cycleStart;
+	
+	@Label( "Lateness")
+	@Description( "How late the transition started relative to its scheduled time")
+	@Timespan( Timespan.MILLISECONDS)
+	public long lateness;
+
+}
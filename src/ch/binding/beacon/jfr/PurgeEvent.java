@@ -0,0 +1,44 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/***
+ * a purge of obsolete data from a store.
+ * 
+ * @author carl
+ *
+ */
+@Name( "ch.binding.beacon.Purge")
+@Label( "Purge")
+@Category( { "Beacon", "Storage"})
+@Description( "Deletion of obsolete encounters or keys")
+public class PurgeEvent extends jdk.jfr.Event {
+	
+	@Label( "Operation")
+	public String operation;
+	
+	@Label( "Rows Deleted")
+	public long rows;
+	
+	@Label( "Success")
+	public boolean success;
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * a monotonic counter. lock-free, cheap to increment from many threads.
+ * 
+ * @author carl
+ *
+ */
+public class Counter implements CounterMBean {
+	
+	private final String name;
+	private final LongAdder count = new LongAdder();
+	
+	Counter( String name) {
+		super();
+		this.name = name;
+	}
+	
+	public String getName() {
+		return this.name;
+	}
+	
+	public void inc() {
+		this.count.increment();
+	}
+	
+	public void add( long n) {
+		this.count.add( n);
+	}
+	
+	@Override
+	public long getCount() {
+		return this.count.sum();
+	}
+	
+	@Override
+	public String toString() {
+		return String.format( "%s count=%d", this.name, this.getCount());
+	}
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * the last value set. lock-free.
+ * 
+ * @author carl
+ *
+ */
+public class Gauge implements GaugeMBean {
+	
+	private final String name;
+	private final AtomicLong value = new AtomicLong();
+	
+	Gauge( String name) {
+		super();
+		this.name = name;
+	}
+	
+	public String getName() {
+		return this.name;
+	}
+	
+	public void set( long v) {
+		this.value.set( v);
+	}
+	
+	@Override
+	public long getValue() {
+		return this.value.get();
+	}
+	
+	@Override
+	public String toString() {
+		return String.format( "%s value=%d", this.name, this.getValue());
+	}
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * distribution of non-negative values in power-of-two buckets: bucket i holds values in [2^(i-1), 2^i), 
+ * bucket 0 holds 0. lock-free; recording is a few atomic adds. percentiles are approximate, i.e. the upper 
+ * bound of the bucket in which the percentile falls.
+ * 
+ * @author carl
+ *
+ */
+public class Histogram implements HistogramMBean {
+	
+	private static final int NBR_BUCKETS = 64;
+	
+	private final String name;
+	private final AtomicLongArray buckets = new AtomicLongArray( NBR_BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+	
+	Histogram( String name) {
+		super();
+		this.name = name;
+	}
+	
+	public String getName() {
+		return this.name;
+	}
+	
+	/***
+	 * 
+	 * @param v value to record, negative values are recorded as 0.
+	 */
+	public void record( long v) {
+		if ( v < 0)
+			v = 0;
+		
+		final int bucket = Math.min( NBR_BUCKETS - 1, 64 - Long.numberOfLeadingZeros( v));
+		this.buckets.incrementAndGet( bucket);
+		this.count.increment();
+		this.sum.add( v);
+		
+		long m = this.max.get();
+		while ( v > m && !this.max.compareAndSet( m, v)) {
+			m = this.max.get();
+		}
+	}
+	
+	@Override
+	public long getCount() {
+		return this.count.sum();
+	}
+	
+	@Override
+	public long getSum() {
+		return this.sum.sum();
+	}
+	
+	@Override
+	public long getMax() {
+		return this.max.get();
+	}
+	
+	@Override
+	public double getMean() {
+		final long n = this.getCount();
+		if ( n == 0)
+			return 0;
+		return ((double) this.getSum()) / n;
+	}
+	
+	/***
+	 * 
+	 * @param p percentile in 0..100
+	 * @return upper bound of the bucket in which the percentile falls, at most the max. value.
+	 */
+	public long getPercentile( double p) {
+		if ( p < 0 || p > 100)
+			throw new IllegalArgumentException();
+		
+		long total = 0;
+		final long counts[] = new long[NBR_BUCKETS];
+		for ( int i = 0; i < NBR_BUCKETS; i++) {
+			counts[i] = this.buckets.get( i);
+			total += counts[i];
+		}
+		if ( total == 0)
+			return 0;
+		
+		final long rank = (long) Math.ceil( (p / 100.0) * total);
+		long seen = 0;
+		for ( int i = 0; i < NBR_BUCKETS; i++) {
+			seen += counts[i];
+			if ( seen >= rank && counts[i] > 0) {
+				final long upper = (i == 0) ? 0 : ((i >= 63) ? Long.MAX_VALUE : (1L << i) - 1);
+				return Math.min( upper, this.getMax());
+			}
+		}
+		return this.getMax();
+	}
+	
+	@Override
+	public long get50thPercentile() {
+		return this.getPercentile( 50);
+	}
+	
+	@Override
+	public long get90thPercentile() {
+		return this.getPercentile( 90);
+	}
+	
+	@Override
+	public long get99thPercentile() {
+		return this.getPercentile( 99);
+	}
+	
+	@Override
+	public String toString() {
+		return String.format( "%s count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d", this.name, this.getCount(), this.getMean(), 
+				this.get50thPercentile(), this.get90thPercentile(), this.get99thPercentile(), this.getMax());
+	}
+
+}
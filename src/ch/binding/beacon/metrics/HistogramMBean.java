@@ -0,0 +1,40 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon.metrics;
+
+/***
+ * JMX view of a Histogram
+ * 
+ * @author carl
+ *
+ */
+public interface HistogramMBean {
+	
+	public long getCount();
+	
+	public long getSum();
+	
+	public long getMax();
+	
+	public double getMean();
+	
+	public long get50thPercentile();
+	
+	public long get90thPercentile();
+	
+	public long get99thPercentile();
+
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import ch.binding.beacon.Beacon;
+
+/***
+ * process-wide registry of counters, gauges and histograms. metrics are created on first use and
+ * registered as JMX MBeans under ch.binding.beacon:type=[Counter|Gauge|Histogram],name=[name].
+ *
+ * Instrumented code keeps a reference to its metrics in a static field so that the hot path is a
+ * lock-free update only:
+ *
+ * <pre>
+ * private static final Histogram parseDuration = MetricsRegistry.histogram( "hci.parse.duration.ms");
+ * </pre>
+ *
+ * A text snapshot of all metrics can be written periodically to a file.
+ *
+ * @author carl
+ *
+ */
+public class MetricsRegistry {
+
+	// by name: Beacon.getLogger() would run Beacon's static initializer, which itself creates metrics.
+	private static Logger logger = Logger.getLogger( Beacon.class.getName());
+
+	public static final String JMX_DOMAIN = "ch.binding.beacon";
+
+	/***
+	 * default file for the periodic text snapshot
+	 */
+	public static final String SNAPSHOT_FILE_NAME = "/tmp/beacon_metrics.txt";
+
+	private static final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	private static final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+	private static final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+	private static ScheduledExecutorService snapshotExecutor = null;
+
+	private MetricsRegistry() {
+	}
+
+	public static Counter counter( String name) {
+		Counter c = counters.get( name);
+		if ( c == null) {
+			final Counter n = new Counter( name);
+			c = counters.putIfAbsent( name, n);
+			if ( c == null) {
+				c = n;
+				register( "Counter", name, c);
+			}
+		}
+		return c;
+	}
+
+	public static Gauge gauge( String name) {
+		Gauge g = gauges.get( name);
+		if ( g == null) {
+			final Gauge n = new Gauge( name);
+			g = gauges.putIfAbsent( name, n);
+			if ( g == null) {
+				g = n;
+				register( "Gauge", name, g);
+			}
+		}
+		return g;
+	}
+
+	public static Histogram histogram( String name) {
+		Histogram h = histograms.get( name);
+		if ( h == null) {
+			final Histogram n = new Histogram( name);
+			h = histograms.putIfAbsent( name, n);
+			if ( h == null) {
+				h = n;
+				register( "Histogram", name, h);
+			}
+		}
+		return h;
+	}
+
+	private static void register( String type, String name, Object mbean) {
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName on = new ObjectName( JMX_DOMAIN + ":type=" + type + ",name=" + ObjectName.quote( name));
+			if ( !server.isRegistered( on)) {
+				server.registerMBean( mbean, on);
+			}
+		} catch ( Exception e) {
+			// metrics still work, they are just not visible via JMX
+			logger.warning( String.format( "failure to register MBean for %s: %s", name, e.getMessage()));
+		}
+	}
+
+	/***
+	 *
+	 * @return one line per metric, sorted by name
+	 */
+	public static String snapshot() {
+		final Map<String, Object> sorted = new ConcurrentSkipListMap<String, Object>();
+		sorted.putAll( counters);
+		sorted.putAll( gauges);
+		sorted.putAll( histograms);
+
+		final StringBuilder sb = new StringBuilder();
+		sb.append( "# ").append( new Date().toString()).append( '\n');
+		for ( Object m: sorted.values()) {
+			sb.append( m.toString()).append( '\n');
+		}
+		return sb.toString();
+	}
+
+	/***
+	 * writes a snapshot to a temporary file which is then renamed so that readers never see a partial snapshot.
+	 *
+	 * @param fn
+	 * @return success/failure
+	 */
+	public static boolean writeSnapshot( String fn) {
+		final File f = new File( fn);
+		final File tmp = new File( fn + ".tmp");
+		try ( PrintWriter pw = new PrintWriter( new OutputStreamWriter( new FileOutputStream( tmp), StandardCharsets.UTF_8))) {
+			pw.print( snapshot());
+		} catch ( IOException e) {
+			logger.warning( "failure to write metrics snapshot: " + e.getMessage());
+			return false;
+		}
+		if ( !tmp.renameTo( f)) {
+			logger.warning( "failure to rename metrics snapshot to " + fn);
+			return false;
+		}
+		return true;
+	}
+
+	/***
+	 * to write a snapshot every so often on a daemon thread.
+	 *
+	 * @param fn snapshot file
+	 * @param interval milli-secs
+	 */
+	public static synchronized void startSnapshots( final String fn, long interval) {
+		if ( snapshotExecutor != null) {
+			return;
+		}
+		snapshotExecutor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+			@Override
+			public Thread newThread( Runnable r) {
+				final Thread t = new Thread( r, "beacon-metrics");
+				t.setDaemon( true);
+				return t;
+			}
+		});
+		snapshotExecutor.scheduleAtFixedRate( new Runnable() {
+			@Override
+			public void run() {
+				writeSnapshot( fn);
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	public static synchronized void stopSnapshots() {
+		if ( snapshotExecutor == null) {
+			return;
+		}
+		snapshotExecutor.shutdown();
+		snapshotExecutor = null;
+	}
+
+}
@@ -16,21 +16,410 @@
 package ch.binding.beacon.utils;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
 /***
  * to provide AES based encryption of secret data. requires a password.
  * 
+ * the static methods use the original format: AES/ECB with the key being the SHA-1 hash of the password. 
+ * every call hashes the password and creates a new cipher.
+ * 
+ * an instance is bound to one password. the key is derived once with PBKDF2, the cost being configurable, and 
+ * ciphers are kept per thread. it encrypts with AES/GCM into a versioned format:
+ * 
+ * byte version (2), int PBKDF2 iterations, byte salt length, salt, 12 bytes IV, cipher text incl. 16 bytes tag
+ * 
+ * as strings the format is "$2$" followed by the Base64 encoding of the above. strings without that prefix
+ * are taken to be in the original format and are decrypted as such, i.e. existing cipher texts remain readable.
+ * 
+ * the salt should be kept with the data, see getSalt(), and given to the next instance: cipher texts written with 
+ * another salt cost a key derivation each. cipher texts are only decrypted with the iterations of this instance 
+ * or the default ones, the iterations read from a cipher text are not trusted beyond that.
+ * 
  * @author carl
  *
  */
 public class AESEncrypt {
+	
+	/***
+	 * PBKDF2 iterations unless given explicitly, can be set with -Dbeacon.kdf.iterations=...
+	 */
+	public static final int DEFAULT_ITERATIONS = Integer.getInteger( "beacon.kdf.iterations", 100000);
+	
+	private static final int BUILTIN_ITERATIONS = 100000;
+	
+	/***
+	 * max. nbr of keys kept for cipher texts written with other salts
+	 */
+	private static final int MAX_KEYS = 8;
+	
+	private static final byte VERSION = 2;
+	private static final String VERSION_PREFIX = "$2$";
+	
+	private static final String KDF_ALGORITHM = "PBKDF2WithHmacSHA256";
+	public static final int SALT_LEN = 16;
+	private static final int IV_LEN = 12;
+	private static final int TAG_LEN = 128; // bits
+	
+	private static final SecureRandom random = new SecureRandom();
+	
+	private final char password[];
+	private final int iterations;
+	
+	/***
+	 * the salt with which this instance encrypts, and its key
+	 */
+	private final byte salt[];
+	private final SecretKeySpec key;
+	
+	/***
+	 * keys derived for cipher texts written with other salts or costs, by iterations and salt. 
+	 * access-ordered, at most MAX_KEYS.
+	 */
+	private final LinkedHashMap<String, SecretKeySpec> keys = new LinkedHashMap<String, SecretKeySpec>( 16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<String, SecretKeySpec> eldest) {
+			return this.size() > MAX_KEYS;
+		}
+	};
+	
+	/***
+	 * key of the original format, derived on demand.
+	 */
+	private volatile SecretKeySpec legacyKey = null;
+	
+	private final ThreadLocal<Cipher> gcmCipher = new ThreadLocal<Cipher>() {
+		@Override
+		protected Cipher initialValue() {
+			try {
+				return Cipher.getInstance( "AES/GCM/NoPadding");
+			} catch ( GeneralSecurityException e) {
+				throw new IllegalStateException( e);
+			}
+		}
+	};
+	
+	private final ThreadLocal<Cipher> ecbCipher = new ThreadLocal<Cipher>() {
+		@Override
+		protected Cipher initialValue() {
+			try {
+				return Cipher.getInstance( "AES/ECB/PKCS5Padding");
+			} catch ( GeneralSecurityException e) {
+				throw new IllegalStateException( e);
+			}
+		}
+	};
+	
+	/***
+	 * 
+	 * @param secret the password, non empty
+	 * @param iterations PBKDF2 iterations, the cost of the key derivation which is paid once per instance
+	 * @param salt SALT_LEN bytes, e.g. from getSalt() of an earlier instance
+	 * 
+	 * @throws GeneralSecurityException if the key cannot be derived
+	 */
+	public AESEncrypt( String secret, int iterations, byte salt[]) throws GeneralSecurityException {
+		super();
+		if ( secret == null || secret.length() == 0 || iterations <= 0 || salt == null || salt.length != SALT_LEN) {
+			throw new IllegalArgumentException();
+		}
+		this.password = secret.toCharArray();
+		this.iterations = iterations;
+		this.salt = salt.clone();
+		this.key = this.deriveKey( iterations, this.salt);
+	}
+	
+	/***
+	 * with a new random salt
+	 */
+	public AESEncrypt( String secret, int iterations) throws GeneralSecurityException {
+		this( secret, iterations, newSalt());
+	}
+	
+	public AESEncrypt( String secret) throws GeneralSecurityException {
+		this( secret, DEFAULT_ITERATIONS);
+	}
+	
+	/***
+	 * 
+	 * @return SALT_LEN random bytes
+	 */
+	public static byte[] newSalt() {
+		final byte s[] = new byte[ SALT_LEN];
+		random.nextBytes( s);
+		return s;
+	}
+	
+	/***
+	 * 
+	 * @return a copy of the salt with which this instance encrypts
+	 */
+	public byte[] getSalt() {
+		return this.salt.clone();
+	}
+	
+	private SecretKeySpec deriveKey( int iterations, byte salt[]) throws GeneralSecurityException {
+		final PBEKeySpec spec = new PBEKeySpec( this.password, salt, iterations, 128);
+		try {
+			final byte k[] = SecretKeyFactory.getInstance( KDF_ALGORITHM).generateSecret( spec).getEncoded();
+			return new SecretKeySpec( k, "AES");
+		} finally {
+			spec.clearPassword();
+		}
+	}
+	
+	private static String keyId( int iterations, byte salt[]) {
+		return iterations + ":" + Base64.getEncoder().encodeToString( salt);
+	}
+	
+	/***
+	 * 
+	 * @return true if a cipher text with the iterations may be decrypted: the cost is set by this instance or 
+	 * is a default one, not by the cipher text.
+	 */
+	private boolean isKnownIterations( int iterations) {
+		return iterations == this.iterations || iterations == DEFAULT_ITERATIONS || iterations == BUILTIN_ITERATIONS;
+	}
+	
+	private SecretKeySpec getKey( int iterations, byte salt[]) throws GeneralSecurityException {
+		if ( iterations == this.iterations && Arrays.equals( salt, this.salt)) {
+			return this.key;
+		}
+		if ( !this.isKnownIterations( iterations) || salt.length != SALT_LEN) {
+			throw new GeneralSecurityException( "unexpected key derivation parameters: " + iterations + " iterations");
+		}
+		final String id = keyId( iterations, salt);
+		SecretKeySpec k;
+		synchronized ( this.keys) {
+			k = this.keys.get( id);
+		}
+		if ( k == null) {
+			// derived outside of the lock
+			k = this.deriveKey( iterations, salt);
+			synchronized ( this.keys) {
+				this.keys.put( id, k);
+			}
+		}
+		return k;
+	}
+	
+	private SecretKeySpec getLegacyKey() throws UnsupportedEncodingException, NoSuchAlgorithmException {
+		SecretKeySpec k = this.legacyKey;
+		if ( k == null) {
+			k = getKey( new String( this.password));
+			this.legacyKey = k;
+		}
+		return k;
+	}
+	
+	/***
+	 * 
+	 * @param plain
+	 * @return the cipher text in the versioned format, null on failure
+	 */
+	public byte[] encrypt( byte plain[]) {
+		if ( plain == null) {
+			throw new IllegalArgumentException();
+		}
+		try {
+			final byte iv[] = new byte[ IV_LEN];
+			random.nextBytes( iv);
+			
+			final Cipher cipher = this.gcmCipher.get();
+			cipher.init( Cipher.ENCRYPT_MODE, this.key, new GCMParameterSpec( TAG_LEN, iv));
+			
+			final ByteBuffer buf = ByteBuffer.allocate( 1 + 4 + 1 + SALT_LEN + IV_LEN + cipher.getOutputSize( plain.length));
+			buf.put( VERSION);
+			buf.putInt( this.iterations);
+			buf.put( (byte) SALT_LEN);
+			buf.put( this.salt);
+			buf.put( iv);
+			cipher.doFinal( ByteBuffer.wrap( plain), buf);
+			return buf.array();
+		} catch ( GeneralSecurityException e) {
+			System.err.println("Error while encrypting: " + e.toString());
+		}
+		return null;
+	}
+	
+	/***
+	 * 
+	 * @param encrypted cipher text in the versioned format
+	 * @return the plain text, null on failure
+	 */
+	public byte[] decrypt( byte encrypted[]) {
+		if ( encrypted == null) {
+			throw new IllegalArgumentException();
+		}
+		try {
+			final ByteBuffer buf = ByteBuffer.wrap( encrypted);
+			if ( buf.get() != VERSION) {
+				System.err.println("Error while decrypting: unknown format version");
+				return null;
+			}
+			final int iterations = buf.getInt();
+			final byte salt[] = new byte[ buf.get()];
+			buf.get( salt);
+			final byte iv[] = new byte[ IV_LEN];
+			buf.get( iv);
+			
+			final Cipher cipher = this.gcmCipher.get();
+			cipher.init( Cipher.DECRYPT_MODE, this.getKey( iterations, salt), new GCMParameterSpec( TAG_LEN, iv));
+			return cipher.doFinal( encrypted, buf.position(), buf.remaining());
+		} catch ( GeneralSecurityException | RuntimeException e) {
+			System.err.println("Error while decrypting: " + e.toString());
+		}
+		return null;
+	}
+	
+	/***
+	 * 
+	 * @param plains
+	 * @return the cipher texts in the same order, null on failure
+	 */
+	public List<byte[]> encrypt( List<byte[]> plains) {
+		final List<byte[]> encrypted = new ArrayList<byte[]>( plains.size());
+		for ( byte p[]: plains) {
+			final byte e[] = this.encrypt( p);
+			if ( e == null) {
+				return null;
+			}
+			encrypted.add( e);
+		}
+		return encrypted;
+	}
+	
+	/***
+	 * 
+	 * @param encrypted
+	 * @return the plain texts in the same order, null on failure
+	 */
+	public List<byte[]> decrypt( List<byte[]> encrypted) {
+		final List<byte[]> plains = new ArrayList<byte[]>( encrypted.size());
+		for ( byte e[]: encrypted) {
+			final byte p[] = this.decrypt( e);
+			if ( p == null) {
+				return null;
+			}
+			plains.add( p);
+		}
+		return plains;
+	}
+	
+	/***
+	 * 
+	 * @param strToEncrypt
+	 * @return "$2$" followed by the Base64 encoded cipher text, null on failure
+	 */
+	public String encryptString( String strToEncrypt) {
+		final byte e[] = this.encrypt( strToEncrypt.getBytes( StandardCharsets.UTF_8));
+		if ( e == null) {
+			return null;
+		}
+		return VERSION_PREFIX + Base64.getEncoder().encodeToString( e);
+	}
+	
+	/***
+	 * 
+	 * @param strToDecrypt in the versioned format or in the original format of the static methods
+	 * @return the plain text, null on failure
+	 */
+	public String decryptString( String strToDecrypt) {
+		if ( strToDecrypt.startsWith( VERSION_PREFIX)) {
+			final byte p[];
+			try {
+				p = this.decrypt( Base64.getDecoder().decode( strToDecrypt.substring( VERSION_PREFIX.length())));
+			} catch ( IllegalArgumentException e) {
+				System.err.println("Error while decrypting: " + e.toString());
+				return null;
+			}
+			return p == null ? null : new String( p, StandardCharsets.UTF_8);
+		}
+		
+		try {
+			final Cipher cipher = this.ecbCipher.get();
+			cipher.init( Cipher.DECRYPT_MODE, this.getLegacyKey());
+			return new String( cipher.doFinal( Base64.getDecoder().decode( strToDecrypt)));
+		} catch ( Exception e) {
+			System.err.println("Error while decrypting: " + e.toString());
+		}
+		return null;
+	}
+	
+	public List<String> encryptStrings( List<String> strsToEncrypt) {
+		final List<String> encrypted = new ArrayList<String>( strsToEncrypt.size());
+		for ( String s: strsToEncrypt) {
+			final String e = this.encryptString( s);
+			if ( e == null) {
+				return null;
+			}
+			encrypted.add( e);
+		}
+		return encrypted;
+	}
+	
+	public List<String> decryptStrings( List<String> strsToDecrypt) {
+		final List<String> plains = new ArrayList<String>( strsToDecrypt.size());
+		for ( String s: strsToDecrypt) {
+			final String p = this.decryptString( s);
+			if ( p == null) {
+				return null;
+			}
+			plains.add( p);
+		}
+		return plains;
+	}
+	
+	/***
+	 * 
+	 * @param encrypted
+	 * @return true if the cipher text is in the original format, e.g. to be re-encrypted.
+	 */
+	public static boolean isLegacyFormat( String encrypted) {
+		return !encrypted.startsWith( VERSION_PREFIX);
+	}
+	
+	/***
+	 * 
+	 * @param encrypted
+	 * @return true if the cipher text is in the versioned format and was written with the salt and iterations 
+	 * of this instance, i.e. is decrypted without deriving another key.
+	 */
+	public boolean isCurrentFormat( String encrypted) {
+		if ( isLegacyFormat( encrypted)) {
+			return false;
+		}
+		try {
+			final ByteBuffer buf = ByteBuffer.wrap( Base64.getDecoder().decode( encrypted.substring( VERSION_PREFIX.length())));
+			if ( buf.get() != VERSION || buf.getInt() != this.iterations || buf.get() != SALT_LEN) {
+				return false;
+			}
+			final byte s[] = new byte[ SALT_LEN];
+			buf.get( s);
+			return Arrays.equals( s, this.salt);
+		} catch ( RuntimeException e) {
+			return false;
+		}
+	}
 	 
     private static SecretKeySpec getKey( String myKey) 
     		throws UnsupportedEncodingException, NoSuchAlgorithmException 
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon.utils;
+
+import java.util.Date;
+
+/***
+ * a clock which starts at a given time and then runs faster than real time by a constant factor.
+ * to run the beacon for weeks in minutes.
+ *
+ * @author carl
+ *
+ */
+public class AcceleratedClock extends Clock {
+
+	private final long start;
+	private final double speedup;
+	private final long wallStart;
+
+	/***
+	 *
+	 * @param start time-stamp at which the clock starts, milli-secs since epoch
+	 * @param speedup how much faster than real time the clock runs, >= 1
+	 */
+	public AcceleratedClock( long start, double speedup) {
+		super();
+		if ( speedup < 1.0) {
+			throw new IllegalArgumentException();
+		}
+		this.start = start;
+		this.speedup = speedup;
+		this.wallStart = System.nanoTime();
+	}
+
+	public double getSpeedup() {
+		return this.speedup;
+	}
+
+	@Override
+	public long millis() {
+		final double elapsed = (System.nanoTime() - this.wallStart) / 1E6;
+		return this.start + (long) (elapsed * this.speedup);
+	}
+
+	@Override
+	public long toWallDelay( long delay) {
+		if ( delay <= 0)
+			return delay;
+		return (long) Math.ceil( delay / this.speedup);
+	}
+
+	@Override
+	public long toClockDuration( long duration) {
+		return (long) (duration * this.speedup);
+	}
+
+	@Override
+	public String toString() {
+		return String.format( "accelerated clock: x%.0f, started at %s", this.speedup, new Date( this.start).toString());
+	}
+
+}
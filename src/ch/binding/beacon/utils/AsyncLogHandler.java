@@ -0,0 +1,182 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon.utils;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/***
+ * a logging handler which puts log records into a bounded ring buffer and hands them to the target
+ * handlers, e.g. a FileHandler, on a background thread. formatting of the message and its parameters and
+ * the file I/O thus happen off the calling thread.
+ *
+ * if the buffer is full, the record is dropped rather than blocking the caller. the nbr of dropped records
+ * is reported with the next record which makes it through.
+ *
+ * @author carl
+ *
+ */
+public class AsyncLogHandler extends Handler {
+
+	/***
+	 * max. time to wait for the background thread to drain the buffer on close, milli-secs.
+	 */
+	private static final long CLOSE_TIMEOUT = 2000;
+
+	private final Handler targets[];
+	private final BlockingQueue<LogRecord> buffer;
+	private final AtomicLong dropped = new AtomicLong();
+	private final Thread thread;
+
+	private volatile boolean closed = false;
+
+	/***
+	 *
+	 * @param capacity nbr of log records which can be buffered
+	 * @param targets the handlers to which records are published in the background
+	 */
+	public AsyncLogHandler( int capacity, Handler... targets) {
+		super();
+		if ( capacity <= 0 || targets == null || targets.length == 0) {
+			throw new IllegalArgumentException();
+		}
+		this.targets = targets.clone();
+		this.buffer = new ArrayBlockingQueue<LogRecord>( capacity);
+
+		this.thread = new Thread( new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "beacon-log");
+		this.thread.setDaemon( true);
+		this.thread.start();
+	}
+
+	/***
+	 *
+	 * @return nbr of records dropped so far because the buffer was full
+	 */
+	public long getDropped() {
+		return this.dropped.get();
+	}
+
+	@Override
+	public void publish( LogRecord record) {
+		if ( this.closed || !this.isLoggable( record)) {
+			return;
+		}
+
+		// the caller is inferred from the stack of the logging thread. must be done before the hand-off.
+		record.getSourceMethodName();
+
+		if ( !this.buffer.offer( record)) {
+			this.dropped.incrementAndGet();
+		}
+	}
+
+	private void publishToTargets( LogRecord record) {
+		for ( Handler h: this.targets) {
+			try {
+				h.publish( record);
+			} catch ( Exception e) {
+				this.reportError( null, e, ErrorManager.WRITE_FAILURE);
+			}
+		}
+	}
+
+	private void publishDropped() {
+		final long n = this.dropped.getAndSet( 0);
+		if ( n > 0) {
+			final LogRecord r = new LogRecord( Level.WARNING, "log buffer full, {0} records dropped");
+			r.setParameters( new Object[] { Long.valueOf( n)});
+			r.setSourceClassName( AsyncLogHandler.class.getName());
+			r.setSourceMethodName( "publish");
+			this.publishToTargets( r);
+		}
+	}
+
+	/***
+	 * the background thread: publishes buffered records in batches and flushes once the buffer is empty.
+	 */
+	private void drain() {
+		final ArrayList<LogRecord> batch = new ArrayList<LogRecord>();
+		while ( !this.closed || !this.buffer.isEmpty()) {
+			try {
+				final LogRecord first = this.buffer.poll( 100, TimeUnit.MILLISECONDS);
+				if ( first == null) {
+					continue;
+				}
+				batch.add( first);
+				this.buffer.drainTo( batch);
+
+				this.publishDropped();
+				for ( LogRecord r: batch) {
+					this.publishToTargets( r);
+				}
+				batch.clear();
+
+				if ( this.buffer.isEmpty()) {
+					this.flushTargets();
+				}
+			} catch ( InterruptedException e) {
+				break;
+			}
+		}
+		this.publishDropped();
+		this.flushTargets();
+	}
+
+	private void flushTargets() {
+		for ( Handler h: this.targets) {
+			h.flush();
+		}
+	}
+
+	/***
+	 * records are flushed by the background thread whenever the buffer runs empty.
+	 */
+	@Override
+	public void flush() {
+	}
+
+	/***
+	 * stops accepting records, waits for the buffered ones to be written and closes the targets.
+	 */
+	@Override
+	public void close() throws SecurityException {
+		if ( this.closed) {
+			return;
+		}
+		this.closed = true;
+		try {
+			this.thread.join( CLOSE_TIMEOUT);
+		} catch ( InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for ( Handler h: this.targets) {
+			h.close();
+		}
+	}
+
+}
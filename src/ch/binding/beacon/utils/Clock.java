@@ -0,0 +1,102 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon.utils;
+
+/***
+ * the time as seen by the beacon: time-stamps of encounters, ENINs and day numbers of the keys, purge
+ * deadlines and the schedule of the beacon cycle are all taken from this clock rather than from
+ * System.currentTimeMillis().
+ *
+ * By default this is the system clock. for simulations a clock which runs faster than real time can be set
+ * before the beacon is started. Delays handed to executors are real time and must be converted with
+ * toWallDelay(), durations measured in real time, e.g. of parsing, with toClockDuration().
+ *
+ * Durations which are only reported, e.g. metrics and latencies, stay in real time.
+ *
+ * @author carl
+ *
+ */
+public abstract class Clock {
+
+	/***
+	 * the system clock
+	 */
+	public static final Clock SYSTEM = new Clock() {
+		@Override
+		public long millis() {
+			return System.currentTimeMillis();
+		}
+
+		@Override
+		public String toString() {
+			return "system clock";
+		}
+	};
+
+	private static volatile Clock clock = SYSTEM;
+
+	/***
+	 *
+	 * @return the clock in use
+	 */
+	public static Clock getClock() {
+		return clock;
+	}
+
+	/***
+	 * to replace the clock. to be called before the beacon, the crypto classes and the stores are used.
+	 * @param c
+	 */
+	public static void setClock( Clock c) {
+		if ( c == null) {
+			throw new IllegalArgumentException();
+		}
+		clock = c;
+	}
+
+	/***
+	 *
+	 * @return current time of the clock in use, milli-secs since epoch
+	 */
+	public static long now() {
+		return clock.millis();
+	}
+
+	/***
+	 *
+	 * @return current time, milli-secs since epoch
+	 */
+	public abstract long millis();
+
+	/***
+	 *
+	 * @param delay a delay on this clock, milli-secs
+	 * @return the corresponding real time delay, milli-secs
+	 */
+	public long toWallDelay( long delay) {
+		return delay;
+	}
+
+	/***
+	 *
+	 * @param duration a real time duration, milli-secs
+	 * @return the corresponding duration on this clock, milli-secs
+	 */
+	public long toClockDuration( long duration) {
+		return duration;
+	}
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2020 Carl Binding
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.binding.beacon.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/***
+ * logging for hot paths, e.g. once per advertising report.
+ *
+ * messages are java.text.MessageFormat patterns ("cdsr: {0} {1}") whose parameters are formatted only when
+ * the record is written - by the AsyncLogHandler on its own thread. parameters which are expensive to render
+ * can be wrapped with lazy() so that even their toString() is deferred.
+ *
+ * only every n-th message is considered (sampling) and at most so many per second are logged (rate limit).
+ * suppressed messages are counted and the count is appended to the next message logged.
+ *
+ * @author carl
+ *
+ */
+public class RateLimitedLog {
+
+	private static final long ONE_SEC = 1000; // milli-secs
+
+	private final Logger logger;
+	private final int maxPerSec;
+	private final int sampleEvery;
+
+	private final AtomicLong nbrCalls = new AtomicLong();
+	private final AtomicLong suppressed = new AtomicLong();
+
+	/***
+	 * start of the current one second window and nbr of messages logged in it.
+	 */
+	private final AtomicLong windowStart = new AtomicLong();
+	private final AtomicLong windowCount = new AtomicLong();
+
+	/***
+	 *
+	 * @param logger
+	 * @param maxPerSec max. nbr of messages per second, > 0
+	 * @param sampleEvery only every sampleEvery-th message is considered, 1 for all.
+	 */
+	public RateLimitedLog( Logger logger, int maxPerSec, int sampleEvery) {
+		super();
+		if ( logger == null || maxPerSec <= 0 || sampleEvery <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.logger = logger;
+		this.maxPerSec = maxPerSec;
+		this.sampleEvery = sampleEvery;
+	}
+
+	public RateLimitedLog( Logger logger, int maxPerSec) {
+		this( logger, maxPerSec, 1);
+	}
+
+	/***
+	 *
+	 * @return nbr of messages suppressed so far by sampling or rate limit and not yet reported.
+	 */
+	public long getSuppressed() {
+		return this.suppressed.get();
+	}
+
+	private boolean tryAcquire() {
+		if ( (this.nbrCalls.getAndIncrement() % this.sampleEvery) != 0) {
+			return false;
+		}
+
+		final long now = System.currentTimeMillis();
+		final long start = this.windowStart.get();
+		if ( now - start >= ONE_SEC && this.windowStart.compareAndSet( start, now)) {
+			this.windowCount.set( 0);
+		}
+		return this.windowCount.incrementAndGet() <= this.maxPerSec;
+	}
+
+	/***
+	 *
+	 * @param level
+	 * @param pattern MessageFormat pattern
+	 * @param params the parameters, formatted when the record is written
+	 */
+	public void log( Level level, String pattern, Object... params) {
+		if ( !this.logger.isLoggable( level)) {
+			return;
+		}
+		if ( !this.tryAcquire()) {
+			this.suppressed.incrementAndGet();
+			return;
+		}
+
+		final long n = this.suppressed.getAndSet( 0);
+
+		final LogRecord r = new LogRecord( level, n == 0 ? pattern : pattern + " (" + n + " suppressed)");
+		r.setParameters( params);
+		r.setLoggerName( this.logger.getName());
+		// no stack walk to infer the caller on the hot path
+		r.setSourceClassName( this.logger.getName());
+		this.logger.log( r);
+	}
+
+	public void info( String pattern, Object... params) {
+		this.log( Level.INFO, pattern, params);
+	}
+
+	public void fine( String pattern, Object... params) {
+		this.log( Level.FINE, pattern, params);
+	}
+
+	/***
+	 *
+	 * @param s
+	 * @return a log parameter whose toString() calls the supplier. i.e. the value is rendered when
+	 * the record is written, if ever.
+	 */
+	public static Object lazy( final Supplier<?> s) {
+		return new Object() {
+			@Override
+			public String toString() {
+				return String.valueOf( s.get());
+			}
+		};
+	}
+
+	/***
+	 *
+	 * @param o
+	 * @return a log parameter which is rendered with o.toString() rather than MessageFormat's formats for dates
+	 * and numbers.
+	 */
+	public static Object plain( final Object o) {
+		return new Object() {
+			@Override
+			public String toString() {
+				return String.valueOf( o);
+			}
+		};
+	}
+
+}